@@ -0,0 +1,443 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.cache;
+
+import static com.allanbank.mongodb.builder.QueryBuilder.where;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoIterator;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.demo.coordination.watch.ContextMatcher;
+import com.allanbank.mongodb.demo.coordination.watch.Operation;
+import com.allanbank.mongodb.demo.coordination.watch.OplogMultiplexer;
+import com.allanbank.mongodb.demo.coordination.watch.WatchListener;
+import com.allanbank.mongodb.demo.coordination.watch.Watcher;
+
+/**
+ * WatchedCache provides a local, in-memory copy of the documents in a
+ * collection whose {@code _id} matches a context pattern. The documents are
+ * loaded once when the cache is started and a {@link Watcher} applies the
+ * inserts, updates and deletes from the oplog to keep the copy current.
+ * <p>
+ * Reads via {@link #get(String)} do not lock. Changes are applied by the
+ * watcher's single dispatcher thread under a lock that is also held while a
+ * {@link #snapshot()} is copied, so a snapshot reflects a single point in the
+ * stream of changes.
+ * </p>
+ * <p>
+ * The watcher is started before the documents are loaded so no change is
+ * missed. Any document changed while the load is running is not overwritten
+ * by the (possibly older) loaded version.
+ * </p>
+ * <p>
+ * If a maximum size is set the oldest cached documents are evicted once the
+ * cache is full. Once anything has been evicted a miss reads the document
+ * from MongoDB and caches it.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class WatchedCache {
+
+    /** The collection being cached. */
+    private final MongoCollection myCollection;
+
+    /** The context for the {@code _id} of the cached documents. */
+    private final Pattern myContext;
+
+    /** The cached documents keyed by {@code _id}. */
+    private final ConcurrentHashMap<String, Document> myDocuments;
+
+    /** The number of documents evicted. */
+    private final AtomicLong myEvictionCount;
+
+    /** The number of reads satisfied by the cache. */
+    private final AtomicLong myHitCount;
+
+    /** True once the documents have been loaded. */
+    private volatile boolean myLoaded;
+
+    /** The ids changed while the documents are being loaded. */
+    private Set<String> myLoadTouched;
+
+    /** The matcher for the context. */
+    private final ContextMatcher myMatcher;
+
+    /** The maximum number of documents cached or zero for no limit. */
+    private volatile int myMaxSize;
+
+    /** The number of reads not satisfied by the cache. */
+    private final AtomicLong myMissCount;
+
+    /**
+     * The ids of the cached documents, oldest first. Guarded by the update
+     * lock.
+     */
+    private final Set<String> myOrder;
+
+    /** Held while applying a change or taking a snapshot. */
+    private final Object myUpdateLock;
+
+    /** The number of changes applied. */
+    private volatile long myVersion;
+
+    /** The watcher keeping the cache current. */
+    private final Watcher myWatcher;
+
+    /**
+     * Creates a new WatchedCache.
+     * 
+     * @param mongoClient
+     *            The client for the watcher.
+     * @param collection
+     *            The collection being cached.
+     * @param context
+     *            The context for the {@code _id} of the cached documents.
+     */
+    public WatchedCache(final MongoClient mongoClient,
+            final MongoCollection collection, final Pattern context) {
+        this(mongoClient, null, collection, context);
+    }
+
+    /**
+     * Creates a new WatchedCache that watches the collection using a shared
+     * {@link OplogMultiplexer}.
+     * 
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries.
+     * @param collection
+     *            The collection being cached.
+     * @param context
+     *            The context for the {@code _id} of the cached documents.
+     */
+    public WatchedCache(final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final Pattern context) {
+        this(null, multiplexer, collection, context);
+    }
+
+    /**
+     * Creates a new WatchedCache.
+     * 
+     * @param mongoClient
+     *            The client for the watcher. Null if using a multiplexer.
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries. Null if using a
+     *            client.
+     * @param collection
+     *            The collection being cached.
+     * @param context
+     *            The context for the {@code _id} of the cached documents.
+     */
+    private WatchedCache(final MongoClient mongoClient,
+            final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final Pattern context) {
+        myCollection = collection;
+        myContext = context;
+        myMatcher = ContextMatcher.compile(context);
+
+        myDocuments = new ConcurrentHashMap<String, Document>();
+        myOrder = new LinkedHashSet<String>();
+        myUpdateLock = new Object();
+        myEvictionCount = new AtomicLong(0);
+        myHitCount = new AtomicLong(0);
+        myMissCount = new AtomicLong(0);
+        myLoadTouched = null;
+        myLoaded = false;
+        myMaxSize = 0;
+        myVersion = 0;
+
+        if (multiplexer != null) {
+            myWatcher = new Watcher(multiplexer, collection, context,
+                    new CacheListener());
+        }
+        else {
+            myWatcher = new Watcher(mongoClient, collection, context,
+                    new CacheListener());
+            myWatcher.setClientSideFiltering(true);
+        }
+    }
+
+    /**
+     * Returns the cached document. If documents have been evicted a miss
+     * reads the document from MongoDB.
+     * 
+     * @param id
+     *            The {@code _id} of the document.
+     * @return The document or <code>null</code> if there is no such document
+     *         or the {@code _id} does not match the cache's context.
+     */
+    public Document get(final String id) {
+        final Document cached = myDocuments.get(id);
+        if (cached != null) {
+            myHitCount.incrementAndGet();
+            return cached;
+        }
+
+        myMissCount.incrementAndGet();
+        if ((myEvictionCount.get() == 0) || !myMatcher.matches(id)) {
+            return null;
+        }
+
+        final Document document = myCollection.findOne(BuilderFactory.start()
+                .add("_id", id));
+        if (document != null) {
+            synchronized (myUpdateLock) {
+                // Do not replace a newer version from the watcher.
+                if (!myDocuments.containsKey(id)) {
+                    put(id, document);
+                }
+            }
+        }
+        return document;
+    }
+
+    /**
+     * Returns the context for the {@code _id} of the cached documents.
+     * 
+     * @return The context for the {@code _id} of the cached documents.
+     */
+    public Pattern getContext() {
+        return myContext;
+    }
+
+    /**
+     * Returns the number of documents evicted.
+     * 
+     * @return The number of documents evicted.
+     */
+    public long getEvictionCount() {
+        return myEvictionCount.get();
+    }
+
+    /**
+     * Returns the number of reads satisfied by the cache.
+     * 
+     * @return The number of reads satisfied by the cache.
+     */
+    public long getHitCount() {
+        return myHitCount.get();
+    }
+
+    /**
+     * Returns the maximum number of documents cached.
+     * 
+     * @return The maximum number of documents cached or zero for no limit.
+     */
+    public int getMaxSize() {
+        return myMaxSize;
+    }
+
+    /**
+     * Returns the number of reads not satisfied by the cache.
+     * 
+     * @return The number of reads not satisfied by the cache.
+     */
+    public long getMissCount() {
+        return myMissCount.get();
+    }
+
+    /**
+     * Returns the number of changes applied to the cache.
+     * 
+     * @return The number of changes applied to the cache.
+     */
+    public long getVersion() {
+        return myVersion;
+    }
+
+    /**
+     * Returns true once the documents have been loaded.
+     * 
+     * @return True once the documents have been loaded.
+     */
+    public boolean isLoaded() {
+        return myLoaded;
+    }
+
+    /**
+     * Sets the maximum number of documents cached.
+     * 
+     * @param maxSize
+     *            The new value for the maximum number of documents cached or
+     *            zero for no limit.
+     */
+    public void setMaxSize(final int maxSize) {
+        myMaxSize = Math.max(0, maxSize);
+    }
+
+    /**
+     * Returns the number of documents cached.
+     * 
+     * @return The number of documents cached.
+     */
+    public int size() {
+        return myDocuments.size();
+    }
+
+    /**
+     * Returns an immutable copy of the cached documents. No change is applied
+     * while the copy is made.
+     * 
+     * @return An immutable copy of the cached documents keyed by {@code _id}.
+     */
+    public Map<String, Document> snapshot() {
+        synchronized (myUpdateLock) {
+            return Collections.unmodifiableMap(new HashMap<String, Document>(
+                    myDocuments));
+        }
+    }
+
+    /**
+     * Starts watching for changes and loads the documents.
+     */
+    public synchronized void start() {
+        if (!myLoaded) {
+            synchronized (myUpdateLock) {
+                myLoadTouched = new HashSet<String>();
+            }
+
+            myWatcher.start();
+            load();
+        }
+    }
+
+    /**
+     * Stops watching for changes and clears the cache.
+     */
+    public synchronized void stop() {
+        myWatcher.stop();
+
+        synchronized (myUpdateLock) {
+            myDocuments.clear();
+            myOrder.clear();
+            myLoadTouched = null;
+            myLoaded = false;
+        }
+    }
+
+    /**
+     * Applies a change from the watcher.
+     * 
+     * @param op
+     *            The operation that was performed.
+     * @param context
+     *            The {@code _id} of the changed document.
+     * @param document
+     *            The current version of the document or <code>null</code> if
+     *            it has been deleted.
+     */
+    protected void apply(final Operation op, final String context,
+            final Document document) {
+        synchronized (myUpdateLock) {
+            if (myLoadTouched != null) {
+                myLoadTouched.add(context);
+            }
+
+            if ((op == Operation.DELETE) || (document == null)) {
+                myDocuments.remove(context);
+                myOrder.remove(context);
+            }
+            else {
+                put(context, document);
+            }
+            myVersion += 1;
+        }
+    }
+
+    /**
+     * Loads the documents matching the context. Documents changed by the
+     * watcher while loading are not replaced. The server's {@code $regex}
+     * selects the documents and the watcher's {@link ContextMatcher} checks
+     * each one, so only the documents the watcher keeps current are cached.
+     */
+    protected void load() {
+        final MongoIterator<Document> iter = myCollection.find(where("_id")
+                .matches(myContext));
+        try {
+            while (iter.hasNext()) {
+                final Document document = iter.next();
+                final Element id = document.get("_id");
+                final String context = (id != null) ? id.getValueAsString()
+                        : null;
+                if ((context != null) && myMatcher.matches(context)) {
+                    synchronized (myUpdateLock) {
+                        if (!myLoadTouched.contains(context)) {
+                            put(context, document);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            iter.close();
+        }
+
+        synchronized (myUpdateLock) {
+            myLoadTouched = null;
+            myLoaded = true;
+        }
+    }
+
+    /**
+     * Adds a document to the cache, evicting the oldest documents if the
+     * cache is over its maximum size. Must be called holding the update lock.
+     * 
+     * @param context
+     *            The {@code _id} of the document.
+     * @param document
+     *            The document.
+     */
+    private void put(final String context, final Document document) {
+        myDocuments.put(context, document);
+        myOrder.add(context);
+
+        final int maxSize = myMaxSize;
+        final Iterator<String> oldest = myOrder.iterator();
+        while ((0 < maxSize) && (maxSize < myOrder.size())
+                && oldest.hasNext()) {
+            myDocuments.remove(oldest.next());
+            oldest.remove();
+            myEvictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * CacheListener provides the listener applying the changes to the cache.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class CacheListener implements WatchListener {
+        @Override
+        public void changed(final Operation op, final String context,
+                final Document document) {
+            apply(op, context, document);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDbException;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.NumericElement;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.ObjectId;
+import com.allanbank.mongodb.builder.ComparisonOperator;
+import com.allanbank.mongodb.builder.FindAndModify;
+import com.allanbank.mongodb.error.DuplicateKeyException;
+
+/**
+ * DistributedLock provides a lease based lock stored in a group's collection.
+ * The lock document is:
+ * <blockquote>
+ * 
+ * <pre>
+ * <code>
+ * { _id : "lock:&lt;root-context&gt;&lt;name&gt;", owner : &lt;holder&gt;, expires : &lt;date&gt;, fence : &lt;long&gt; }
+ * </code>
+ * </pre>
+ * 
+ * </blockquote>
+ * <p>
+ * The lock is acquired with a conditional upsert that only matches if this
+ * holder already owns the lock or the lease has expired. Each acquisition
+ * increments the {@code fence}, which is returned as a fencing token: a
+ * resource protected by the lock should reject requests carrying a token
+ * lower than the highest it has seen, since the holder of an older token may
+ * have lost its lease without knowing it.
+ * </p>
+ * <p>
+ * While held the lease is renewed every third of the lease time. The
+ * {@code _id} prefix keeps the lock document out of the group's membership.
+ * Lease times use the group's {@link ServerClock}.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class DistributedLock {
+
+    /** The default length of a lease in milliseconds. */
+    public static final long DEFAULT_LEASE_MILLIS = 30000;
+
+    /** The prefix for the {@code _id} of the lock documents. */
+    public static final String LOCK_PREFIX = "lock:";
+
+    /** The collection holding the lock. */
+    private final MongoCollection myCollection;
+
+    /** Used to renew the lease. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The fencing token for the current acquisition or -1 if not held. */
+    private long myFence;
+
+    /** The group the lock belongs to. */
+    private final GroupManager myGroupManager;
+
+    /** The unique identity of this holder of the lock. */
+    private final String myHolder;
+
+    /** The {@code _id} of the lock document. */
+    private final String myId;
+
+    /** When the current lease expires, from the server's clock. */
+    private long myLeaseExpires;
+
+    /** The length of a lease in milliseconds. */
+    private long myLeaseMillis;
+
+    /** The scheduled task for renewing the lease. */
+    private ScheduledFuture<?> myScheduledTask;
+
+    /**
+     * Creates a new DistributedLock.
+     * 
+     * @param executor
+     *            Used to renew the lease.
+     * @param groupManager
+     *            The group the lock belongs to.
+     * @param name
+     *            The name of the lock within the group.
+     */
+    public DistributedLock(final ScheduledExecutorService executor,
+            final GroupManager groupManager, final String name) {
+        myExecutor = executor;
+        myGroupManager = groupManager;
+        myCollection = groupManager.getCollection();
+        myId = LOCK_PREFIX + groupManager.getRootContext() + name;
+        myHolder = new ObjectId().toHexString();
+
+        myLeaseMillis = DEFAULT_LEASE_MILLIS;
+        myFence = -1;
+        myLeaseExpires = 0;
+        myScheduledTask = null;
+    }
+
+    /**
+     * Returns the fencing token for the current acquisition.
+     * 
+     * @return The fencing token or -1 if the lock is not held.
+     */
+    public synchronized long getFencingToken() {
+        return isHeld() ? myFence : -1;
+    }
+
+    /**
+     * Returns the unique identity of this holder of the lock.
+     * 
+     * @return The unique identity of this holder of the lock.
+     */
+    public String getHolder() {
+        return myHolder;
+    }
+
+    /**
+     * Returns the length of a lease in milliseconds.
+     * 
+     * @return The length of a lease in milliseconds.
+     */
+    public synchronized long getLeaseMillis() {
+        return myLeaseMillis;
+    }
+
+    /**
+     * Returns true if the lock is held and the lease has not expired.
+     * 
+     * @return True if the lock is held.
+     */
+    public synchronized boolean isHeld() {
+        return (myFence >= 0)
+                && (myGroupManager.getClock().currentTimeMillis() < myLeaseExpires);
+    }
+
+    /**
+     * Renews the lease on the lock.
+     * 
+     * @return True if the lease was renewed, false if the lock has been lost.
+     */
+    public synchronized boolean renew() {
+        if (myFence < 0) {
+            return false;
+        }
+
+        final long expires = myGroupManager.getClock().currentTimeMillis()
+                + myLeaseMillis;
+
+        final DocumentBuilder query = BuilderFactory.start();
+        query.add("_id", myId).add("owner", myHolder).add("fence", myFence);
+
+        final DocumentBuilder update = BuilderFactory.start();
+        update.push("$set").add("expires", new Date(expires));
+
+        try {
+            if (0 < myCollection.update(query, update, false, false,
+                    Durability.ACK)) {
+                myLeaseExpires = expires;
+                return true;
+            }
+        }
+        catch (final MongoDbException error) {
+            // Keep the lease until it expires; try again next time.
+            return isHeld();
+        }
+
+        lost();
+        return false;
+    }
+
+    /**
+     * Sets the length of a lease in milliseconds. Takes effect the next time
+     * the lock is acquired or renewed.
+     * 
+     * @param leaseMillis
+     *            The new value for the length of a lease in milliseconds.
+     */
+    public synchronized void setLeaseMillis(final long leaseMillis) {
+        myLeaseMillis = leaseMillis;
+    }
+
+    /**
+     * Tries to acquire the lock.
+     * 
+     * @return The fencing token if the lock was acquired or is already held,
+     *         otherwise -1.
+     * @throws MongoDbException
+     *             On a failure other than another holder having the lock.
+     */
+    public synchronized long tryLock() {
+        if (isHeld()) {
+            return myFence;
+        }
+
+        final long now = myGroupManager.getClock().currentTimeMillis();
+        final long expires = now + myLeaseMillis;
+
+        final DocumentBuilder query = BuilderFactory.start();
+        query.add("_id", myId);
+        final ArrayBuilder or = query.pushArray("$or");
+        or.push().add("owner", myHolder);
+        or.push().push("expires")
+                .add(ComparisonOperator.LT.getToken(), new Date(now));
+
+        final DocumentBuilder update = BuilderFactory.start();
+        update.push("$set").add("owner", myHolder)
+                .add("expires", new Date(expires));
+        update.push("$inc").add("fence", 1L);
+
+        final FindAndModify.Builder builder = new FindAndModify.Builder();
+        builder.setQuery(query);
+        builder.setUpdate(update);
+        builder.setUpsert(true);
+        builder.setReturnNew(true);
+
+        try {
+            final Document lock = myCollection.findAndModify(builder.build());
+            final NumericElement fence = (lock != null) ? lock.get(
+                    NumericElement.class, "fence") : null;
+            if (fence != null) {
+                myFence = fence.getLongValue();
+                myLeaseExpires = expires;
+
+                if (myScheduledTask == null) {
+                    final long renew = Math.max(1, myLeaseMillis / 3);
+                    myScheduledTask = myExecutor.scheduleWithFixedDelay(
+                            new RenewRunnable(), renew, renew,
+                            TimeUnit.MILLISECONDS);
+                }
+                return myFence;
+            }
+        }
+        catch (final DuplicateKeyException error) {
+            // Duplicate key on the upsert. Someone else holds the lock.
+        }
+        return -1;
+    }
+
+    /**
+     * Releases the lock if held by expiring the lease.
+     */
+    public synchronized void unlock() {
+        if (myFence >= 0) {
+            final DocumentBuilder query = BuilderFactory.start();
+            query.add("_id", myId).add("owner", myHolder)
+                    .add("fence", myFence);
+
+            final DocumentBuilder update = BuilderFactory.start();
+            update.push("$set").add("expires", new Date(0));
+
+            try {
+                myCollection.update(query, update, false, false,
+                        Durability.ACK);
+            }
+            finally {
+                lost();
+            }
+        }
+    }
+
+    /**
+     * Forgets the current acquisition and stops renewing the lease.
+     */
+    private void lost() {
+        myFence = -1;
+        myLeaseExpires = 0;
+        if (myScheduledTask != null) {
+            myScheduledTask.cancel(false);
+            myScheduledTask = null;
+        }
+    }
+
+    /**
+     * RenewRunnable provides a {@link Runnable} to renew the lease.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class RenewRunnable implements Runnable {
+        @Override
+        public void run() {
+            renew();
+        }
+    }
+}
@@ -16,67 +16,186 @@
 package com.allanbank.mongodb.demo.coordination.group;
 
 import static com.allanbank.mongodb.Durability.ACK;
+import static com.allanbank.mongodb.builder.ComparisonOperator.GTE;
+import static com.allanbank.mongodb.builder.ComparisonOperator.LT;
 import static com.allanbank.mongodb.builder.MiscellaneousOperator.IN;
 import static com.allanbank.mongodb.builder.QueryBuilder.where;
 import static com.allanbank.mongodb.demo.coordination.watch.Operation.DELETE;
-import static com.allanbank.mongodb.demo.coordination.watch.Operation.UPDATE;
+import static com.allanbank.mongodb.demo.coordination.watch.Operation.INSERT;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import com.allanbank.mongodb.Callback;
 import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.FutureCallback;
 import com.allanbank.mongodb.MongoClient;
 import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDbException;
+import com.allanbank.mongodb.MongoIterator;
 import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.DocumentAssignable;
+import com.allanbank.mongodb.bson.Element;
 import com.allanbank.mongodb.bson.builder.ArrayBuilder;
 import com.allanbank.mongodb.bson.builder.BuilderFactory;
 import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.DocumentElement;
 import com.allanbank.mongodb.bson.element.ObjectId;
+import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.builder.Index;
+import com.allanbank.mongodb.demo.coordination.watch.DeliveryMode;
 import com.allanbank.mongodb.demo.coordination.watch.Operation;
+import com.allanbank.mongodb.demo.coordination.watch.OplogMultiplexer;
 import com.allanbank.mongodb.demo.coordination.watch.WatchListener;
 import com.allanbank.mongodb.demo.coordination.watch.Watcher;
 
 /**
  * GroupManager provides the ability to monitor and join a group.
+ * <p>
+ * Each process sends a heartbeat for its members by setting their
+ * {@code ts} field to the server's current date with {@code $currentDate}.
+ * Members whose heartbeat is older than the session timeout, measured with
+ * the {@link ServerClock}, are removed according to the {@link ReapMode}.
+ * Neither the heartbeat nor the liveness check depends on the local clock
+ * agreeing with the server's. The heartbeat interval should be well below
+ * the session timeout.
+ * </p>
+ * <p>
+ * The manager loads the membership when started and keeps it current from
+ * the watcher's events. {@link #getSnapshot()} returns the current
+ * membership as an immutable {@link GroupSnapshot} without a query. By
+ * default only an elected reaper removes the stale members, with a single
+ * delete scoped to the group's {@code _id} prefix and supported by an index
+ * on {@code ts}.
+ * </p>
+ * <p>
+ * Each member may carry a metadata document in the
+ * {@value #METADATA_FIELD} field. A change to a member's metadata is
+ * written with its next heartbeat. The watcher delivers the oplog payloads
+ * so the heartbeats are ignored without reading the members' documents and
+ * the metadata is taken from the inserts and the {@code $set} of the
+ * updates. The metadata is passed to the {@link MemberListener}s and kept
+ * in the snapshot.
+ * </p>
+ * <p>
+ * A process that joins many groups can share a {@link HeartbeatCoordinator}
+ * between the managers. The coordinator sends the heartbeats for all of the
+ * managers using the same collection as a single asynchronous update each
+ * interval; each manager then only checks for stale members, every half
+ * session timeout.
+ * </p>
+ * <p>
+ * Members leave the group when they are closed or removed: they are dropped
+ * from the heartbeats and their documents deleted at once. A member that is
+ * garbage collected without being closed is a leak. It is logged, counted
+ * and removed with the next heartbeat, but until then the group's
+ * membership depends on the garbage collector.
+ * </p>
  * 
  * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
  */
 public class GroupManager {
 
+    /** The default interval between heartbeats. */
+    public static final long DEFAULT_HEARTBEAT_MILLIS = SECONDS.toMillis(5);
+
+    /** The default time after which a member without a heartbeat is stale. */
+    public static final long DEFAULT_SESSION_TIMEOUT_MILLIS = SECONDS
+            .toMillis(30);
+
+    /** The field holding a member's metadata. */
+    public static final String METADATA_FIELD = "meta";
+
+    /** The name of the default index on the {@code ts} field. */
+    public static final String TS_INDEX_NAME = "ts_1";
+
+    /** The name of the TTL index on the {@code ts} field. */
+    public static final String TTL_INDEX_NAME = "ts_ttl";
+
+    /** The logger for the members that were not closed. */
+    protected static final Logger LOG = Logger.getLogger(GroupManager.class
+            .getName());
+
     /** The listener to notify that something has changed. */
     protected final WatchListener myListener;
 
+    /** The coordinator the manager is registered with while started. */
+    private HeartbeatCoordinator myActiveCoordinator;
+
+    /** The estimate of the server's clock. */
+    private final ServerClock myClock;
+
     /** The collection being watched. */
     private final MongoCollection myCollection;
 
+    /** The coordinator for the heartbeats. Null to send them directly. */
+    private HeartbeatCoordinator myCoordinator;
+
     /** used for updating the registration in MongoDB. */
     private final ScheduledExecutorService myExecutor;
 
+    /** The interval between heartbeats in milliseconds. */
+    private long myHeartbeatMillis;
+
+    /** The number of members garbage collected without being closed. */
+    private final AtomicLong myLeakedCount;
+
+    /** Receives the members garbage collected without being closed. */
+    private final ReferenceQueue<GroupMember> myLeakQueue;
+
     /** The list of listeners. */
     private final List<GroupListener> myListeners;
 
-    /** The list of listeners. */
-    private final ConcurrentMap<String, WeakReference<GroupMember>> myMembers;
+    /** The list of listeners for the members and their metadata. */
+    private final List<MemberListener> myMemberListeners;
+
+    /** The members of the group in this process, keyed by context. */
+    private final ConcurrentMap<String, MemberReference> myMembers;
 
     /** The client for the watcher. */
     private final MongoClient myMongoClient;
 
+    /** How the stale members of the group are removed. */
+    private ReapMode myReapMode;
+
     /** The root context for the {@code _id} of items in the group. */
     private final String myRootContext;
 
     /** The scheduled task for updating the timestamp for each group member. */
     private ScheduledFuture<?> myScheduledTask;
 
+    /** The time after which a member without a heartbeat is stale. */
+    private volatile long mySessionTimeoutMillis;
+
+    /** The current membership of the group. */
+    private volatile GroupSnapshot mySnapshot;
+
+    /** Held while changing the membership snapshot. */
+    private final Object mySnapshotLock;
+
+    /** The members changed while the membership is loading. Null if loaded. */
+    private Set<String> mySnapshotTouched;
+
     /** The watcher for updates to the group. */
     private final Watcher myWatcher;
 
@@ -95,17 +214,81 @@ public class GroupManager {
     public GroupManager(final ScheduledExecutorService executor,
             final MongoClient mongoClient, final MongoCollection collection,
             final String rootContext) {
+        this(executor, mongoClient, null, collection, rootContext);
+    }
+
+    /**
+     * Creates a new GroupManager that watches the group using a shared
+     * {@link OplogMultiplexer}.
+     * 
+     * @param executor
+     *            Used for updating a registration in MongoDB.
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries.
+     * @param collection
+     *            The collection being watched.
+     * @param rootContext
+     *            The context for the {@code _id} of items to watch.
+     */
+    public GroupManager(final ScheduledExecutorService executor,
+            final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final String rootContext) {
+        this(executor, null, multiplexer, collection, rootContext);
+    }
+
+    /**
+     * Creates a new GroupManager.
+     * 
+     * @param executor
+     *            Used for updating a registration in MongoDB.
+     * @param mongoClient
+     *            The client for the watcher. Null if using a multiplexer.
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries. Null if using a
+     *            client.
+     * @param collection
+     *            The collection being watched.
+     * @param rootContext
+     *            The context for the {@code _id} of items to watch.
+     */
+    private GroupManager(final ScheduledExecutorService executor,
+            final MongoClient mongoClient, final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final String rootContext) {
         myExecutor = executor;
         myMongoClient = mongoClient;
         myCollection = collection;
         myRootContext = rootContext;
 
-        myMembers = new ConcurrentHashMap<String, WeakReference<GroupMember>>();
+        myMembers = new ConcurrentHashMap<String, MemberReference>();
+        myLeakQueue = new ReferenceQueue<GroupMember>();
+        myLeakedCount = new AtomicLong(0);
         myListeners = new CopyOnWriteArrayList<GroupListener>();
+        myMemberListeners = new CopyOnWriteArrayList<MemberListener>();
         myListener = new GroupWatchListener();
+        myReapMode = ReapMode.ELECTED;
+        myHeartbeatMillis = DEFAULT_HEARTBEAT_MILLIS;
+        myCoordinator = null;
+        myActiveCoordinator = null;
+        mySnapshot = GroupSnapshot.EMPTY;
+        mySnapshotLock = new Object();
+        mySnapshotTouched = null;
+        mySessionTimeoutMillis = DEFAULT_SESSION_TIMEOUT_MILLIS;
+
+        final MongoClient client = (multiplexer != null) ? multiplexer
+                .getClient() : mongoClient;
+        myClock = new ServerClock(client.getDatabase("admin"));
 
-        myWatcher = new Watcher(myMongoClient, myCollection,
-                Pattern.compile(myRootContext + ".*"), myListener);
+        final Pattern context = prefixPattern(myRootContext);
+        if (multiplexer != null) {
+            myWatcher = new Watcher(multiplexer, myCollection, context,
+                    myListener);
+        }
+        else {
+            myWatcher = new Watcher(myMongoClient, myCollection, context,
+                    myListener);
+            myWatcher.setClientSideFiltering(true);
+        }
+        myWatcher.setDeliveryMode(DeliveryMode.OPLOG_PAYLOAD);
     }
 
     /**
@@ -119,27 +302,251 @@ public class GroupManager {
     }
 
     /**
-     * Adds a member to the group. Users must hold onto the GroupMember
-     * returned. If it is garbage collected the member will be removed from the
-     * group.
+     * Adds a listener for the members of the group and their metadata.
+     * 
+     * @param listener
+     *            The listener to add.
+     */
+    public void addMemberListener(final MemberListener listener) {
+        myMemberListeners.add(listener);
+    }
+
+    /**
+     * Adds a member to the group. Users must {@link GroupMember#close()
+     * close} the GroupMember returned when it leaves the group. If it is
+     * garbage collected without being closed it is reported as a leak and
+     * removed from the group.
      * 
      * @return The representation of the group member.
      */
     public GroupMember addMember() {
-        // Use ObjectId to get a cluster unique id.
-        final ObjectId id = new ObjectId();
-        final String context = myRootContext + id.toHexString();
+        return addMember(null);
+    }
 
-        final GroupMember member = new GroupMember(context, myCollection);
+    /**
+     * Adds a member with metadata to the group. Users must
+     * {@link GroupMember#close() close} the GroupMember returned when it
+     * leaves the group. If it is garbage collected without being closed it is
+     * reported as a leak and removed from the group.
+     * 
+     * @param metadata
+     *            The member's metadata (e.g., its host, port, weight and
+     *            load). May be <code>null</code>.
+     * @return The representation of the group member.
+     */
+    public GroupMember addMember(final DocumentAssignable metadata) {
+        final GroupMember member = createMember(metadata);
 
-        myCollection.insert(Durability.ACK,
-                BuilderFactory.start().add("_id", context)
-                        .add("ts", new Date()));
-        myMembers.put(context, new WeakReference<GroupMember>(member));
+        myCollection.update(BuilderFactory.start().add("_id", member.getId()),
+                memberUpdate(metadata), false, true, Durability.ACK);
+        myMembers.put(member.getId(), new MemberReference(member,
+                myLeakQueue));
 
         return member;
     }
 
+    /**
+     * Adds a member to the group without waiting for its document to be
+     * written.
+     * 
+     * @return The future for the representation of the group member. Users
+     *         must {@link GroupMember#close() close} the GroupMember when it
+     *         leaves the group.
+     * @see #addMember()
+     */
+    public Future<GroupMember> addMemberAsync() {
+        return addMemberAsync(null);
+    }
+
+    /**
+     * Adds a member with metadata to the group without waiting for its
+     * document to be written. The member's heartbeats start at once; if the
+     * write fails the member is marked as removed and the future fails.
+     * 
+     * @param metadata
+     *            The member's metadata (e.g., its host, port, weight and
+     *            load). May be <code>null</code>.
+     * @return The future for the representation of the group member. Users
+     *         must {@link GroupMember#close() close} the GroupMember when it
+     *         leaves the group.
+     * @see #addMember(DocumentAssignable)
+     */
+    public Future<GroupMember> addMemberAsync(final DocumentAssignable metadata) {
+        final GroupMember member = createMember(metadata);
+        final FutureCallback<GroupMember> future = new FutureCallback<GroupMember>();
+
+        myMembers.put(member.getId(), new MemberReference(member,
+                myLeakQueue));
+        myCollection.updateAsync(new AddMemberCallback(member, future),
+                BuilderFactory.start().add("_id", member.getId()),
+                memberUpdate(metadata), false, true, Durability.ACK);
+
+        return future;
+    }
+
+    /**
+     * Queries for the current members of the group. The contexts include the
+     * root context string.
+     * 
+     * @return The contexts of the current members of the group.
+     */
+    public List<String> findMembers() {
+        return new ArrayList<String>(findMemberMetadata().keySet());
+    }
+
+    /**
+     * Queries for the current members of the group and their metadata. The
+     * contexts include the root context string.
+     * 
+     * @return The metadata of the current members of the group, keyed by
+     *         context. Members without metadata map to <code>null</code>.
+     */
+    public Map<String, Document> findMemberMetadata() {
+        final Map<String, Document> members = new HashMap<String, Document>();
+
+        final MongoIterator<Document> iter = myCollection.find(where("_id")
+                .matches(prefixPattern(myRootContext)));
+        try {
+            while (iter.hasNext()) {
+                final Document member = iter.next();
+                members.put(member.get("_id").getValueAsString(),
+                        metadata(member));
+            }
+        }
+        finally {
+            iter.close();
+        }
+
+        return members;
+    }
+
+    /**
+     * Returns the estimate of the server's clock.
+     * 
+     * @return The estimate of the server's clock.
+     */
+    public ServerClock getClock() {
+        return myClock;
+    }
+
+    /**
+     * Returns the collection holding the group's members.
+     * 
+     * @return The collection holding the group's members.
+     */
+    public MongoCollection getCollection() {
+        return myCollection;
+    }
+
+    /**
+     * Returns the coordinator for the heartbeats.
+     * 
+     * @return The coordinator for the heartbeats or <code>null</code> if the
+     *         manager sends its own heartbeats.
+     */
+    public synchronized HeartbeatCoordinator getHeartbeatCoordinator() {
+        return myCoordinator;
+    }
+
+    /**
+     * Returns the interval between heartbeats.
+     * 
+     * @return The interval between heartbeats in milliseconds.
+     */
+    public synchronized long getHeartbeatMillis() {
+        return myHeartbeatMillis;
+    }
+
+    /**
+     * Returns how the stale members of the group are removed.
+     * 
+     * @return How the stale members of the group are removed.
+     */
+    public synchronized ReapMode getReapMode() {
+        return myReapMode;
+    }
+
+    /**
+     * Returns the number of members garbage collected without being closed.
+     * 
+     * @return The number of members garbage collected without being closed.
+     */
+    public long getLeakedCount() {
+        return myLeakedCount.get();
+    }
+
+    /**
+     * Returns the root context for the {@code _id} of items in the group.
+     * 
+     * @return The root context for the {@code _id} of items in the group.
+     */
+    public String getRootContext() {
+        return myRootContext;
+    }
+
+    /**
+     * Returns the time after which a member without a heartbeat is stale.
+     * 
+     * @return The time after which a member without a heartbeat is stale in
+     *         milliseconds.
+     */
+    public long getSessionTimeoutMillis() {
+        return mySessionTimeoutMillis;
+    }
+
+    /**
+     * Returns the current membership of the group. The snapshot is maintained
+     * from the watcher's events and does not require a query.
+     * 
+     * @return The current membership of the group.
+     */
+    public GroupSnapshot getSnapshot() {
+        return mySnapshot;
+    }
+
+    /**
+     * Returns true if the context is currently a member of the group.
+     * 
+     * @param context
+     *            The context of the member, including the root context.
+     * @return True if the context is currently a member of the group.
+     */
+    public boolean isMember(final String context) {
+        return mySnapshot.contains(context);
+    }
+
+    /**
+     * Returns true if this process is the elected reaper for the group: it
+     * holds the live member with the lowest {@code _id}.
+     * 
+     * @return True if this process is the elected reaper for the group.
+     */
+    public boolean isReaper() {
+        final DocumentBuilder query = BuilderFactory.start();
+        query.add("_id", prefixPattern(myRootContext));
+        query.push("ts").add(GTE.getToken(),
+                new Date(myClock.currentTimeMillis() - mySessionTimeoutMillis));
+
+        final Find.Builder builder = new Find.Builder(query);
+        builder.setSort(BuilderFactory.start().add("_id", 1));
+        builder.setLimit(1);
+
+        final MongoIterator<Document> iter = myCollection.find(builder.build());
+        try {
+            if (iter.hasNext()) {
+                final String lowest = iter.next().get("_id")
+                        .getValueAsString();
+                final MemberReference ref = myMembers.get(lowest);
+                final GroupMember member = (ref != null) ? ref.get() : null;
+                return (member != null) && !member.isRemoved();
+            }
+        }
+        finally {
+            iter.close();
+        }
+        return false;
+    }
+
     /**
      * Removes a listener from the group.
      * 
@@ -150,6 +557,52 @@ public class GroupManager {
         myListeners.remove(listener);
     }
 
+    /**
+     * Removes a listener for the members of the group and their metadata.
+     * 
+     * @param listener
+     *            The listener to be removed.
+     */
+    public void removeMemberListener(final MemberListener listener) {
+        myMemberListeners.remove(listener);
+    }
+
+    /**
+     * Sends the heartbeat for this manager's members without waiting for the
+     * writes to complete. The leaked members are deleted and the members
+     * whose metadata has changed are updated individually.
+     * 
+     * @return The future for the number of members updated by the shared
+     *         heartbeat, not including the members whose metadata changed.
+     */
+    public Future<Long> heartbeatAsync() {
+        final List<String> heartbeats = new ArrayList<String>();
+        final Map<String, Document> metadata = new HashMap<String, Document>();
+        final List<String> removed = new ArrayList<String>();
+        collectHeartbeats(heartbeats, metadata, removed);
+
+        if (!removed.isEmpty()) {
+            myCollection.deleteAsync(new FutureCallback<Long>(),
+                    idQuery(removed), false, ACK);
+        }
+
+        for (final Map.Entry<String, Document> entry : metadata.entrySet()) {
+            myCollection.updateAsync(new MetadataCallback(entry.getKey()),
+                    BuilderFactory.start().add("_id", entry.getKey()),
+                    metadataUpdate(entry.getValue()), false, false, ACK);
+        }
+
+        final FutureCallback<Long> future = new FutureCallback<Long>();
+        if (!heartbeats.isEmpty()) {
+            myCollection.updateAsync(future, idQuery(heartbeats),
+                    heartbeatUpdate(), true, false, ACK);
+        }
+        else {
+            future.callback(Long.valueOf(0));
+        }
+        return future;
+    }
+
     /**
      * Restarts the GroupManager.
      */
@@ -158,15 +611,92 @@ public class GroupManager {
         start();
     }
 
+    /**
+     * Sets the coordinator for the heartbeats. Takes effect the next time the
+     * manager is started. The manager's heartbeat interval is not used while
+     * a coordinator sends the heartbeats.
+     * 
+     * @param coordinator
+     *            The new value for the coordinator for the heartbeats or
+     *            <code>null</code> to have the manager send its own
+     *            heartbeats.
+     */
+    public synchronized void setHeartbeatCoordinator(
+            final HeartbeatCoordinator coordinator) {
+        myCoordinator = coordinator;
+    }
+
+    /**
+     * Sets the interval between heartbeats. Takes effect the next time the
+     * manager is started.
+     * 
+     * @param heartbeatMillis
+     *            The new value for the interval between heartbeats in
+     *            milliseconds.
+     */
+    public synchronized void setHeartbeatMillis(final long heartbeatMillis) {
+        myHeartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Sets how the stale members of the group are removed. Takes effect the
+     * next time the manager is started.
+     * 
+     * @param reapMode
+     *            The new value for how the stale members of the group are
+     *            removed.
+     */
+    public synchronized void setReapMode(final ReapMode reapMode) {
+        myReapMode = reapMode;
+    }
+
+    /**
+     * Sets the time after which a member without a heartbeat is stale. Should
+     * be several heartbeat intervals. The TTL index for the
+     * {@link ReapMode#TTL_INDEX} mode is created the next time the manager
+     * is started.
+     * 
+     * @param sessionTimeoutMillis
+     *            The new value for the time after which a member without a
+     *            heartbeat is stale in milliseconds.
+     */
+    public void setSessionTimeoutMillis(final long sessionTimeoutMillis) {
+        mySessionTimeoutMillis = sessionTimeoutMillis;
+    }
+
     /**
      * Starts the GroupManager.
      */
     public synchronized void start() {
+        boolean load = false;
         if (myScheduledTask == null) {
-            myScheduledTask = myExecutor.scheduleAtFixedRate(
-                    new PeriodicUpdateRunnable(), 1, 5, TimeUnit.SECONDS);
+            ensureIndexes();
+
+            synchronized (mySnapshotLock) {
+                mySnapshotTouched = new HashSet<String>();
+            }
+            load = true;
+
+            if (myCoordinator != null) {
+                myActiveCoordinator = myCoordinator;
+                myActiveCoordinator.register(this);
+
+                final long reap = Math.max(1, mySessionTimeoutMillis / 2);
+                myScheduledTask = myExecutor.scheduleAtFixedRate(
+                        new ReapRunnable(), reap, reap, TimeUnit.MILLISECONDS);
+            }
+            else {
+                myScheduledTask = myExecutor.scheduleAtFixedRate(
+                        new PeriodicUpdateRunnable(), myHeartbeatMillis,
+                        myHeartbeatMillis, TimeUnit.MILLISECONDS);
+            }
         }
         myWatcher.start();
+
+        // Load after the watcher starts so no change is missed.
+        if (load) {
+            loadSnapshot();
+        }
     }
 
     /**
@@ -177,76 +707,419 @@ public class GroupManager {
             myScheduledTask.cancel(false);
             myScheduledTask = null;
         }
+        if (myActiveCoordinator != null) {
+            myActiveCoordinator.unregister(this);
+            myActiveCoordinator = null;
+        }
         myWatcher.stop();
     }
 
     /**
-     * Notifies all of the listeners of the added or removed member.
+     * Creates the upsert for a new member.
+     * 
+     * @param metadata
+     *            The member's metadata. May be <code>null</code>.
+     * @return The upsert for the new member.
+     */
+    protected static DocumentBuilder memberUpdate(
+            final DocumentAssignable metadata) {
+        if (metadata != null) {
+            return metadataUpdate(metadata.asDocument());
+        }
+        return heartbeatUpdate();
+    }
+
+    /**
+     * Creates the update for a heartbeat.
+     * 
+     * @return The update for a heartbeat.
+     */
+    protected static DocumentBuilder heartbeatUpdate() {
+        final DocumentBuilder update = BuilderFactory.start();
+        update.push("$currentDate").add("ts", true);
+        return update;
+    }
+
+    /**
+     * Creates a query matching the {@code _id}s.
+     * 
+     * @param ids
+     *            The {@code _id}s to match.
+     * @return The query matching the {@code _id}s.
+     */
+    protected static DocumentBuilder idQuery(final List<String> ids) {
+        final DocumentBuilder query = BuilderFactory.start();
+        final ArrayBuilder in = query.push("_id").pushArray(IN.getToken());
+        for (final String id : ids) {
+            in.add(id);
+        }
+        return query;
+    }
+
+    /**
+     * Creates the update for a heartbeat that also sets a member's metadata.
+     * 
+     * @param metadata
+     *            The member's metadata.
+     * @return The update for the heartbeat.
+     */
+    protected static DocumentBuilder metadataUpdate(final Document metadata) {
+        final DocumentBuilder update = heartbeatUpdate();
+        update.push("$set").add(METADATA_FIELD, metadata);
+        return update;
+    }
+
+    /**
+     * Creates an anchored pattern that matches the {@code _id}s starting with
+     * the prefix. Only the regular expression meta-characters are escaped so
+     * the server can use the {@code _id} index to find the matches.
+     * 
+     * @param prefix
+     *            The prefix to match.
+     * @return The pattern matching the prefix.
+     */
+    protected static Pattern prefixPattern(final String prefix) {
+        final StringBuilder regex = new StringBuilder(prefix.length() + 8);
+        regex.append('^');
+        for (int i = 0; i < prefix.length(); ++i) {
+            final char c = prefix.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            regex.append(c);
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Creates a member with a cluster unique {@code _id}. The member is not
+     * yet tracked or written.
+     * 
+     * @param metadata
+     *            The member's metadata. May be <code>null</code>.
+     * @return The new member.
+     */
+    protected GroupMember createMember(final DocumentAssignable metadata) {
+        // Use ObjectId to get a cluster unique id.
+        final ObjectId id = new ObjectId();
+        final String context = myRootContext + id.toHexString();
+
+        return new GroupMember(context, myCollection, metadata, this);
+    }
+
+    /**
+     * Creates the index on the {@code ts} field used to find the stale
+     * members. For the {@link ReapMode#TTL_INDEX} mode the index is a TTL
+     * index named {@link #TTL_INDEX_NAME} that removes the stale members.
+     * The server rejects a second index on the same keys with different
+     * options so the index for the other mode is dropped first, and a TTL
+     * index with a different timeout is replaced.
+     */
+    protected void ensureIndexes() {
+        if (myReapMode == ReapMode.TTL_INDEX) {
+            dropIndex(TS_INDEX_NAME);
+
+            final DocumentBuilder options = BuilderFactory.start().add(
+                    "expireAfterSeconds",
+                    MILLISECONDS.toSeconds(mySessionTimeoutMillis));
+            try {
+                myCollection.createIndex(TTL_INDEX_NAME, options,
+                        Index.asc("ts"));
+            }
+            catch (final MongoDbException error) {
+                // The session timeout changed.
+                dropIndex(TTL_INDEX_NAME);
+                myCollection.createIndex(TTL_INDEX_NAME, options,
+                        Index.asc("ts"));
+            }
+        }
+        else {
+            dropIndex(TTL_INDEX_NAME);
+            myCollection.createIndex(Index.asc("ts"));
+        }
+    }
+
+    /**
+     * Drops an index from the group's collection if it exists.
+     * 
+     * @param name
+     *            The name of the index.
+     */
+    protected void dropIndex(final String name) {
+        try {
+            myCollection.dropIndex(name);
+        }
+        catch (final MongoDbException error) {
+            // The index does not exist.
+        }
+    }
+
+    /**
+     * Loads the current membership. Members changed by the watcher while
+     * loading keep the watcher's state.
+     */
+    protected void loadSnapshot() {
+        final Map<String, Document> members = findMemberMetadata();
+        synchronized (mySnapshotLock) {
+            GroupSnapshot snapshot = mySnapshot;
+            for (final Map.Entry<String, Document> member : members
+                    .entrySet()) {
+                if ((mySnapshotTouched == null)
+                        || !mySnapshotTouched.contains(member.getKey())) {
+                    snapshot = snapshot.add(member.getKey(),
+                            member.getValue());
+                }
+            }
+            mySnapshot = snapshot;
+            mySnapshotTouched = null;
+        }
+    }
+
+    /**
+     * Returns the metadata from a member's document or an insert's oplog
+     * payload.
+     * 
+     * @param member
+     *            The member's document.
+     * @return The member's metadata or <code>null</code> if the member has no
+     *         metadata.
+     */
+    protected Document metadata(final Document member) {
+        final DocumentElement metadata = member.get(DocumentElement.class,
+                METADATA_FIELD);
+        return (metadata != null) ? metadata.getDocument() : null;
+    }
+
+    /**
+     * Notifies all of the listeners of the added, updated or removed member.
      * 
      * @param op
      *            The operation.
      * @param context
      *            The context of the member.
+     * @param metadata
+     *            The member's metadata. Null for a removed member.
      */
-    protected void notifyListeners(final Operation op, final String context) {
+    protected void notifyListeners(final Operation op, final String context,
+            final Document metadata) {
+        updateSnapshot(op, context, metadata);
+
         for (final GroupListener listener : myListeners) {
             if (op == DELETE) {
                 listener.memberRemoved(context);
             }
-            else {
+            else if (op == INSERT) {
                 listener.memberAdded(context);
             }
         }
+        for (final MemberListener listener : myMemberListeners) {
+            if (op == DELETE) {
+                listener.memberRemoved(context);
+            }
+            else if (op == INSERT) {
+                listener.memberAdded(context, metadata);
+            }
+            else {
+                listener.memberUpdated(context, metadata);
+            }
+        }
+    }
+
+    /**
+     * Collects the members to send a heartbeat for and the leaked members to
+     * delete because they were garbage collected without being closed.
+     * Members whose
+     * metadata has changed are collected with their metadata so the metadata
+     * is written with the heartbeat.
+     * 
+     * @param heartbeats
+     *            Receives the {@code _id}s of the members to send a heartbeat
+     *            for.
+     * @param metadata
+     *            Receives the changed metadata of the members to send a
+     *            heartbeat with metadata for, keyed by {@code _id}.
+     * @param removed
+     *            Receives the {@code _id}s of the members to delete.
+     */
+    protected void collectHeartbeats(final List<String> heartbeats,
+            final Map<String, Document> metadata, final List<String> removed) {
+        MemberReference leaked = (MemberReference) myLeakQueue.poll();
+        while (leaked != null) {
+            if (myMembers.remove(leaked.getId(), leaked)) {
+                memberLeaked(leaked.getId());
+                removed.add(leaked.getId());
+            }
+            leaked = (MemberReference) myLeakQueue.poll();
+        }
+
+        for (final MemberReference ref : myMembers.values()) {
+            // A collected member not yet queued is reported next time and a
+            // closed member is being removed from the map.
+            final GroupMember member = ref.get();
+            if ((member != null) && !member.isRemoved()) {
+                final Document changed = member.takeChangedMetadata();
+                if (changed != null) {
+                    metadata.put(member.getId(), changed);
+                }
+                else {
+                    heartbeats.add(member.getId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops tracking a member that has been closed or removed. The member
+     * deletes its own document.
+     * 
+     * @param member
+     *            The member closed.
+     */
+    protected void memberClosed(final GroupMember member) {
+        final MemberReference ref = myMembers.remove(member.getId());
+        if (ref != null) {
+            // Nothing left to report if the member is collected.
+            ref.clear();
+        }
+    }
+
+    /**
+     * Marks a member's metadata as changed again after its write failed so
+     * the next heartbeat retries it.
+     * 
+     * @param context
+     *            The context of the member.
+     */
+    protected void metadataWriteFailed(final String context) {
+        final MemberReference ref = myMembers.get(context);
+        final GroupMember member = (ref != null) ? ref.get() : null;
+        if (member != null) {
+            member.metadataWriteFailed();
+        }
+    }
+
+    /**
+     * Reports a member that was garbage collected without being closed.
+     * 
+     * @param context
+     *            The context of the member leaked.
+     */
+    protected void memberLeaked(final String context) {
+        myLeakedCount.incrementAndGet();
+        LOG.log(Level.WARNING, "Group member {0} was garbage collected "
+                + "without being closed. Close members when they leave "
+                + "the group.", context);
+    }
+
+    /**
+     * Deletes the members of the group whose heartbeat is stale if this
+     * process is responsible for removing them.
+     */
+    protected void reapIfResponsible() {
+        final ReapMode mode = getReapMode();
+        if ((mode == ReapMode.ALL)
+                || ((mode == ReapMode.ELECTED) && isReaper())) {
+            reapStaleMembers();
+        }
     }
 
     /**
      * Updates the active members as still being here and deletes inactive
-     * members.
+     * members. The writes are sent asynchronously so a slow server does not
+     * hold up the executor; only the check for the elected reaper waits for
+     * a reply.
      */
     protected void updateMembers() {
-        boolean haveUpdate = false;
-        boolean haveRemove = false;
-
-        final DocumentBuilder removeQuery = BuilderFactory.start();
-        final ArrayBuilder removeIds = removeQuery.push("_id").pushArray(
-                IN.getToken());
-
-        final DocumentBuilder updateQuery = BuilderFactory.start();
-        final ArrayBuilder updateIds = updateQuery.push("_id").pushArray(
-                IN.getToken());
-
-        for (final Map.Entry<String, WeakReference<GroupMember>> entry : myMembers
-                .entrySet()) {
-            final GroupMember member = entry.getValue().get();
-            if ((member == null) || member.isRemoved()) {
-                removeIds.add(entry.getKey());
-                haveRemove = true;
-                myMembers.remove(entry.getKey());
+        heartbeatAsync();
+
+        // Now delete the stale members.
+        reapIfResponsible();
+    }
+
+    /**
+     * Deletes the members of the group whose heartbeat is stale. The delete
+     * is scoped to the group's {@code _id} prefix.
+     */
+    protected void reapStaleMembers() {
+        final DocumentBuilder query = BuilderFactory.start();
+        query.add("_id", prefixPattern(myRootContext));
+        query.push("ts").add(LT.getToken(),
+                new Date(myClock.currentTimeMillis() - mySessionTimeoutMillis));
+
+        myCollection.deleteAsync(new FutureCallback<Long>(), query, false,
+                ACK);
+    }
+
+    /**
+     * Applies an added, updated or removed member to the membership snapshot.
+     * 
+     * @param op
+     *            The operation.
+     * @param context
+     *            The context of the member.
+     * @param metadata
+     *            The member's metadata. Null for a removed member.
+     */
+    protected void updateSnapshot(final Operation op, final String context,
+            final Document metadata) {
+        synchronized (mySnapshotLock) {
+            if (mySnapshotTouched != null) {
+                mySnapshotTouched.add(context);
+            }
+            if (op == DELETE) {
+                mySnapshot = mySnapshot.remove(context);
             }
             else {
-                updateIds.add(member.getId());
-                haveUpdate = true;
+                mySnapshot = mySnapshot.add(context, metadata);
             }
         }
+    }
+
+    /**
+     * AddMemberCallback provides the callback for the write adding a member
+     * that completes the member's future.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class AddMemberCallback implements Callback<Long> {
+
+        /** The future for the member. */
+        private final FutureCallback<GroupMember> myFuture;
+
+        /** The member being added. */
+        private final GroupMember myMember;
 
-        if (haveRemove) {
-            myCollection.delete(removeQuery, false, ACK);
+        /**
+         * Creates a new AddMemberCallback.
+         * 
+         * @param member
+         *            The member being added.
+         * @param future
+         *            The future for the member.
+         */
+        public AddMemberCallback(final GroupMember member,
+                final FutureCallback<GroupMember> future) {
+            myMember = member;
+            myFuture = future;
         }
 
-        if (haveUpdate) {
-            DocumentBuilder update = BuilderFactory.start();
-            update.push("$set").add("ts", new Date());
-            myCollection.update(updateQuery, update, true, false, ACK);
+        @Override
+        public void callback(final Long result) {
+            myFuture.callback(myMember);
         }
 
-        // Now delete the stale members.
-        myCollection.delete(where("ts").lessThanTimestamp(
-                System.currentTimeMillis() - SECONDS.toMillis(30)));
+        @Override
+        public void exception(final Throwable thrown) {
+            // Stop the heartbeats for the member that never joined.
+            myMember.markRemoved();
+            myFuture.exception(thrown);
+        }
     }
 
     /**
      * GroupWatchListener provides the adapter from a {@link WatchListener} to
-     * the GroupListeners.
+     * the GroupListeners. Updates are only passed on if they set the member's
+     * metadata; the heartbeats are ignored.
      * 
      * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
      */
@@ -254,9 +1127,88 @@ public class GroupManager {
         @Override
         public void changed(final Operation op, final String context,
                 final Document document) {
-            if (op != UPDATE) {
-                notifyListeners(op, context);
+            if (op == DELETE) {
+                notifyListeners(op, context, null);
+            }
+            else if (op == INSERT) {
+                notifyListeners(op, context, metadata(document));
             }
+            else {
+                final Element metadata = document.findFirst("$set",
+                        METADATA_FIELD);
+                if (metadata instanceof DocumentElement) {
+                    notifyListeners(op, context,
+                            ((DocumentElement) metadata).getDocument());
+                }
+            }
+        }
+    }
+
+    /**
+     * MemberReference provides the weak reference to a member, queued if the
+     * member is garbage collected without being closed.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class MemberReference extends
+            WeakReference<GroupMember> {
+
+        /** The context/{@code _id} of the member. */
+        private final String myId;
+
+        /**
+         * Creates a new MemberReference.
+         * 
+         * @param member
+         *            The member.
+         * @param queue
+         *            The queue for the members garbage collected.
+         */
+        public MemberReference(final GroupMember member,
+                final ReferenceQueue<GroupMember> queue) {
+            super(member, queue);
+            myId = member.getId();
+        }
+
+        /**
+         * Returns the context/{@code _id} of the member.
+         * 
+         * @return The context/{@code _id} of the member.
+         */
+        public String getId() {
+            return myId;
+        }
+    }
+
+    /**
+     * MetadataCallback provides the callback for a member's metadata write,
+     * retrying the write with the next heartbeat if it fails.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class MetadataCallback implements Callback<Long> {
+
+        /** The context/{@code _id} of the member. */
+        private final String myId;
+
+        /**
+         * Creates a new MetadataCallback.
+         * 
+         * @param id
+         *            The context/{@code _id} of the member.
+         */
+        public MetadataCallback(final String id) {
+            myId = id;
+        }
+
+        @Override
+        public void callback(final Long result) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            metadataWriteFailed(myId);
         }
     }
 
@@ -269,7 +1221,30 @@ public class GroupManager {
     protected final class PeriodicUpdateRunnable implements Runnable {
         @Override
         public void run() {
-            updateMembers();
+            try {
+                updateMembers();
+            }
+            catch (final MongoDbException error) {
+                // Try again next interval.
+            }
+        }
+    }
+
+    /**
+     * ReapRunnable provides a {@link Runnable} to periodically delete the
+     * stale members when a {@link HeartbeatCoordinator} sends the heartbeats.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class ReapRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                reapIfResponsible();
+            }
+            catch (final MongoDbException error) {
+                // Try again next interval.
+            }
         }
     }
 
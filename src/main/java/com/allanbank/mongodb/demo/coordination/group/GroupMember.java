@@ -5,16 +5,37 @@
 
 package com.allanbank.mongodb.demo.coordination.group;
 
+import java.io.Closeable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.FutureCallback;
 import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.DocumentAssignable;
 import com.allanbank.mongodb.bson.builder.BuilderFactory;
 
 /**
  * GroupMember provides a representation of a group member.
+ * <p>
+ * A member may carry a metadata document (e.g., the host, port, weight and
+ * load of the service it represents). The metadata is stored in the
+ * {@value GroupManager#METADATA_FIELD} field of the member's document and is
+ * delivered to the {@link MemberListener}s of every process watching the
+ * group. Changes to the metadata are written with the member's next
+ * heartbeat rather than with a separate update.
+ * </p>
+ * <p>
+ * A member must be closed (or removed) when it leaves the group. Closing
+ * stops its heartbeats and deletes its document immediately, without
+ * waiting for the delete to complete. A member that is garbage collected
+ * without being closed is reported by its {@link GroupManager} as leaked.
+ * </p>
  * 
  * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
  */
-public class GroupMember {
+public class GroupMember implements Closeable {
 
     /** The context/{@code _id} for the group member. */
     private final String myId;
@@ -22,8 +43,17 @@ public class GroupMember {
     /** The collection containing the group members. */
     private final MongoCollection myCollection;
 
+    /** The manager tracking the member. May be <code>null</code>. */
+    private final GroupManager myManager;
+
+    /** The member's metadata. May be <code>null</code>. */
+    private volatile Document myMetadata;
+
+    /** True if the metadata has changed since it was last written. */
+    private boolean myMetadataChanged;
+
     /** Set to true when the member is removed. */
-    private boolean myRemoved;
+    private final AtomicBoolean myRemoved;
 
     /**
      * Creates a new GroupMember.
@@ -34,10 +64,58 @@ public class GroupMember {
      *            The collection containing the group members.
      */
     public GroupMember(String id, MongoCollection collection) {
+        this(id, collection, null);
+    }
+
+    /**
+     * Creates a new GroupMember.
+     * 
+     * @param id
+     *            The context/{@code _id} for the group member.
+     * @param collection
+     *            The collection containing the group members.
+     * @param metadata
+     *            The member's initial metadata. May be <code>null</code>.
+     */
+    public GroupMember(String id, MongoCollection collection,
+            DocumentAssignable metadata) {
+        this(id, collection, metadata, null);
+    }
+
+    /**
+     * Creates a new GroupMember.
+     * 
+     * @param id
+     *            The context/{@code _id} for the group member.
+     * @param collection
+     *            The collection containing the group members.
+     * @param metadata
+     *            The member's initial metadata. May be <code>null</code>.
+     * @param manager
+     *            The manager tracking the member. May be <code>null</code>.
+     */
+    protected GroupMember(String id, MongoCollection collection,
+            DocumentAssignable metadata, GroupManager manager) {
         myId = id;
         myCollection = collection;
+        myManager = manager;
+        myMetadata = (metadata != null) ? metadata.asDocument() : null;
+
+        myMetadataChanged = false;
+        myRemoved = new AtomicBoolean(false);
+    }
 
-        myRemoved = false;
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to stop the member's heartbeats and delete its document
+     * without waiting for the delete to complete. Closing a member more than
+     * once has no effect.
+     * </p>
+     */
+    @Override
+    public void close() {
+        removeAsync();
     }
 
     /**
@@ -50,15 +128,38 @@ public class GroupMember {
     }
 
     /**
-     * Returns the id of the member.
+     * Returns the member's metadata.
      * 
-     * @return The id of the member.
+     * @return The member's metadata or <code>null</code> if the member has no
+     *         metadata.
+     */
+    public Document getMetadata() {
+        return myMetadata;
+    }
+
+    /**
+     * Sets the member's metadata. The metadata is written with the member's
+     * next heartbeat.
+     * 
+     * @param metadata
+     *            The new value for the member's metadata.
      */
-    public synchronized boolean remove() {
-        if (!myRemoved) {
+    public synchronized void setMetadata(DocumentAssignable metadata) {
+        myMetadata = (metadata != null) ? metadata.asDocument() : null;
+        myMetadataChanged = true;
+    }
+
+    /**
+     * Removes the member from the group, waiting for its document to be
+     * deleted.
+     * 
+     * @return True if the member was removed, false if it had already been
+     *         removed or closed.
+     */
+    public boolean remove() {
+        if (markRemoved()) {
             myCollection.delete(BuilderFactory.start().add("_id", myId),
                     Durability.ACK);
-            myRemoved = true;
 
             return true;
         }
@@ -67,11 +168,72 @@ public class GroupMember {
     }
 
     /**
-     * Returns true if the member has been manually removed.
+     * Removes the member from the group without waiting for its document to
+     * be deleted. The member's heartbeats stop at once.
      * 
-     * @return True if the member has been manually removed.
+     * @return The future for the number of documents deleted. Completes with
+     *         zero if the member had already been removed or closed.
+     */
+    public Future<Long> removeAsync() {
+        final FutureCallback<Long> future = new FutureCallback<Long>();
+        if (markRemoved()) {
+            myCollection.deleteAsync(future,
+                    BuilderFactory.start().add("_id", myId), true,
+                    Durability.ACK);
+        }
+        else {
+            future.callback(Long.valueOf(0));
+        }
+        return future;
+    }
+
+    /**
+     * Returns true if the member has been removed or closed.
+     * 
+     * @return True if the member has been removed or closed.
      */
     public boolean isRemoved() {
-        return myRemoved;
+        return myRemoved.get();
+    }
+
+    /**
+     * Marks the member as removed and stops its heartbeats.
+     * 
+     * @return True if the member was marked as removed, false if it had
+     *         already been removed.
+     */
+    protected boolean markRemoved() {
+        if (myRemoved.compareAndSet(false, true)) {
+            if (myManager != null) {
+                myManager.memberClosed(this);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks the metadata as changed again after its write failed so the next
+     * heartbeat retries it.
+     */
+    protected synchronized void metadataWriteFailed() {
+        myMetadataChanged = true;
+    }
+
+    /**
+     * Returns the metadata if it has changed since it was last written and
+     * marks it as written. Call {@link #metadataWriteFailed()} if the write
+     * fails.
+     * 
+     * @return The changed metadata, an empty document if the metadata was
+     *         cleared or <code>null</code> if the metadata has not changed.
+     */
+    protected synchronized Document takeChangedMetadata() {
+        if (myMetadataChanged) {
+            myMetadataChanged = false;
+            return (myMetadata != null) ? myMetadata : BuilderFactory.start()
+                    .build();
+        }
+        return null;
     }
 }
@@ -0,0 +1,247 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.allanbank.mongodb.bson.Document;
+
+/**
+ * GroupSnapshot provides an immutable view of the members of a group at a
+ * point in time. Each change to the membership seen by the
+ * {@link GroupManager} produces a new snapshot with a higher version so
+ * callers can cheaply tell if the membership has changed.
+ * <p>
+ * The snapshot also holds each member's metadata so callers can route to
+ * the members (e.g., by weight or load) from the local view.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class GroupSnapshot {
+
+    /** The empty snapshot. */
+    public static final GroupSnapshot EMPTY = new GroupSnapshot(0,
+            Collections.<String> emptySet());
+
+    /**
+     * Creates a map of the members to <code>null</code> metadata.
+     * 
+     * @param members
+     *            The contexts of the members.
+     * @return The map of the members to <code>null</code> metadata.
+     */
+    private static Map<String, Document> toMap(
+            final Collection<String> members) {
+        final Map<String, Document> map = new TreeMap<String, Document>();
+        for (final String member : members) {
+            map.put(member, null);
+        }
+        return map;
+    }
+
+    /** The contexts of the members, sorted. */
+    private final List<String> myMemberList;
+
+    /** The contexts of the members. */
+    private final Set<String> myMembers;
+
+    /** The metadata for each member, keyed by context. */
+    private final SortedMap<String, Document> myMetadata;
+
+    /** The version of the snapshot. */
+    private final long myVersion;
+
+    /**
+     * Creates a new GroupSnapshot.
+     * 
+     * @param version
+     *            The version of the snapshot.
+     * @param members
+     *            The contexts of the members. Copied.
+     */
+    public GroupSnapshot(final long version, final Collection<String> members) {
+        this(version, toMap(members));
+    }
+
+    /**
+     * Creates a new GroupSnapshot.
+     * 
+     * @param version
+     *            The version of the snapshot.
+     * @param metadata
+     *            The metadata for each member, keyed by context. Values may
+     *            be <code>null</code>. Copied.
+     */
+    public GroupSnapshot(final long version,
+            final Map<String, Document> metadata) {
+        final SortedMap<String, Document> sorted = new TreeMap<String, Document>(
+                metadata);
+
+        myVersion = version;
+        myMetadata = Collections.unmodifiableSortedMap(sorted);
+        myMembers = myMetadata.keySet();
+        myMemberList = Collections.unmodifiableList(new ArrayList<String>(
+                sorted.keySet()));
+    }
+
+    /**
+     * Returns a snapshot with the member added.
+     * 
+     * @param context
+     *            The context of the member to add.
+     * @return The new snapshot or this snapshot if the context is already a
+     *         member.
+     */
+    public GroupSnapshot add(final String context) {
+        if (myMembers.contains(context)) {
+            return this;
+        }
+        return add(context, null);
+    }
+
+    /**
+     * Returns a snapshot with the member added or its metadata replaced.
+     * 
+     * @param context
+     *            The context of the member to add.
+     * @param metadata
+     *            The member's metadata. May be <code>null</code>.
+     * @return The new snapshot or this snapshot if the context is already a
+     *         member with the same metadata.
+     */
+    public GroupSnapshot add(final String context, final Document metadata) {
+        if (myMembers.contains(context)) {
+            final Document current = myMetadata.get(context);
+            if ((current == null) ? (metadata == null) : current
+                    .equals(metadata)) {
+                return this;
+            }
+        }
+        final Map<String, Document> members = new TreeMap<String, Document>(
+                myMetadata);
+        members.put(context, metadata);
+        return new GroupSnapshot(myVersion + 1, members);
+    }
+
+    /**
+     * Returns true if the context is a member of the group.
+     * 
+     * @param context
+     *            The context of the member, including the root context.
+     * @return True if the context is a member of the group.
+     */
+    public boolean contains(final String context) {
+        return myMembers.contains(context);
+    }
+
+    /**
+     * Returns the contexts of the members in sorted order.
+     * 
+     * @return The contexts of the members in sorted order.
+     */
+    public List<String> getMembers() {
+        return myMemberList;
+    }
+
+    /**
+     * Returns the metadata for a member.
+     * 
+     * @param context
+     *            The context of the member.
+     * @return The member's metadata or <code>null</code> if the member has no
+     *         metadata or is not a member.
+     */
+    public Document getMetadata(final String context) {
+        return myMetadata.get(context);
+    }
+
+    /**
+     * Returns the metadata for all of the members, sorted by context.
+     * 
+     * @return The metadata for all of the members. Values may be
+     *         <code>null</code>.
+     */
+    public SortedMap<String, Document> getMetadata() {
+        return myMetadata;
+    }
+
+    /**
+     * Returns the version of the snapshot.
+     * 
+     * @return The version of the snapshot.
+     */
+    public long getVersion() {
+        return myVersion;
+    }
+
+    /**
+     * Returns the index of the member in the sorted members.
+     * 
+     * @param context
+     *            The context of the member.
+     * @return The index of the member or -1 if not a member.
+     */
+    public int indexOf(final String context) {
+        final int index = Collections.binarySearch(myMemberList, context);
+        return (index < 0) ? -1 : index;
+    }
+
+    /**
+     * Returns a snapshot with the member removed.
+     * 
+     * @param context
+     *            The context of the member to remove.
+     * @return The new snapshot or this snapshot if the context is not a
+     *         member.
+     */
+    public GroupSnapshot remove(final String context) {
+        if (!myMembers.contains(context)) {
+            return this;
+        }
+        final Map<String, Document> members = new TreeMap<String, Document>(
+                myMetadata);
+        members.remove(context);
+        return new GroupSnapshot(myVersion + 1, members);
+    }
+
+    /**
+     * Returns the number of members.
+     * 
+     * @return The number of members.
+     */
+    public int size() {
+        return myMemberList.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to return the version and members.
+     * </p>
+     */
+    @Override
+    public String toString() {
+        return "v" + myVersion + " " + myMemberList;
+    }
+}
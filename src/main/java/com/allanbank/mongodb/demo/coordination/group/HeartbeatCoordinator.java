@@ -0,0 +1,426 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.allanbank.mongodb.Callback;
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+
+/**
+ * HeartbeatCoordinator sends the heartbeats for many {@link GroupManager}s.
+ * Each interval the members of all of the registered managers that use the
+ * same collection are updated with a single multi-document update and the
+ * removed members are deleted with a single delete. The writes are sent
+ * asynchronously so a slow server does not hold up the executor.
+ * <p>
+ * A process should create one coordinator and share it between all of its
+ * managers via {@link GroupManager#setHeartbeatCoordinator}. The number of
+ * heartbeat writes then depends on the number of collections rather than the
+ * number of groups joined. Members whose metadata has changed are still
+ * updated individually, with their heartbeat.
+ * </p>
+ * <p>
+ * The interval should be well below the session timeout of every registered
+ * manager.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class HeartbeatCoordinator {
+
+    /** The durability for the heartbeat writes. */
+    private Durability myDurability;
+
+    /** Used to send the heartbeats. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The number of heartbeat writes that failed. */
+    private final AtomicLong myFailureCount;
+
+    /** The interval between heartbeats in milliseconds. */
+    private long myHeartbeatMillis;
+
+    /** The registered managers. */
+    private final CopyOnWriteArrayList<GroupManager> myManagers;
+
+    /** The scheduled task for sending the heartbeats. */
+    private ScheduledFuture<?> myScheduledTask;
+
+    /** The number of heartbeat writes sent. */
+    private final AtomicLong myWriteCount;
+
+    /**
+     * Creates a new HeartbeatCoordinator.
+     * 
+     * @param executor
+     *            Used to send the heartbeats.
+     */
+    public HeartbeatCoordinator(final ScheduledExecutorService executor) {
+        myExecutor = executor;
+
+        myDurability = Durability.ACK;
+        myHeartbeatMillis = GroupManager.DEFAULT_HEARTBEAT_MILLIS;
+
+        myManagers = new CopyOnWriteArrayList<GroupManager>();
+        myFailureCount = new AtomicLong(0);
+        myWriteCount = new AtomicLong(0);
+        myScheduledTask = null;
+    }
+
+    /**
+     * Returns the durability for the heartbeat writes.
+     * 
+     * @return The durability for the heartbeat writes.
+     */
+    public synchronized Durability getDurability() {
+        return myDurability;
+    }
+
+    /**
+     * Returns the number of heartbeat writes that failed.
+     * 
+     * @return The number of heartbeat writes that failed.
+     */
+    public long getFailureCount() {
+        return myFailureCount.get();
+    }
+
+    /**
+     * Returns the interval between heartbeats.
+     * 
+     * @return The interval between heartbeats in milliseconds.
+     */
+    public synchronized long getHeartbeatMillis() {
+        return myHeartbeatMillis;
+    }
+
+    /**
+     * Returns the number of heartbeat writes sent.
+     * 
+     * @return The number of heartbeat writes sent.
+     */
+    public long getWriteCount() {
+        return myWriteCount.get();
+    }
+
+    /**
+     * Sends the heartbeats for all of the registered managers.
+     */
+    public void heartbeat() {
+        final Map<String, CollectionBatch> batches = new LinkedHashMap<String, CollectionBatch>();
+        for (final GroupManager manager : myManagers) {
+            final MongoCollection collection = manager.getCollection();
+            final String name = collection.getDatabaseName() + "."
+                    + collection.getName();
+
+            CollectionBatch batch = batches.get(name);
+            if (batch == null) {
+                batch = new CollectionBatch(collection);
+                batches.put(name, batch);
+            }
+            manager.collectHeartbeats(batch.getHeartbeats(),
+                    batch.getMetadata(), batch.getRemoved());
+            for (final String id : batch.getMetadata().keySet()) {
+                if (!batch.getOwners().containsKey(id)) {
+                    batch.getOwners().put(id, manager);
+                }
+            }
+        }
+
+        final Durability durability = getDurability();
+        for (final CollectionBatch batch : batches.values()) {
+            send(batch, durability);
+        }
+    }
+
+    /**
+     * Registers a manager to have its heartbeats sent. Called by the
+     * {@link GroupManager} when it is started.
+     * 
+     * @param manager
+     *            The manager to register.
+     */
+    public void register(final GroupManager manager) {
+        myManagers.addIfAbsent(manager);
+    }
+
+    /**
+     * Sets the durability for the heartbeat writes.
+     * 
+     * @param durability
+     *            The new value for the durability for the heartbeat writes.
+     */
+    public synchronized void setDurability(final Durability durability) {
+        myDurability = durability;
+    }
+
+    /**
+     * Sets the interval between heartbeats. Takes effect the next time the
+     * coordinator is started.
+     * 
+     * @param heartbeatMillis
+     *            The new value for the interval between heartbeats in
+     *            milliseconds.
+     */
+    public synchronized void setHeartbeatMillis(final long heartbeatMillis) {
+        myHeartbeatMillis = heartbeatMillis;
+    }
+
+    /**
+     * Starts sending the heartbeats.
+     */
+    public synchronized void start() {
+        if (myScheduledTask == null) {
+            myScheduledTask = myExecutor.scheduleAtFixedRate(
+                    new HeartbeatRunnable(), myHeartbeatMillis,
+                    myHeartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops sending the heartbeats.
+     */
+    public synchronized void stop() {
+        if (myScheduledTask != null) {
+            myScheduledTask.cancel(false);
+            myScheduledTask = null;
+        }
+    }
+
+    /**
+     * Unregisters a manager. Called by the {@link GroupManager} when it is
+     * stopped.
+     * 
+     * @param manager
+     *            The manager to unregister.
+     */
+    public void unregister(final GroupManager manager) {
+        myManagers.remove(manager);
+    }
+
+    /**
+     * Sends the writes for a collection's members.
+     * 
+     * @param batch
+     *            The members of the collection.
+     * @param durability
+     *            The durability for the writes.
+     */
+    protected void send(final CollectionBatch batch,
+            final Durability durability) {
+        final MongoCollection collection = batch.getCollection();
+
+        if (!batch.getRemoved().isEmpty()) {
+            myWriteCount.incrementAndGet();
+            collection.deleteAsync(new HeartbeatCallback(),
+                    GroupManager.idQuery(batch.getRemoved()), false,
+                    durability);
+        }
+
+        for (final Map.Entry<String, Document> entry : batch.getMetadata()
+                .entrySet()) {
+            myWriteCount.incrementAndGet();
+            collection.updateAsync(new MetadataCallback(batch.getOwners()
+                    .get(entry.getKey()), entry.getKey()), BuilderFactory
+                    .start().add("_id", entry.getKey()),
+                    GroupManager.metadataUpdate(entry.getValue()), false,
+                    false, durability);
+        }
+
+        if (!batch.getHeartbeats().isEmpty()) {
+            myWriteCount.incrementAndGet();
+            collection.updateAsync(new HeartbeatCallback(),
+                    GroupManager.idQuery(batch.getHeartbeats()),
+                    GroupManager.heartbeatUpdate(), true, false, durability);
+        }
+    }
+
+    /**
+     * CollectionBatch provides the members of the registered managers that
+     * share a collection.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class CollectionBatch {
+
+        /** The collection holding the members. */
+        private final MongoCollection myCollection;
+
+        /** The {@code _id}s of the members to send a heartbeat for. */
+        private final List<String> myHeartbeats;
+
+        /** The changed metadata of the members, keyed by {@code _id}. */
+        private final Map<String, Document> myMetadata;
+
+        /**
+         * The managers of the members with changed metadata, keyed by
+         * {@code _id}.
+         */
+        private final Map<String, GroupManager> myOwners;
+
+        /** The {@code _id}s of the members to delete. */
+        private final List<String> myRemoved;
+
+        /**
+         * Creates a new CollectionBatch.
+         * 
+         * @param collection
+         *            The collection holding the members.
+         */
+        public CollectionBatch(final MongoCollection collection) {
+            myCollection = collection;
+            myHeartbeats = new ArrayList<String>();
+            myMetadata = new HashMap<String, Document>();
+            myOwners = new HashMap<String, GroupManager>();
+            myRemoved = new ArrayList<String>();
+        }
+
+        /**
+         * Returns the collection holding the members.
+         * 
+         * @return The collection holding the members.
+         */
+        public MongoCollection getCollection() {
+            return myCollection;
+        }
+
+        /**
+         * Returns the {@code _id}s of the members to send a heartbeat for.
+         * 
+         * @return The {@code _id}s of the members to send a heartbeat for.
+         */
+        public List<String> getHeartbeats() {
+            return myHeartbeats;
+        }
+
+        /**
+         * Returns the changed metadata of the members, keyed by {@code _id}.
+         * 
+         * @return The changed metadata of the members.
+         */
+        public Map<String, Document> getMetadata() {
+            return myMetadata;
+        }
+
+        /**
+         * Returns the managers of the members with changed metadata, keyed by
+         * {@code _id}.
+         * 
+         * @return The managers of the members with changed metadata.
+         */
+        public Map<String, GroupManager> getOwners() {
+            return myOwners;
+        }
+
+        /**
+         * Returns the {@code _id}s of the members to delete.
+         * 
+         * @return The {@code _id}s of the members to delete.
+         */
+        public List<String> getRemoved() {
+            return myRemoved;
+        }
+    }
+
+    /**
+     * HeartbeatCallback provides the callback for a heartbeat write.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class HeartbeatCallback implements Callback<Long> {
+        @Override
+        public void callback(final Long result) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            // The next interval sends the heartbeats again.
+            myFailureCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * MetadataCallback provides the callback for a member's metadata write,
+     * retrying the write with the next heartbeat if it fails.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class MetadataCallback implements Callback<Long> {
+
+        /** The context/{@code _id} of the member. */
+        private final String myId;
+
+        /** The manager of the member. */
+        private final GroupManager myManager;
+
+        /**
+         * Creates a new MetadataCallback.
+         * 
+         * @param manager
+         *            The manager of the member.
+         * @param id
+         *            The context/{@code _id} of the member.
+         */
+        public MetadataCallback(final GroupManager manager, final String id) {
+            myManager = manager;
+            myId = id;
+        }
+
+        @Override
+        public void callback(final Long result) {
+            // Nothing to do.
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            myFailureCount.incrementAndGet();
+            myManager.metadataWriteFailed(myId);
+        }
+    }
+
+    /**
+     * HeartbeatRunnable provides a {@link Runnable} to send the heartbeats
+     * each interval.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class HeartbeatRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                heartbeat();
+            }
+            catch (final RuntimeException error) {
+                // Try again next interval.
+                myFailureCount.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+import java.util.List;
+
+/**
+ * LeaderElection provides leader election within a group. The election joins
+ * the group and the member with the lowest {@code _id} is the leader. Since
+ * member ids are {@code ObjectId}s the leader is the longest lived member.
+ * <p>
+ * The leader is recomputed from the {@link GroupManager}'s membership
+ * snapshot each time the manager reports a member joining or leaving, so no
+ * polling is required. A leader that stops sending heartbeats loses the
+ * leadership once it is removed as a stale member.
+ * </p>
+ * <p>
+ * This process's own member is a candidate before the snapshot has reported
+ * it, so a new member does not wait for the watcher. Once the snapshot has
+ * reported the member, or if the member has been removed, only the snapshot
+ * is used. A member reaped by another process therefore loses the leadership
+ * even though it did not remove itself.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class LeaderElection {
+
+    /** The group the election is held in. */
+    private final GroupManager myGroupManager;
+
+    /** The context of the current leader. */
+    private String myLeader;
+
+    /** The listener for changes to the leader. */
+    private final LeaderListener myLeaderListener;
+
+    /** The listener for the members joining or leaving the group. */
+    private final GroupListener myListener;
+
+    /** This process's membership in the group. */
+    private GroupMember myMember;
+
+    /** True once the snapshot has reported this process's member. */
+    private boolean myMemberReported;
+
+    /**
+     * Creates a new LeaderElection.
+     * 
+     * @param groupManager
+     *            The group the election is held in. The caller is responsible
+     *            for starting the group manager.
+     * @param listener
+     *            The listener for changes to the leader. May be
+     *            <code>null</code>.
+     */
+    public LeaderElection(final GroupManager groupManager,
+            final LeaderListener listener) {
+        myGroupManager = groupManager;
+        myLeaderListener = listener;
+
+        myListener = new ElectionGroupListener();
+        myLeader = null;
+        myMember = null;
+        myMemberReported = false;
+    }
+
+    /**
+     * Returns the context of the current leader.
+     * 
+     * @return The context of the current leader or <code>null</code> if the
+     *         group has no members.
+     */
+    public synchronized String getLeader() {
+        return myLeader;
+    }
+
+    /**
+     * Returns true if this process's member is the leader.
+     * 
+     * @return True if this process's member is the leader.
+     */
+    public synchronized boolean isLeader() {
+        return (myMember != null) && myMember.getId().equals(myLeader);
+    }
+
+    /**
+     * Joins the group and takes part in the election.
+     */
+    public synchronized void start() {
+        if (myMember == null) {
+            myGroupManager.addListener(myListener);
+            myMember = myGroupManager.addMember();
+            myMemberReported = false;
+            elect();
+        }
+    }
+
+    /**
+     * Leaves the group, giving up the leadership if held.
+     */
+    public synchronized void stop() {
+        if (myMember != null) {
+            myGroupManager.removeListener(myListener);
+            myMember.remove();
+            myMember = null;
+            elect();
+        }
+    }
+
+    /**
+     * Recomputes the leader and notifies the listener if it changed.
+     */
+    protected void elect() {
+        final String leader;
+        final boolean isLeader;
+        synchronized (this) {
+            final List<String> members = myGroupManager.getSnapshot()
+                    .getMembers();
+
+            String lowest = members.isEmpty() ? null : members.get(0);
+            if (myMember != null) {
+                final String id = myMember.getId();
+                if (members.contains(id)) {
+                    myMemberReported = true;
+                }
+                else if (!myMemberReported && !myMember.isRemoved()) {
+                    // Our own member may not have been seen by the watcher
+                    // yet. Once reported, its absence means it was removed.
+                    if ((lowest == null) || (id.compareTo(lowest) < 0)) {
+                        lowest = id;
+                    }
+                }
+            }
+
+            if ((lowest == null) ? (myLeader == null) : lowest
+                    .equals(myLeader)) {
+                return;
+            }
+
+            myLeader = lowest;
+            leader = lowest;
+            isLeader = isLeader();
+        }
+
+        if (myLeaderListener != null) {
+            myLeaderListener.leaderChanged(leader, isLeader);
+        }
+    }
+
+    /**
+     * ElectionGroupListener provides the trigger to recompute the leader when
+     * the members of the group change.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class ElectionGroupListener implements GroupListener {
+        @Override
+        public void memberAdded(final String context) {
+            elect();
+        }
+
+        @Override
+        public void memberRemoved(final String context) {
+            elect();
+        }
+    }
+}
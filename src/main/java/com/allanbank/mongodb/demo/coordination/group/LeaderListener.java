@@ -0,0 +1,35 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+/**
+ * LeaderListener provides notification of changes to the leader of a group.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface LeaderListener {
+
+    /**
+     * Notification that the leader of the group has changed.
+     * 
+     * @param leader
+     *            The context of the new leader or <code>null</code> if the
+     *            group has no members.
+     * @param isLeader
+     *            True if this process's member is the new leader.
+     */
+    public void leaderChanged(String leader, boolean isLeader);
+}
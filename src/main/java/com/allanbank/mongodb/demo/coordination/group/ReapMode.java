@@ -0,0 +1,43 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+/**
+ * ReapMode provides an enumeration of how a {@link GroupManager} removes the
+ * stale members of a group, i.e., those that have stopped sending heartbeats.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public enum ReapMode {
+    /**
+     * Every process removes the stale members of the group on each heartbeat.
+     */
+    ALL,
+
+    /**
+     * Only the process holding the live member with the lowest {@code _id} in
+     * the group removes the stale members. Reaping moves to the next member
+     * automatically if that process stops sending heartbeats.
+     */
+    ELECTED,
+
+    /**
+     * No process removes the stale members. A TTL index on the {@code ts}
+     * field lets the server remove them. The TTL index applies to every group
+     * in the collection.
+     */
+    TTL_INDEX;
+}
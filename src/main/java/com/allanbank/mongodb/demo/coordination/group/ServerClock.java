@@ -0,0 +1,144 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.group;
+
+import java.util.concurrent.TimeUnit;
+
+import com.allanbank.mongodb.MongoDatabase;
+import com.allanbank.mongodb.MongoDbException;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.element.TimestampElement;
+
+/**
+ * ServerClock provides an estimate of the MongoDB server's current time so
+ * that liveness decisions compare server written timestamps against the
+ * server's clock instead of the local clock.
+ * <p>
+ * The offset between the local clock and the server's clock is measured with
+ * the {@code isMaster} command's {@code localTime} field, assuming the server
+ * read its clock half way through the round trip. The offset is refreshed
+ * periodically. If it cannot be measured the last offset (initially zero) is
+ * used.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class ServerClock {
+
+    /** The default time between measurements of the offset. */
+    public static final long DEFAULT_REFRESH_MILLIS = TimeUnit.MINUTES
+            .toMillis(1);
+
+    /** The database to run the {@code isMaster} command against. */
+    private final MongoDatabase myDatabase;
+
+    /** When the offset was last measured, from the local clock. */
+    private long myMeasured;
+
+    /** The server's clock minus the local clock in milliseconds. */
+    private volatile long myOffset;
+
+    /** The time between measurements of the offset in milliseconds. */
+    private long myRefreshMillis;
+
+    /**
+     * Creates a new ServerClock.
+     * 
+     * @param database
+     *            The database to run the {@code isMaster} command against.
+     */
+    public ServerClock(final MongoDatabase database) {
+        myDatabase = database;
+        myRefreshMillis = DEFAULT_REFRESH_MILLIS;
+        myOffset = 0;
+        myMeasured = Long.MIN_VALUE / 2;
+    }
+
+    /**
+     * Returns the estimated current time on the server, measuring the offset
+     * first if it is due.
+     * 
+     * @return The estimated current time on the server in milliseconds since
+     *         the epoch.
+     */
+    public long currentTimeMillis() {
+        final long now = System.currentTimeMillis();
+        synchronized (this) {
+            if ((myMeasured + myRefreshMillis) <= now) {
+                myMeasured = now;
+                measure();
+            }
+        }
+        return System.currentTimeMillis() + myOffset;
+    }
+
+    /**
+     * Returns the last measured offset of the server's clock from the local
+     * clock.
+     * 
+     * @return The server's clock minus the local clock in milliseconds.
+     */
+    public long getOffsetMillis() {
+        return myOffset;
+    }
+
+    /**
+     * Returns the time between measurements of the offset.
+     * 
+     * @return The time between measurements of the offset in milliseconds.
+     */
+    public synchronized long getRefreshMillis() {
+        return myRefreshMillis;
+    }
+
+    /**
+     * Measures the offset of the server's clock from the local clock.
+     * 
+     * @return True if the offset was measured.
+     */
+    public boolean measure() {
+        try {
+            final long start = System.currentTimeMillis();
+            final Document reply = myDatabase.runCommand(BuilderFactory
+                    .start().add("isMaster", 1));
+            final long end = System.currentTimeMillis();
+
+            final Element localTime = reply.get("localTime");
+            if (localTime instanceof TimestampElement) {
+                final long server = ((TimestampElement) localTime).getTime();
+                myOffset = server - ((start + end) / 2);
+                return true;
+            }
+        }
+        catch (final MongoDbException error) {
+            // Keep the last offset.
+        }
+        return false;
+    }
+
+    /**
+     * Sets the time between measurements of the offset.
+     * 
+     * @param refreshMillis
+     *            The new value for the time between measurements of the
+     *            offset in milliseconds.
+     */
+    public synchronized void setRefreshMillis(final long refreshMillis) {
+        myRefreshMillis = refreshMillis;
+    }
+}
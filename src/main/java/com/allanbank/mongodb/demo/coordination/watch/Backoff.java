@@ -0,0 +1,93 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Backoff provides a jittered, capped exponential backoff. Each consecutive
+ * failure doubles the delay up to the maximum. The delay returned is chosen
+ * uniformly between half and all of the current delay so that many clients
+ * failing at the same time do not retry in lock step.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class Backoff {
+
+    /** The number of consecutive failures. */
+    private final AtomicInteger myAttempts;
+
+    /** The delay after the first failure in milliseconds. */
+    private final long myInitialMillis;
+
+    /** The maximum delay in milliseconds. */
+    private final long myMaxMillis;
+
+    /** The source of the jitter. */
+    private final Random myRandom;
+
+    /**
+     * Creates a new Backoff.
+     * 
+     * @param initialMillis
+     *            The delay after the first failure in milliseconds.
+     * @param maxMillis
+     *            The maximum delay in milliseconds.
+     */
+    public Backoff(final long initialMillis, final long maxMillis) {
+        myInitialMillis = Math.max(1, initialMillis);
+        myMaxMillis = Math.max(myInitialMillis, maxMillis);
+        myAttempts = new AtomicInteger(0);
+        myRandom = new Random();
+    }
+
+    /**
+     * Returns the number of consecutive failures.
+     * 
+     * @return The number of consecutive failures.
+     */
+    public int getAttempts() {
+        return myAttempts.get();
+    }
+
+    /**
+     * Records a failure and returns the time to wait before trying again.
+     * 
+     * @return The time to wait before trying again in milliseconds.
+     */
+    public long nextDelayMillis() {
+        final int attempts = myAttempts.getAndIncrement();
+
+        long delay = myInitialMillis;
+        for (int i = 0; (i < attempts) && (delay < myMaxMillis); ++i) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, myMaxMillis);
+
+        final long half = delay / 2;
+        return half + (long) (myRandom.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Records a success, resetting the delay to the initial delay.
+     */
+    public void reset() {
+        if (myAttempts.get() != 0) {
+            myAttempts.set(0);
+        }
+    }
+}
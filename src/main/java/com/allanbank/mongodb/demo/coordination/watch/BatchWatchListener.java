@@ -0,0 +1,37 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.List;
+
+/**
+ * BatchWatchListener provides a callback for a batch of changed documents. A
+ * {@link Watcher} delivers each batch it drains from the oplog stream in a
+ * single call so that listeners writing to another store can apply the whole
+ * batch at once.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface BatchWatchListener {
+
+    /**
+     * Notification that a batch of documents changed.
+     * 
+     * @param events
+     *            The changes, in oplog order. Never empty.
+     */
+    public void changed(List<WatchEvent> events);
+}
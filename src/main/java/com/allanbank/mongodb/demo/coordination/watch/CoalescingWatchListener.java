@@ -0,0 +1,382 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+
+/**
+ * CoalescingWatchListener provides a {@link WatchListener} that holds the
+ * changes for a window and then delivers only the latest change to each
+ * document to the wrapped listener. An optional maximum rate limits the
+ * number of changes delivered per second; changes over the limit stay
+ * pending and continue to be coalesced until they are delivered. Rates below
+ * one change per window are honoured by carrying the unused part of each
+ * window's allowance into the next window.
+ * <p>
+ * Changes are delivered in the order each document first changed within the
+ * pending set, on the executor's thread.
+ * </p>
+ * <p>
+ * With the {@link DeliveryMode#OPLOG_PAYLOAD} mode an update's document may
+ * only hold the modifiers ({@code $set}, {@code $inc}, ...). Such an update
+ * cannot replace the pending version of the document, so it is kept and
+ * delivered after it. A later whole document or delete replaces them all.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class CoalescingWatchListener implements WatchListener {
+
+    /** The default time to hold changes before delivering them. */
+    public static final long DEFAULT_WINDOW_MILLIS = 100;
+
+    /** The number of changes replaced by a later change. */
+    private final AtomicLong myCoalescedCount;
+
+    /** The listener to deliver the coalesced changes to. */
+    private final WatchListener myDelegate;
+
+    /** The unused allowance of changes carried between windows. */
+    private double myCredit;
+
+    /** The number of changes delivered. */
+    private final AtomicLong myDeliveredCount;
+
+    /** Used to deliver the changes at the end of each window. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The maximum number of changes delivered per second or zero. */
+    private volatile int myMaxRate;
+
+    /** The latest change to each document, keyed by {@code _id}. */
+    private final Map<String, Change> myPending;
+
+    /** The scheduled task for delivering the changes. */
+    private ScheduledFuture<?> myScheduledTask;
+
+    /** The time to hold changes before delivering them. */
+    private long myWindowMillis;
+
+    /**
+     * Creates a new CoalescingWatchListener.
+     * 
+     * @param executor
+     *            Used to deliver the changes at the end of each window.
+     * @param delegate
+     *            The listener to deliver the coalesced changes to.
+     */
+    public CoalescingWatchListener(final ScheduledExecutorService executor,
+            final WatchListener delegate) {
+        myExecutor = executor;
+        myDelegate = delegate;
+
+        myPending = new LinkedHashMap<String, Change>();
+        myCoalescedCount = new AtomicLong(0);
+        myDeliveredCount = new AtomicLong(0);
+        myWindowMillis = DEFAULT_WINDOW_MILLIS;
+        myMaxRate = 0;
+        myCredit = 0;
+        myScheduledTask = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to replace any pending change to the document.
+     * </p>
+     */
+    @Override
+    public void changed(final Operation op, final String context,
+            final Document document) {
+        synchronized (myPending) {
+            final Change previous = myPending.get(context);
+            if (previous != null) {
+                if (previous.update(op, document)) {
+                    myCoalescedCount.incrementAndGet();
+                }
+            }
+            else {
+                myPending.put(context, new Change(op, context, document));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of changes replaced by a later change.
+     * 
+     * @return The number of changes replaced by a later change.
+     */
+    public long getCoalescedCount() {
+        return myCoalescedCount.get();
+    }
+
+    /**
+     * Returns the number of changes delivered.
+     * 
+     * @return The number of changes delivered.
+     */
+    public long getDeliveredCount() {
+        return myDeliveredCount.get();
+    }
+
+    /**
+     * Returns the maximum number of changes delivered per second.
+     * 
+     * @return The maximum number of changes delivered per second or zero for
+     *         no limit.
+     */
+    public int getMaxRate() {
+        return myMaxRate;
+    }
+
+    /**
+     * Returns the number of changes waiting to be delivered.
+     * 
+     * @return The number of changes waiting to be delivered.
+     */
+    public int getPendingCount() {
+        synchronized (myPending) {
+            return myPending.size();
+        }
+    }
+
+    /**
+     * Returns the time to hold changes before delivering them.
+     * 
+     * @return The time to hold changes before delivering them in
+     *         milliseconds.
+     */
+    public synchronized long getWindowMillis() {
+        return myWindowMillis;
+    }
+
+    /**
+     * Sets the maximum number of changes delivered per second.
+     * 
+     * @param maxRate
+     *            The new value for the maximum number of changes delivered
+     *            per second or zero for no limit.
+     */
+    public void setMaxRate(final int maxRate) {
+        myMaxRate = Math.max(0, maxRate);
+    }
+
+    /**
+     * Sets the time to hold changes before delivering them. Takes effect the
+     * next time the listener is started.
+     * 
+     * @param windowMillis
+     *            The new value for the time to hold changes before delivering
+     *            them in milliseconds.
+     */
+    public synchronized void setWindowMillis(final long windowMillis) {
+        myWindowMillis = windowMillis;
+    }
+
+    /**
+     * Starts delivering the changes at the end of each window.
+     */
+    public synchronized void start() {
+        if (myScheduledTask == null) {
+            myScheduledTask = myExecutor.scheduleWithFixedDelay(
+                    new DeliverRunnable(), myWindowMillis, myWindowMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops delivering the changes. Pending changes are kept.
+     */
+    public synchronized void stop() {
+        if (myScheduledTask != null) {
+            myScheduledTask.cancel(false);
+            myScheduledTask = null;
+        }
+    }
+
+    /**
+     * Delivers the pending changes, up to the number allowed by the maximum
+     * rate for one window plus the allowance carried from earlier windows.
+     */
+    protected void deliver() {
+        final int maxRate = myMaxRate;
+        final double allowance = (maxRate * getWindowMillis()) / 1000.0;
+
+        final List<Change> changes = new ArrayList<Change>();
+        synchronized (myPending) {
+            if (maxRate != 0) {
+                // Carry at most one window's allowance, or one change.
+                myCredit = Math.min(myCredit + allowance,
+                        Math.max(1.0, allowance));
+            }
+
+            final Iterator<Change> iter = myPending.values().iterator();
+            while (iter.hasNext() && ((maxRate == 0) || (1.0 <= myCredit))) {
+                final Change change = iter.next();
+                iter.remove();
+
+                changes.add(change);
+                if (maxRate != 0) {
+                    myCredit -= change.size();
+                }
+            }
+        }
+
+        for (final Change change : changes) {
+            deliver(change.myOperation, change.myContext, change.myDocument);
+            for (final Document update : change.myUpdates) {
+                deliver(Operation.UPDATE, change.myContext, update);
+            }
+        }
+    }
+
+    /**
+     * Delivers a change to the wrapped listener.
+     * 
+     * @param op
+     *            The operation on the document.
+     * @param context
+     *            The {@code _id} of the document.
+     * @param document
+     *            The document.
+     */
+    protected void deliver(final Operation op, final String context,
+            final Document document) {
+        try {
+            myDelegate.changed(op, context, document);
+        }
+        catch (final RuntimeException error) {
+            // A failing listener does not stop the delivery.
+        }
+        myDeliveredCount.incrementAndGet();
+    }
+
+    /**
+     * Change provides the latest change to a document. Only accessed holding
+     * the lock on the pending changes until removed.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class Change {
+
+        /** The {@code _id} of the document. */
+        protected final String myContext;
+
+        /** The latest version of the document. */
+        protected Document myDocument;
+
+        /** The latest operation on the document. */
+        protected Operation myOperation;
+
+        /** The modifier-only updates to deliver after the document. */
+        protected final List<Document> myUpdates;
+
+        /**
+         * Creates a new Change.
+         * 
+         * @param op
+         *            The operation on the document.
+         * @param context
+         *            The {@code _id} of the document.
+         * @param document
+         *            The document.
+         */
+        public Change(final Operation op, final String context,
+                final Document document) {
+            myOperation = op;
+            myContext = context;
+            myDocument = document;
+            myUpdates = new ArrayList<Document>(0);
+        }
+
+        /**
+         * Returns the number of changes delivered for the document.
+         * 
+         * @return The number of changes delivered for the document.
+         */
+        public int size() {
+            return 1 + myUpdates.size();
+        }
+
+        /**
+         * Replaces the change with a later change. An update holding only
+         * modifiers cannot replace the document and is kept instead.
+         * 
+         * @param op
+         *            The later operation on the document.
+         * @param document
+         *            The later version of the document.
+         * @return True if the later change replaced the pending change.
+         */
+        public boolean update(final Operation op, final Document document) {
+            if ((op == Operation.UPDATE) && isModifiers(document)) {
+                myUpdates.add(document);
+                return false;
+            }
+
+            // An insert followed by updates is still an insert to a listener
+            // that has not seen the document.
+            if ((myOperation != Operation.INSERT) || (op != Operation.UPDATE)) {
+                myOperation = op;
+            }
+            myDocument = document;
+            myUpdates.clear();
+            return true;
+        }
+
+        /**
+         * Returns true if the document only holds update modifiers.
+         * 
+         * @param document
+         *            The document to check.
+         * @return True if the document only holds update modifiers.
+         */
+        private boolean isModifiers(final Document document) {
+            if (document != null) {
+                for (final Element element : document) {
+                    if (element.getName().startsWith("$")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * DeliverRunnable provides a {@link Runnable} to deliver the pending
+     * changes at the end of each window.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class DeliverRunnable implements Runnable {
+        @Override
+        public void run() {
+            deliver();
+        }
+    }
+}
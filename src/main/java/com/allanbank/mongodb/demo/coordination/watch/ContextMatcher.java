@@ -0,0 +1,171 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.regex.Pattern;
+
+/**
+ * ContextMatcher provides a precompiled matcher for the {@code _id} context
+ * of a watched document. Patterns that are {@code ^} followed by a literal
+ * prefix (optionally followed by {@code .*}) are matched with
+ * {@link String#startsWith(String)}. The literal may escape meta-characters
+ * with a backslash or quote them with {@code \Q...\E}, as
+ * {@link Pattern#quote(String)} does. All other patterns use the compiled
+ * regular expression.
+ * <p>
+ * The pattern matches if it is found anywhere in the {@code _id}, as with
+ * {@link java.util.regex.Matcher#find()}, to agree with the server's
+ * unanchored {@code $regex}. Use {@code ^} and {@code $} to anchor it.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class ContextMatcher {
+
+    /** The regular expression meta-characters. */
+    private static final String META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    /**
+     * Creates a matcher for the pattern.
+     * 
+     * @param context
+     *            The pattern for the {@code _id} of the documents to match.
+     * @return The matcher for the pattern.
+     */
+    public static ContextMatcher compile(final Pattern context) {
+        final String regex = context.pattern();
+        if ((context.flags() == 0) && regex.startsWith("^")) {
+            final String prefix = literalPrefix(regex.substring(1));
+            if (prefix != null) {
+                return new ContextMatcher(context, prefix);
+            }
+        }
+        return new ContextMatcher(context, null);
+    }
+
+    /**
+     * Returns the literal matched by the regular expression if it only
+     * contains literal characters, meta-characters escaped with a backslash
+     * and {@code \Q...\E} quoted sections, optionally followed by a trailing
+     * {@code .*}.
+     * 
+     * @param regex
+     *            The regular expression, without the leading {@code ^}.
+     * @return The literal or <code>null</code> if the regular expression is
+     *         not a literal.
+     */
+    private static String literalPrefix(final String regex) {
+        final StringBuilder literal = new StringBuilder(regex.length());
+        int i = 0;
+        while (i < regex.length()) {
+            final char c = regex.charAt(i);
+            if (regex.startsWith("\\Q", i)) {
+                // Quoted to the next \E or the end of the expression.
+                int end = regex.indexOf("\\E", i + 2);
+                if (end < 0) {
+                    end = regex.length();
+                }
+                literal.append(regex, i + 2, end);
+                i = Math.min(end + 2, regex.length());
+            }
+            else if (c == '\\') {
+                // Escaped letters and digits are character classes,
+                // back references or control characters.
+                if (((i + 1) == regex.length())
+                        || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                literal.append(regex.charAt(i + 1));
+                i += 2;
+            }
+            else if (((i + 2) == regex.length()) && regex.startsWith(".*", i)) {
+                break;
+            }
+            else if (META_CHARACTERS.indexOf(c) >= 0) {
+                return null;
+            }
+            else {
+                literal.append(c);
+                i += 1;
+            }
+        }
+        return literal.toString();
+    }
+
+    /** The pattern for the contexts. */
+    private final Pattern myContext;
+
+    /** The literal prefix for the contexts or null if not a prefix pattern. */
+    private final String myPrefix;
+
+    /**
+     * Creates a new ContextMatcher.
+     * 
+     * @param context
+     *            The pattern for the contexts.
+     * @param prefix
+     *            The literal prefix for the contexts or <code>null</code> if
+     *            not a prefix pattern.
+     */
+    private ContextMatcher(final Pattern context, final String prefix) {
+        myContext = context;
+        myPrefix = prefix;
+    }
+
+    /**
+     * Returns the pattern for the contexts.
+     * 
+     * @return The pattern for the contexts.
+     */
+    public Pattern getContext() {
+        return myContext;
+    }
+
+    /**
+     * Returns the literal prefix for the contexts.
+     * 
+     * @return The literal prefix for the contexts or <code>null</code> if the
+     *         pattern is not a simple prefix.
+     */
+    public String getPrefix() {
+        return myPrefix;
+    }
+
+    /**
+     * Returns true if the pattern is found in the context.
+     * 
+     * @param context
+     *            The {@code _id} context of the document.
+     * @return True if the context matches.
+     */
+    public boolean matches(final String context) {
+        if (myPrefix != null) {
+            return context.startsWith(myPrefix);
+        }
+        return myContext.matcher(context).find();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to return the pattern.
+     * </p>
+     */
+    @Override
+    public String toString() {
+        return myContext.pattern();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+/**
+ * DeliveryMode provides an enumeration of what a {@link Watcher} hands to its
+ * {@link WatchListener} for each change.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public enum DeliveryMode {
+    /**
+     * The current version of the changed document is read from the collection.
+     * The document will be <code>null</code> if it has since been deleted.
+     */
+    FETCH_DOCUMENT,
+
+    /**
+     * The {@code o} field of the oplog entry is delivered without reading the
+     * collection. For an insert this is the inserted document. For an update
+     * this is the update document (e.g., <code>{ $set : { ... } }</code>) or
+     * the replacement document.
+     */
+    OPLOG_PAYLOAD;
+}
@@ -0,0 +1,133 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.element.MongoTimestampElement;
+
+/**
+ * FileResumeTokenStore provides a {@link ResumeTokenStore} that keeps the
+ * timestamps for all of the watchers in a local properties file. The file is
+ * rewritten to a temporary file and renamed over the original so a crash
+ * while saving does not lose the previous timestamps.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class FileResumeTokenStore implements ResumeTokenStore {
+
+    /** The file holding the timestamps. */
+    private final File myFile;
+
+    /** The timestamps for the watchers. Loaded on first use. */
+    private Properties myTimestamps;
+
+    /**
+     * Creates a new FileResumeTokenStore.
+     * 
+     * @param file
+     *            The file holding the timestamps.
+     */
+    public FileResumeTokenStore(final File file) {
+        myFile = file;
+        myTimestamps = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to read the timestamp from the file.
+     * </p>
+     */
+    @Override
+    public synchronized Element load(final String key) throws IOException {
+        final String value = timestamps().getProperty(key);
+        if (value != null) {
+            try {
+                return new MongoTimestampElement("ts", Long.parseLong(value));
+            }
+            catch (final NumberFormatException error) {
+                throw new IOException("Invalid timestamp '" + value
+                        + "' for '" + key + "' in " + myFile + ".");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to write the timestamp to the file.
+     * </p>
+     */
+    @Override
+    public synchronized void save(final String key, final Element ts)
+            throws IOException {
+        if (!(ts instanceof MongoTimestampElement)) {
+            return;
+        }
+
+        final Properties timestamps = timestamps();
+        timestamps.setProperty(key,
+                String.valueOf(((MongoTimestampElement) ts).getTime()));
+
+        final File temp = new File(myFile.getPath() + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            timestamps.store(out, "Watcher resume timestamps.");
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(myFile)) {
+            // Windows will not rename over an existing file.
+            if (!myFile.delete() || !temp.renameTo(myFile)) {
+                throw new IOException("Could not replace " + myFile + ".");
+            }
+        }
+    }
+
+    /**
+     * Returns the timestamps, loading them from the file the first time.
+     * 
+     * @return The timestamps for the watchers.
+     * @throws IOException
+     *             On a failure to read the file.
+     */
+    private Properties timestamps() throws IOException {
+        if (myTimestamps == null) {
+            final Properties timestamps = new Properties();
+            if (myFile.exists()) {
+                final FileInputStream in = new FileInputStream(myFile);
+                try {
+                    timestamps.load(in);
+                }
+                finally {
+                    in.close();
+                }
+            }
+            myTimestamps = timestamps;
+        }
+        return myTimestamps;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.Date;
+
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+
+/**
+ * MongoResumeTokenStore provides a {@link ResumeTokenStore} that keeps one
+ * document per watcher in a MongoDB collection:
+ * <blockquote>
+ * 
+ * <pre>
+ * <code>
+ * { _id : &lt;key&gt;, ts : &lt;oplog timestamp&gt;, updated : &lt;date&gt; }
+ * </code>
+ * </pre>
+ * 
+ * </blockquote>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class MongoResumeTokenStore implements ResumeTokenStore {
+
+    /** The collection holding the timestamps. */
+    private final MongoCollection myCollection;
+
+    /**
+     * Creates a new MongoResumeTokenStore.
+     * 
+     * @param collection
+     *            The collection holding the timestamps.
+     */
+    public MongoResumeTokenStore(final MongoCollection collection) {
+        myCollection = collection;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to read the {@code ts} field of the watcher's document.
+     * </p>
+     */
+    @Override
+    public Element load(final String key) {
+        final Document doc = myCollection.findOne(BuilderFactory.start().add(
+                "_id", key));
+        if (doc != null) {
+            return doc.get("ts");
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to upsert the watcher's document.
+     * </p>
+     */
+    @Override
+    public void save(final String key, final Element ts) {
+        final DocumentBuilder update = BuilderFactory.start();
+        update.push("$set").add(ts.withName("ts"))
+                .add("updated", new Date());
+
+        myCollection.update(BuilderFactory.start().add("_id", key), update,
+                false, true, Durability.ACK);
+    }
+}
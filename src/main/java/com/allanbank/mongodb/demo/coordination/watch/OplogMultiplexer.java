@@ -0,0 +1,590 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import static com.allanbank.mongodb.builder.QueryBuilder.and;
+import static com.allanbank.mongodb.builder.QueryBuilder.where;
+import static com.allanbank.mongodb.builder.expression.Expressions.constant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoCursorControl;
+import com.allanbank.mongodb.StreamCallback;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.builder.ComparisonOperator;
+import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.builder.MiscellaneousOperator;
+
+/**
+ * OplogMultiplexer provides a single tailable cursor on the
+ * {@code local.oplog.rs} collection that is shared by any number of
+ * {@link Watcher}s. Each oplog entry is dispatched to the watchers for its
+ * namespace whose context matches the {@code _id} of the changed document.
+ * <p>
+ * The watchers for each namespace are indexed in a prefix trie built from
+ * the watchers' {@link ContextMatcher} prefixes so dispatch cost depends on
+ * the length of the {@code _id}, not the number of watchers. Watchers with
+ * contexts that are not simple prefixes are checked individually.
+ * </p>
+ * <p>
+ * The server side query only filters on the timestamp, operation and the set
+ * of watched namespaces. Adding or removing a watcher only rebuilds the
+ * index; the cursor is only restarted when a watcher for a new namespace is
+ * added, or when a watcher resuming from a saved position older than the
+ * stream's position is added. In that case the stream restarts from the
+ * older position and the other watchers skip the entries they have already
+ * delivered.
+ * </p>
+ * <p>
+ * When the stream ends or fails it is restarted after a jittered exponential
+ * backoff, on a thread from the thread factory. The backoff resets once the
+ * stream returns an entry.
+ * </p>
+ * <p>
+ * Dispatching never waits on a watcher. A watcher whose buffer fills drops
+ * the entries and, once it has caught up, has the stream go back to its last
+ * delivered position the same way.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class OplogMultiplexer {
+
+    /** The backoff for restarting the stream. */
+    private volatile Backoff myBackoff;
+
+    /** The callback for the active stream of oplog entries. */
+    private volatile OplogCallback myCallback;
+
+    /** The controls for the active stream of oplog entries. */
+    private MongoCursorControl myControls;
+
+    /** The index of the watchers for each namespace. */
+    private volatile Map<String, ContextIndex> myIndexes;
+
+    /** The last timestamp seen. For restarts. */
+    private volatile Element myLastTs;
+
+    /** The client for the oplog. */
+    private final MongoClient myMongoClient;
+
+    /** True if the stream is waiting to be restarted. */
+    private boolean myRestartPending;
+
+    /** The namespaces the active stream is filtered to. */
+    private List<String> myStreamNamespaces;
+
+    /** The factory for the threads restarting the stream. */
+    private ThreadFactory myThreadFactory;
+
+    /** The registered watchers. */
+    private final List<Watcher> myWatchers;
+
+    /**
+     * Creates a new OplogMultiplexer.
+     * 
+     * @param mongoClient
+     *            The client for the oplog.
+     */
+    public OplogMultiplexer(final MongoClient mongoClient) {
+        myMongoClient = mongoClient;
+
+        myWatchers = new ArrayList<Watcher>();
+        myIndexes = new HashMap<String, ContextIndex>();
+        myStreamNamespaces = new ArrayList<String>();
+        myControls = null;
+        myCallback = null;
+        myLastTs = null;
+        myRestartPending = false;
+        myBackoff = new Backoff(Watcher.DEFAULT_INITIAL_BACKOFF_MILLIS,
+                Watcher.DEFAULT_MAX_BACKOFF_MILLIS);
+        myThreadFactory = Executors.defaultThreadFactory();
+    }
+
+    /**
+     * Registers a watcher. The stream of oplog entries is started if it is
+     * not already running.
+     * 
+     * @param watcher
+     *            The watcher to register.
+     */
+    public synchronized void add(final Watcher watcher) {
+        if (!myWatchers.contains(watcher)) {
+            myWatchers.add(watcher);
+            rebuild();
+
+            // Go back for a watcher resuming before the stream's position.
+            final Element resume = watcher.getLastTimestamp();
+            final Element lastTs = myLastTs;
+            boolean rewind = false;
+            if ((resume != null) && (lastTs != null)) {
+                final Element from = resume.withName(lastTs.getName());
+                if (from.compareTo(lastTs) < 0) {
+                    myLastTs = from;
+                    rewind = true;
+                }
+            }
+
+            if (rewind
+                    || !myStreamNamespaces.containsAll(myIndexes.keySet())) {
+                restart();
+            }
+            else {
+                start();
+            }
+        }
+    }
+
+    /**
+     * Returns the client for the oplog.
+     * 
+     * @return The client for the oplog.
+     */
+    public MongoClient getClient() {
+        return myMongoClient;
+    }
+
+    /**
+     * Returns the number of registered watchers.
+     * 
+     * @return The number of registered watchers.
+     */
+    public synchronized int getWatcherCount() {
+        return myWatchers.size();
+    }
+
+    /**
+     * Unregisters a watcher. The stream of oplog entries is stopped once there
+     * are no watchers.
+     * 
+     * @param watcher
+     *            The watcher to unregister.
+     */
+    public synchronized void remove(final Watcher watcher) {
+        if (myWatchers.remove(watcher)) {
+            rebuild();
+            if (myWatchers.isEmpty()) {
+                stop();
+            }
+        }
+    }
+
+    /**
+     * Goes back to a registered watcher's last delivered position after the
+     * watcher dropped entries because its buffer was full. The watcher
+     * accepts entries again once the old stream has been stopped.
+     * 
+     * @param watcher
+     *            The watcher to resume.
+     */
+    public synchronized void resume(final Watcher watcher) {
+        stop();
+
+        final Element resume = watcher.getLastTimestamp();
+        final Element lastTs = myLastTs;
+        if ((resume != null) && (lastTs != null)) {
+            final Element from = resume.withName(lastTs.getName());
+            if (from.compareTo(lastTs) < 0) {
+                myLastTs = from;
+            }
+        }
+
+        watcher.clearOverflow();
+        start();
+    }
+
+    /**
+     * Sets the delays for restarting the stream after it ends or fails.
+     * 
+     * @param initialMillis
+     *            The delay before the first restart in milliseconds.
+     * @param maxMillis
+     *            The maximum delay between restarts in milliseconds.
+     */
+    public synchronized void setBackoff(final long initialMillis,
+            final long maxMillis) {
+        myBackoff = new Backoff(initialMillis, maxMillis);
+    }
+
+    /**
+     * Sets the factory for the threads restarting the stream.
+     * 
+     * @param threadFactory
+     *            The new value for the factory for the threads restarting the
+     *            stream.
+     */
+    public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+        myThreadFactory = threadFactory;
+    }
+
+    /**
+     * Restarts the stream of oplog entries.
+     */
+    public synchronized void restart() {
+        stop();
+        start();
+    }
+
+    /**
+     * Starts the stream of oplog entries if there are any watchers.
+     */
+    public synchronized void start() {
+        myRestartPending = false;
+        if ((myControls == null) && !myWatchers.isEmpty()) {
+            myStreamNamespaces = new ArrayList<String>(myIndexes.keySet());
+
+            final DocumentBuilder wantQuery = BuilderFactory.start();
+            final ArrayBuilder namespaces = wantQuery.push("ns").pushArray(
+                    MiscellaneousOperator.IN.getToken());
+            for (final String ns : myStreamNamespaces) {
+                namespaces.add(ns);
+            }
+
+            final Find.Builder builder = new Find.Builder();
+            final Element lastTs = myLastTs;
+            if (lastTs != null) {
+                final DocumentBuilder tsQuery = BuilderFactory.start();
+                tsQuery.push(lastTs.getName()).add(
+                        lastTs.withName(ComparisonOperator.GT.getToken()));
+
+                builder.setQuery(and(tsQuery, wantQuery, where("op").in(
+                        constant("i"), constant("u"), constant("d"))));
+            }
+            else {
+                builder.setQuery(and(wantQuery, where("op").in(
+                        constant("i"), constant("u"), constant("d"))));
+            }
+            builder.tailable();
+
+            final MongoCollection oplog = myMongoClient.getDatabase("local")
+                    .getCollection("oplog.rs");
+            myCallback = new OplogCallback();
+            myControls = oplog.streamingFind(myCallback, builder.build());
+        }
+    }
+
+    /**
+     * Stops the stream of oplog entries.
+     */
+    public synchronized void stop() {
+        if (myControls != null) {
+            myControls.close();
+            myControls = null;
+            myCallback = null;
+        }
+    }
+
+    /**
+     * Dispatches an oplog entry to the matching watchers.
+     * 
+     * @param opLogDoc
+     *            The document from the {@code oplog.rs} collection.
+     */
+    protected void dispatch(final Document opLogDoc) {
+        // The stream only returns entries after its resume position.
+        myBackoff.reset();
+
+        final Element ns = opLogDoc.get("ns");
+        final ContextIndex index = (ns != null) ? myIndexes.get(ns
+                .getValueAsString()) : null;
+        if (index != null) {
+            Element id = opLogDoc.findFirst("o2", "_id");
+            if (id == null) {
+                id = opLogDoc.findFirst("o", "_id");
+            }
+            if (id != null) {
+                index.dispatch(id.getValueAsString(), opLogDoc);
+            }
+        }
+
+        myLastTs = opLogDoc.findFirst("ts");
+    }
+
+    /**
+     * Schedules a restart of the stream after the backoff if the callback is
+     * for the active stream.
+     * 
+     * @param callback
+     *            The callback for the stream that ended.
+     */
+    protected synchronized void restart(final OplogCallback callback) {
+        if (myCallback == callback) {
+            stop();
+
+            myRestartPending = true;
+            myThreadFactory.newThread(
+                    new RestartRunnable(myBackoff.nextDelayMillis())).start();
+        }
+    }
+
+    /**
+     * Restarts the stream if a restart is still pending. A stream started
+     * since the restart was scheduled cancels it.
+     */
+    protected synchronized void restartIfPending() {
+        if (myRestartPending) {
+            start();
+        }
+    }
+
+    /**
+     * Rebuilds the index of the watchers for each namespace.
+     */
+    private void rebuild() {
+        final Map<String, ContextIndex> indexes = new HashMap<String, ContextIndex>();
+        for (final Watcher watcher : myWatchers) {
+            final String ns = watcher.getNamespace();
+            ContextIndex index = indexes.get(ns);
+            if (index == null) {
+                index = new ContextIndex();
+                indexes.put(ns, index);
+            }
+            index.add(watcher);
+        }
+        myIndexes = indexes;
+    }
+
+    /**
+     * ContextIndex provides a prefix trie of the watchers for a single
+     * namespace. The index is built once and never modified after it is
+     * published.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class ContextIndex {
+
+        /** The root of the trie. */
+        private final TrieNode myRoot;
+
+        /** The watchers whose contexts are not simple prefixes. */
+        private Watcher[] myPatternWatchers;
+
+        /**
+         * Creates a new, empty, ContextIndex.
+         */
+        public ContextIndex() {
+            myRoot = new TrieNode();
+            myPatternWatchers = new Watcher[0];
+        }
+
+        /**
+         * Adds a watcher to the index.
+         * 
+         * @param watcher
+         *            The watcher to add.
+         */
+        public void add(final Watcher watcher) {
+            final String prefix = watcher.getMatcher().getPrefix();
+            if (prefix == null) {
+                myPatternWatchers = append(myPatternWatchers, watcher);
+            }
+            else {
+                TrieNode node = myRoot;
+                for (int i = 0; i < prefix.length(); ++i) {
+                    node = node.child(prefix.charAt(i));
+                }
+                node.myWatchers = append(node.myWatchers, watcher);
+            }
+        }
+
+        /**
+         * Dispatches the oplog entry to each watcher matching the context.
+         * 
+         * @param context
+         *            The {@code _id} of the changed document.
+         * @param opLogDoc
+         *            The document from the {@code oplog.rs} collection.
+         */
+        public void dispatch(final String context, final Document opLogDoc) {
+            TrieNode node = myRoot;
+            for (int i = 0; node != null; ++i) {
+                for (final Watcher watcher : node.myWatchers) {
+                    watcher.notifyChange(opLogDoc);
+                }
+                node = (i < context.length()) ? node.find(context.charAt(i))
+                        : null;
+            }
+
+            for (final Watcher watcher : myPatternWatchers) {
+                if (watcher.getMatcher().matches(context)) {
+                    watcher.notifyChange(opLogDoc);
+                }
+            }
+        }
+
+        /**
+         * Returns a copy of the array with the watcher added.
+         * 
+         * @param watchers
+         *            The existing watchers.
+         * @param watcher
+         *            The watcher to add.
+         * @return The new array of watchers.
+         */
+        private Watcher[] append(final Watcher[] watchers,
+                final Watcher watcher) {
+            final Watcher[] result = Arrays.copyOf(watchers,
+                    watchers.length + 1);
+            result[watchers.length] = watcher;
+            return result;
+        }
+    }
+
+    /**
+     * OplogCallback provides the handling of the entries streamed from the
+     * {@code oplog.rs} collection.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class OplogCallback implements StreamCallback<Document> {
+        @Override
+        public void callback(final Document result) {
+            // A stopped stream must not move the position of its replacement.
+            if (myCallback == this) {
+                dispatch(result);
+            }
+        }
+
+        @Override
+        public void done() {
+            restart(this);
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            restart(this);
+        }
+    }
+
+    /**
+     * RestartRunnable provides a {@link Runnable} to restart the stream once
+     * its backoff has elapsed.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class RestartRunnable implements Runnable {
+
+        /** The delay before restarting in milliseconds. */
+        private final long myDelayMillis;
+
+        /**
+         * Creates a new RestartRunnable.
+         * 
+         * @param delayMillis
+         *            The delay before restarting in milliseconds.
+         */
+        public RestartRunnable(final long delayMillis) {
+            myDelayMillis = delayMillis;
+        }
+
+        @Override
+        public void run() {
+            try {
+                TimeUnit.MILLISECONDS.sleep(myDelayMillis);
+                restartIfPending();
+            }
+            catch (final InterruptedException e) {
+                // Exit without restarting.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * TrieNode provides a single node in the prefix trie. The children are
+     * kept sorted by character for a binary search.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class TrieNode {
+
+        /** The children of the node. */
+        private TrieNode[] myChildren;
+
+        /** The characters for each child. */
+        private char[] myKeys;
+
+        /** The watchers whose prefix ends at this node. */
+        private Watcher[] myWatchers;
+
+        /**
+         * Creates a new TrieNode.
+         */
+        public TrieNode() {
+            myKeys = new char[0];
+            myChildren = new TrieNode[0];
+            myWatchers = new Watcher[0];
+        }
+
+        /**
+         * Returns the child for the character, creating it if needed.
+         * 
+         * @param c
+         *            The character for the child.
+         * @return The child for the character.
+         */
+        public TrieNode child(final char c) {
+            final int index = Arrays.binarySearch(myKeys, c);
+            if (index >= 0) {
+                return myChildren[index];
+            }
+
+            final int insert = -(index + 1);
+            final char[] keys = new char[myKeys.length + 1];
+            final TrieNode[] children = new TrieNode[myChildren.length + 1];
+            System.arraycopy(myKeys, 0, keys, 0, insert);
+            System.arraycopy(myChildren, 0, children, 0, insert);
+            System.arraycopy(myKeys, insert, keys, insert + 1, myKeys.length
+                    - insert);
+            System.arraycopy(myChildren, insert, children, insert + 1,
+                    myChildren.length - insert);
+
+            final TrieNode child = new TrieNode();
+            keys[insert] = c;
+            children[insert] = child;
+
+            myKeys = keys;
+            myChildren = children;
+            return child;
+        }
+
+        /**
+         * Returns the child for the character.
+         * 
+         * @param c
+         *            The character for the child.
+         * @return The child for the character or <code>null</code> if there
+         *         is no child for the character.
+         */
+        public TrieNode find(final char c) {
+            final int index = Arrays.binarySearch(myKeys, c);
+            return (index >= 0) ? myChildren[index] : null;
+        }
+    }
+}
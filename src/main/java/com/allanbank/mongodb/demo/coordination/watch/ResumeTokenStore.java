@@ -0,0 +1,54 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.io.IOException;
+
+import com.allanbank.mongodb.bson.Element;
+
+/**
+ * ResumeTokenStore provides the interface for persisting the oplog timestamp
+ * of the last change a {@link Watcher} delivered so that a restarted process
+ * can resume where it left off.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface ResumeTokenStore {
+
+    /**
+     * Loads the last saved timestamp.
+     * 
+     * @param key
+     *            The key identifying the watcher.
+     * @return The last saved timestamp or <code>null</code> if nothing has
+     *         been saved.
+     * @throws IOException
+     *             On a failure to read the timestamp.
+     */
+    public Element load(String key) throws IOException;
+
+    /**
+     * Saves the timestamp.
+     * 
+     * @param key
+     *            The key identifying the watcher.
+     * @param ts
+     *            The oplog timestamp of the last change delivered.
+     * @throws IOException
+     *             On a failure to write the timestamp.
+     */
+    public void save(String key, Element ts) throws IOException;
+}
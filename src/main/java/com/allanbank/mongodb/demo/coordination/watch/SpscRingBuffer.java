@@ -0,0 +1,150 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SpscRingBuffer provides a bounded, lock-free ring buffer for a single
+ * producer thread and a single consumer thread. None of {@link #offer},
+ * {@link #peek} or {@link #poll} ever block; the caller decides how to wait
+ * when the buffer is full or empty.
+ * <p>
+ * The producer publishes an element by writing it into its slot and then
+ * lazily setting the tail. The consumer frees a slot by clearing it and then
+ * lazily setting the head. The ordered writes provide the happens-before
+ * edges between the two threads without a lock or a full fence.
+ * </p>
+ * 
+ * @param <E>
+ *            The type of elements in the buffer.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class SpscRingBuffer<E> {
+
+    /** The slots of the buffer. The length is a power of two. */
+    private final Object[] myBuffer;
+
+    /** The index of the next element to poll. Only the consumer writes it. */
+    private final AtomicLong myHead;
+
+    /** The mask to convert an index into a slot. */
+    private final int myMask;
+
+    /** The index of the next element to offer. Only the producer writes it. */
+    private final AtomicLong myTail;
+
+    /**
+     * Creates a new SpscRingBuffer.
+     * 
+     * @param capacity
+     *            The minimum capacity of the buffer. Rounded up to a power of
+     *            two.
+     */
+    public SpscRingBuffer(final int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+
+        myBuffer = new Object[size];
+        myMask = size - 1;
+        myHead = new AtomicLong(0);
+        myTail = new AtomicLong(0);
+    }
+
+    /**
+     * Returns the capacity of the buffer.
+     * 
+     * @return The capacity of the buffer.
+     */
+    public int capacity() {
+        return myBuffer.length;
+    }
+
+    /**
+     * Returns true if the buffer is empty.
+     * 
+     * @return True if the buffer is empty.
+     */
+    public boolean isEmpty() {
+        return myHead.get() >= myTail.get();
+    }
+
+    /**
+     * Adds an element to the buffer. Must only be called by the producer
+     * thread.
+     * 
+     * @param element
+     *            The element to add. Must not be <code>null</code>.
+     * @return True if the element was added, false if the buffer is full.
+     */
+    public boolean offer(final E element) {
+        final long tail = myTail.get();
+        if ((tail - myHead.get()) >= myBuffer.length) {
+            return false;
+        }
+
+        myBuffer[(int) tail & myMask] = element;
+        myTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Returns the oldest element without removing it. Must only be called by
+     * the consumer thread.
+     * 
+     * @return The oldest element or <code>null</code> if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long head = myHead.get();
+        if (head >= myTail.get()) {
+            return null;
+        }
+        return (E) myBuffer[(int) head & myMask];
+    }
+
+    /**
+     * Removes the oldest element from the buffer. Must only be called by the
+     * consumer thread.
+     * 
+     * @return The oldest element or <code>null</code> if the buffer is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final long head = myHead.get();
+        if (head >= myTail.get()) {
+            return null;
+        }
+
+        final int slot = (int) head & myMask;
+        final E element = (E) myBuffer[slot];
+        myBuffer[slot] = null;
+        myHead.lazySet(head + 1);
+        return element;
+    }
+
+    /**
+     * Returns the number of elements in the buffer.
+     * 
+     * @return The number of elements in the buffer.
+     */
+    public int size() {
+        return (int) Math.max(0, myTail.get() - myHead.get());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+
+/**
+ * WatchEvent provides an immutable record of a single change delivered to a
+ * {@link BatchWatchListener}.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class WatchEvent {
+
+    /** The context ({@code _id}) of the changed document. */
+    private final String myContext;
+
+    /** The changed document. */
+    private final Document myDocument;
+
+    /** The operation that was performed. */
+    private final Operation myOperation;
+
+    /** The oplog timestamp of the change. */
+    private final Element myTimestamp;
+
+    /**
+     * Creates a new WatchEvent.
+     * 
+     * @param op
+     *            The operation that was performed.
+     * @param context
+     *            The context ({@code _id}) of the changed document.
+     * @param document
+     *            The changed document. See
+     *            {@link WatchListener#changed(Operation, String, Document)}.
+     * @param ts
+     *            The oplog timestamp of the change.
+     */
+    public WatchEvent(final Operation op, final String context,
+            final Document document, final Element ts) {
+        myOperation = op;
+        myContext = context;
+        myDocument = document;
+        myTimestamp = ts;
+    }
+
+    /**
+     * Returns the context ({@code _id}) of the changed document.
+     * 
+     * @return The context ({@code _id}) of the changed document.
+     */
+    public String getContext() {
+        return myContext;
+    }
+
+    /**
+     * Returns the changed document.
+     * 
+     * @return The changed document. Null for a delete or if the document no
+     *         longer exists.
+     */
+    public Document getDocument() {
+        return myDocument;
+    }
+
+    /**
+     * Returns the operation that was performed.
+     * 
+     * @return The operation that was performed.
+     */
+    public Operation getOperation() {
+        return myOperation;
+    }
+
+    /**
+     * Returns the oplog timestamp of the change.
+     * 
+     * @return The oplog timestamp of the change.
+     */
+    public Element getTimestamp() {
+        return myTimestamp;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to return the operation and context.
+     * </p>
+     */
+    @Override
+    public String toString() {
+        return myContext + ": " + myOperation;
+    }
+}
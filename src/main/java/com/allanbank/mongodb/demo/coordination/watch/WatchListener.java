@@ -33,7 +33,11 @@ public interface WatchListener {
      * @param context
      *            The context (_id) for the changed document.
      * @param document
-     *            The document that was changed.
+     *            The document that was changed. If the {@link Watcher} is
+     *            using the {@link DeliveryMode#OPLOG_PAYLOAD} mode then this
+     *            is the {@code o} field of the oplog entry: the inserted
+     *            document for an insert and the update document for an
+     *            update.
      */
     public void changed(Operation op, String context, Document document);
 }
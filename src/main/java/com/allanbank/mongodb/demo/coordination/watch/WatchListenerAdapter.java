@@ -0,0 +1,69 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.coordination.watch;
+
+import java.util.List;
+
+/**
+ * WatchListenerAdapter provides a {@link BatchWatchListener} that delivers
+ * each change in the batch to a single event {@link WatchListener}.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class WatchListenerAdapter implements BatchWatchListener {
+
+    /** The listener to deliver each change to. */
+    private final WatchListener myListener;
+
+    /**
+     * Creates a new WatchListenerAdapter.
+     * 
+     * @param listener
+     *            The listener to deliver each change to.
+     */
+    public WatchListenerAdapter(final WatchListener listener) {
+        myListener = listener;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to deliver each change to the listener. A change the
+     * listener fails on does not stop the rest of the batch.
+     * </p>
+     */
+    @Override
+    public void changed(final List<WatchEvent> events) {
+        for (final WatchEvent event : events) {
+            try {
+                myListener.changed(event.getOperation(), event.getContext(),
+                        event.getDocument());
+            }
+            catch (final RuntimeException error) {
+                // A failing listener does not stop the watcher.
+            }
+        }
+    }
+
+    /**
+     * Returns the listener to deliver each change to.
+     * 
+     * @return The listener to deliver each change to.
+     */
+    public WatchListener getListener() {
+        return myListener;
+    }
+}
@@ -20,50 +20,228 @@ import static com.allanbank.mongodb.builder.QueryBuilder.or;
 import static com.allanbank.mongodb.builder.QueryBuilder.where;
 import static com.allanbank.mongodb.builder.expression.Expressions.constant;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Pattern;
 
-import com.allanbank.mongodb.Callback;
 import com.allanbank.mongodb.MongoClient;
 import com.allanbank.mongodb.MongoCollection;
 import com.allanbank.mongodb.MongoCursorControl;
 import com.allanbank.mongodb.MongoDatabase;
+import com.allanbank.mongodb.MongoDbException;
+import com.allanbank.mongodb.MongoIterator;
 import com.allanbank.mongodb.StreamCallback;
 import com.allanbank.mongodb.bson.Document;
 import com.allanbank.mongodb.bson.DocumentAssignable;
 import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
 import com.allanbank.mongodb.bson.builder.BuilderFactory;
 import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.bson.element.DocumentElement;
+import com.allanbank.mongodb.bson.element.MongoTimestampElement;
 import com.allanbank.mongodb.builder.ComparisonOperator;
 import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.builder.MiscellaneousOperator;
 
 /**
  * Watcher provides a convenient mechanism for setting up the structures for
  * watching for changes to documents in a myCollection. This class assumes that
  * the {@code _id} for the documents are strings and allows the user to select
  * subsets of the documents based on a regular expression.
+ * <p>
+ * By default the regular expression is evaluated by the server for each
+ * entry in the {@code oplog.rs} collection. With client side filtering
+ * enabled the server only filters on the timestamp, namespace and operation
+ * and the {@code _id} is matched by a precompiled {@link ContextMatcher}
+ * instead, which avoids evaluating the regular expression on the server for
+ * every oplog entry.
+ * </p>
+ * <p>
+ * Watchers created with an {@link OplogMultiplexer} do not open their own
+ * cursor. They register with the multiplexer, which shares a single cursor
+ * across all of its watchers and always matches the {@code _id} on the
+ * client.
+ * </p>
+ * <p>
+ * The stream of oplog entries never waits on the listener. Each entry is
+ * placed on a lock-free {@link SpscRingBuffer} and a dedicated dispatcher
+ * thread reads the changed documents and notifies the listener. The
+ * lifecycle methods never wait on the dispatcher.
+ * </p>
+ * <p>
+ * When the buffer is full the entry and every entry after it are dropped
+ * instead of waiting. Once the dispatcher has delivered the buffered entries
+ * the stream resumes after the last delivered change: the watcher's own
+ * stream is restarted and a multiplexed watcher has the shared stream go back
+ * to its position. The entries the other watchers already delivered are
+ * skipped as replayed.
+ * </p>
+ * <p>
+ * Changed documents are not read one at a time. The dispatcher drains all of
+ * the changes that have accumulated in the buffer and reads the changed
+ * documents with a single {@code _id $in} query, reading each document once
+ * no matter how many times it changed. The listener is notified of every
+ * change in oplog order once its document has been read. A
+ * {@link BatchWatchListener} receives each batch in a single call.
+ * </p>
+ * <p>
+ * The resume position only advances once a change has been delivered to the
+ * listener, so a restarted stream resumes after the last delivered change.
+ * Entries at or before the last delivered position that the restarted
+ * stream returns again are skipped and counted as replayed. When the stream
+ * ends or fails it is restarted after a jittered exponential backoff, which
+ * only resets once the stream returns an entry past the last delivered
+ * position. A stream that fails right after replaying keeps backing off.
+ * Failed reads of the changed documents use their own backoff.
+ * </p>
+ * <p>
+ * With coalescing enabled only the last change to each document in a batch
+ * is delivered. A batch holds everything that accumulated while the listener
+ * was busy with the previous batch, so a slow listener sees the latest state
+ * of a frequently changing document rather than every change. The coalesced
+ * change keeps the operation the listener needs: an insert followed by
+ * updates is still delivered as an insert and anything followed by a delete
+ * is a delete. In the {@link DeliveryMode#OPLOG_PAYLOAD} mode an update that
+ * only carries the modifiers ({@code $set}, {@code $inc}, ...) cannot replace
+ * the earlier changes, so those are kept.
+ * </p>
+ * <p>
+ * With a {@link ResumeTokenStore} the resume position is saved periodically
+ * and when the watcher is stopped. A new process then resumes from the saved
+ * position instead of missing the changes made while it was down. A
+ * multiplexed watcher has the shared stream go back to its saved position if
+ * the stream is already past it, and uses the position to skip the changes it
+ * has already delivered.
+ * </p>
+ * <p>
+ * In the {@link DeliveryMode#OPLOG_PAYLOAD} mode the documents are not read.
+ * The listener is handed the {@code o} field of the oplog entry instead.
+ * </p>
  * 
  * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
  */
 public class Watcher {
 
+    /** The default number of oplog entries buffered for the dispatcher. */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    /** The default delay before the first restart in milliseconds. */
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+
+    /** The default maximum delay between restarts in milliseconds. */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+    /** The default interval between saves of the resume position. */
+    public static final long DEFAULT_SAVE_INTERVAL_MILLIS = 1000;
+
+    /** The default maximum number of documents to read in one query. */
+    public static final int DEFAULT_MAX_FETCH_SIZE = 1000;
+
+    /** The time the dispatcher waits for an entry before checking again. */
+    private static final long EMPTY_WAIT_NANOS = TimeUnit.MILLISECONDS
+            .toNanos(10);
+
     /** The controls for the active stream of updates. */
     protected MongoCursorControl myControls;
 
-    /** The listener to notify that something has changed. */
+    /** The listener to notify of each batch of changes. */
+    protected final BatchWatchListener myBatchListener;
+
+    /** The listener to notify that something has changed. May be null. */
     protected final WatchListener myListener;
 
+    /** The backoff for restarting the stream. */
+    private volatile Backoff myBackoff;
+
+    /** The number of oplog entries buffered for the dispatcher. */
+    private int myBufferSize;
+
+    /** The callback for the active stream of updates. */
+    private volatile OpLogNotification myCallback;
+
+    /** If true the {@code _id} is matched by the client. */
+    private volatile boolean myClientSideFiltering;
+
+    /** The number of changes dropped in favour of a later change. */
+    private final AtomicLong myCoalescedCount;
+
+    /** If true only the last change per document in a batch is delivered. */
+    private volatile boolean myCoalescing;
+
     /** The collection being watched. */
     private final MongoCollection myCollection;
 
     /** The context for the {@code _id} of items to watch. */
     private final Pattern myContext;
 
-    /** The last timestamp seen. For restarts. */
-    private Element myLastTs;
+    /** What is delivered to the listener for each change. */
+    private volatile DeliveryMode myDeliveryMode;
+
+    /** The dispatcher for the changes. Null if not started. */
+    private volatile Dispatcher myDispatcher;
+
+    /** The backoff for retrying failed reads of the changed documents. */
+    private volatile Backoff myFetchBackoff;
+
+    /** The precompiled matcher for the context. */
+    private final ContextMatcher myMatcher;
+
+    /** The number of times the buffer filled and the stream resumed. */
+    private final AtomicLong myOverflowCount;
+
+    /** The maximum number of documents to read in one query. */
+    private volatile int myMaxFetchSize;
+
+    /** The timestamp of the last change delivered. For restarts. */
+    private volatile Element myLastTs;
 
     /** The client for the watcher. */
     private final MongoClient myMongoClient;
 
+    /** The multiplexer providing the oplog entries. May be null. */
+    private final OplogMultiplexer myMultiplexer;
+
+    /** True if registered with the multiplexer. */
+    private boolean myRegistered;
+
+    /** The number of replayed oplog entries skipped. */
+    private final AtomicLong myReplayedCount;
+
+    /** The number of times the stream has been restarted. */
+    private final AtomicLong myRestartCount;
+
+    /** The key for the watcher in the resume token store. */
+    private volatile String myResumeTokenKey;
+
+    /** The store for the resume position. May be null. */
+    private volatile ResumeTokenStore myResumeTokenStore;
+
+    /** True if the stream is waiting to be restarted. */
+    private volatile boolean myRestartPending;
+
+    /** When the stream should be restarted, from {@link System#nanoTime()}. */
+    private long myRestartTime;
+
+    /** The last resume position saved. */
+    private volatile Element mySavedTs;
+
+    /** The interval between saves of the resume position in milliseconds. */
+    private volatile long mySaveIntervalMillis;
+
+    /** The factory for the dispatcher thread. */
+    private ThreadFactory myThreadFactory;
+
     /**
      * Creates a new Watcher.
      * 
@@ -79,12 +257,263 @@ public class Watcher {
     public Watcher(final MongoClient mongoClient,
             final MongoCollection collection, final Pattern context,
             final WatchListener listener) {
+        this(mongoClient, null, collection, context, listener,
+                new WatchListenerAdapter(listener));
+    }
+
+    /**
+     * Creates a new Watcher that delivers the changes in batches.
+     * 
+     * @param mongoClient
+     *            The client for the watcher.
+     * @param collection
+     *            The collection being watched.
+     * @param context
+     *            The context for the {@code _id} of items to watch.
+     * @param listener
+     *            The listener to notify of each batch of changes.
+     */
+    public Watcher(final MongoClient mongoClient,
+            final MongoCollection collection, final Pattern context,
+            final BatchWatchListener listener) {
+        this(mongoClient, null, collection, context, null, listener);
+    }
+
+    /**
+     * Creates a new Watcher that shares the multiplexer's cursor.
+     * 
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries.
+     * @param collection
+     *            The collection being watched.
+     * @param context
+     *            The context for the {@code _id} of items to watch.
+     * @param listener
+     *            The listener to notify that something has changed.
+     */
+    public Watcher(final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final Pattern context,
+            final WatchListener listener) {
+        this(null, multiplexer, collection, context, listener,
+                new WatchListenerAdapter(listener));
+    }
+
+    /**
+     * Creates a new Watcher that shares the multiplexer's cursor and delivers
+     * the changes in batches.
+     * 
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries.
+     * @param collection
+     *            The collection being watched.
+     * @param context
+     *            The context for the {@code _id} of items to watch.
+     * @param listener
+     *            The listener to notify of each batch of changes.
+     */
+    public Watcher(final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final Pattern context,
+            final BatchWatchListener listener) {
+        this(null, multiplexer, collection, context, null, listener);
+    }
+
+    /**
+     * Creates a new Watcher.
+     * 
+     * @param mongoClient
+     *            The client for the watcher. Null if using a multiplexer.
+     * @param multiplexer
+     *            The multiplexer providing the oplog entries. Null if using a
+     *            client.
+     * @param collection
+     *            The collection being watched.
+     * @param context
+     *            The context for the {@code _id} of items to watch.
+     * @param listener
+     *            The listener to notify that something has changed. Null if
+     *            using a batch listener.
+     * @param batchListener
+     *            The listener to notify of each batch of changes.
+     */
+    private Watcher(final MongoClient mongoClient,
+            final OplogMultiplexer multiplexer,
+            final MongoCollection collection, final Pattern context,
+            final WatchListener listener,
+            final BatchWatchListener batchListener) {
         myMongoClient = mongoClient;
+        myMultiplexer = multiplexer;
         myCollection = collection;
         myContext = context;
+        myMatcher = ContextMatcher.compile(context);
         myListener = listener;
+        myBatchListener = batchListener;
         myControls = null;
+        myCallback = null;
+        myDispatcher = null;
         myLastTs = null;
+        myClientSideFiltering = false;
+        myCoalescing = false;
+        myCoalescedCount = new AtomicLong(0);
+        myRegistered = false;
+        myMaxFetchSize = DEFAULT_MAX_FETCH_SIZE;
+        myDeliveryMode = DeliveryMode.FETCH_DOCUMENT;
+        myBufferSize = DEFAULT_BUFFER_SIZE;
+        myThreadFactory = Executors.defaultThreadFactory();
+        myBackoff = new Backoff(DEFAULT_INITIAL_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS);
+        myFetchBackoff = new Backoff(DEFAULT_INITIAL_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS);
+        myOverflowCount = new AtomicLong(0);
+        myReplayedCount = new AtomicLong(0);
+        myRestartCount = new AtomicLong(0);
+        myRestartPending = false;
+        myRestartTime = 0;
+        myResumeTokenStore = null;
+        myResumeTokenKey = getNamespace() + ":" + context.pattern();
+        mySaveIntervalMillis = DEFAULT_SAVE_INTERVAL_MILLIS;
+        mySavedTs = null;
+    }
+
+    /**
+     * Returns the timestamp of the last change delivered to the listener.
+     * 
+     * @return The timestamp of the last change delivered or
+     *         <code>null</code> if nothing has been delivered.
+     */
+    public Element getLastTimestamp() {
+        return myLastTs;
+    }
+
+    /**
+     * Returns the number of times the buffer filled and the stream resumed
+     * after the last delivered change.
+     * 
+     * @return The number of times the buffer filled.
+     */
+    public long getOverflowCount() {
+        return myOverflowCount.get();
+    }
+
+    /**
+     * Returns the number of replayed oplog entries skipped.
+     * 
+     * @return The number of replayed oplog entries skipped.
+     */
+    public long getReplayedCount() {
+        return myReplayedCount.get();
+    }
+
+    /**
+     * Returns the number of times the stream has been restarted.
+     * 
+     * @return The number of times the stream has been restarted.
+     */
+    public long getRestartCount() {
+        return myRestartCount.get();
+    }
+
+    /**
+     * Returns the key for the watcher in the resume token store.
+     * 
+     * @return The key for the watcher in the resume token store.
+     */
+    public synchronized String getResumeTokenKey() {
+        return myResumeTokenKey;
+    }
+
+    /**
+     * Returns the store for the resume position.
+     * 
+     * @return The store for the resume position or <code>null</code> if the
+     *         position is not saved.
+     */
+    public ResumeTokenStore getResumeTokenStore() {
+        return myResumeTokenStore;
+    }
+
+    /**
+     * Returns the interval between saves of the resume position in
+     * milliseconds.
+     * 
+     * @return The interval between saves of the resume position.
+     */
+    public long getSaveIntervalMillis() {
+        return mySaveIntervalMillis;
+    }
+
+    /**
+     * Returns the number of oplog entries buffered for the dispatcher.
+     * 
+     * @return The number of oplog entries buffered for the dispatcher.
+     */
+    public synchronized int getBufferSize() {
+        return myBufferSize;
+    }
+
+    /**
+     * Returns the number of changes dropped in favour of a later change to
+     * the same document.
+     * 
+     * @return The number of changes dropped in favour of a later change.
+     */
+    public long getCoalescedCount() {
+        return myCoalescedCount.get();
+    }
+
+    /**
+     * Returns what is delivered to the listener for each change.
+     * 
+     * @return What is delivered to the listener for each change.
+     */
+    public DeliveryMode getDeliveryMode() {
+        return myDeliveryMode;
+    }
+
+    /**
+     * Returns the precompiled matcher for the context.
+     * 
+     * @return The precompiled matcher for the context.
+     */
+    public ContextMatcher getMatcher() {
+        return myMatcher;
+    }
+
+    /**
+     * Returns the maximum number of documents to read in one query.
+     * 
+     * @return The maximum number of documents to read in one query.
+     */
+    public int getMaxFetchSize() {
+        return myMaxFetchSize;
+    }
+
+    /**
+     * Returns the namespace ({@code <database>.<collection>}) being watched.
+     * 
+     * @return The namespace being watched.
+     */
+    public String getNamespace() {
+        return myCollection.getDatabaseName() + "." + myCollection.getName();
+    }
+
+    /**
+     * Returns true if the {@code _id} is matched by the client.
+     * 
+     * @return True if the {@code _id} is matched by the client.
+     */
+    public boolean isClientSideFiltering() {
+        return myClientSideFiltering;
+    }
+
+    /**
+     * Returns true if only the last change per document in a batch is
+     * delivered.
+     * 
+     * @return True if only the last change per document in a batch is
+     *         delivered.
+     */
+    public boolean isCoalescing() {
+        return myCoalescing;
     }
 
     /**
@@ -95,80 +524,775 @@ public class Watcher {
         start();
     }
 
+    /**
+     * Sets the delays for restarting the stream and retrying failed reads of
+     * the changed documents.
+     * 
+     * @param initialMillis
+     *            The delay before the first retry in milliseconds.
+     * @param maxMillis
+     *            The maximum delay between retries in milliseconds.
+     */
+    public synchronized void setBackoff(final long initialMillis,
+            final long maxMillis) {
+        myBackoff = new Backoff(initialMillis, maxMillis);
+        myFetchBackoff = new Backoff(initialMillis, maxMillis);
+    }
+
+    /**
+     * Sets the number of oplog entries buffered for the dispatcher. When the
+     * buffer is full the entries are dropped and the stream resumes once the
+     * dispatcher catches up. Takes effect the next time the watcher is
+     * started.
+     * 
+     * @param bufferSize
+     *            The new value for the number of oplog entries buffered for
+     *            the dispatcher.
+     */
+    public synchronized void setBufferSize(final int bufferSize) {
+        myBufferSize = bufferSize;
+    }
+
+    /**
+     * Sets if the {@code _id} is matched by the client instead of the server.
+     * Takes effect the next time the watcher is started.
+     * 
+     * @param clientSideFiltering
+     *            If true the {@code _id} is matched by the client.
+     */
+    public synchronized void setClientSideFiltering(
+            final boolean clientSideFiltering) {
+        myClientSideFiltering = clientSideFiltering;
+    }
+
+    /**
+     * Sets if only the last change per document in a batch is delivered.
+     * 
+     * @param coalescing
+     *            If true only the last change per document in a batch is
+     *            delivered.
+     */
+    public void setCoalescing(final boolean coalescing) {
+        myCoalescing = coalescing;
+    }
+
+    /**
+     * Sets what is delivered to the listener for each change.
+     * 
+     * @param deliveryMode
+     *            The new value for what is delivered to the listener for each
+     *            change.
+     */
+    public void setDeliveryMode(final DeliveryMode deliveryMode) {
+        myDeliveryMode = deliveryMode;
+    }
+
+    /**
+     * Sets the maximum number of documents to read in one query.
+     * 
+     * @param maxFetchSize
+     *            The new value for the maximum number of documents to read
+     *            in one query.
+     */
+    public void setMaxFetchSize(final int maxFetchSize) {
+        myMaxFetchSize = Math.max(1, maxFetchSize);
+    }
+
+    /**
+     * Sets the key for the watcher in the resume token store. Defaults to the
+     * namespace and context pattern. Takes effect the next time the watcher
+     * is started.
+     * 
+     * @param resumeTokenKey
+     *            The new value for the key for the watcher in the resume
+     *            token store.
+     */
+    public synchronized void setResumeTokenKey(final String resumeTokenKey) {
+        myResumeTokenKey = resumeTokenKey;
+    }
+
+    /**
+     * Sets the store for the resume position. Takes effect the next time the
+     * watcher is started.
+     * 
+     * @param resumeTokenStore
+     *            The new value for the store for the resume position. May be
+     *            <code>null</code> to not save the position.
+     */
+    public synchronized void setResumeTokenStore(
+            final ResumeTokenStore resumeTokenStore) {
+        myResumeTokenStore = resumeTokenStore;
+    }
+
+    /**
+     * Sets the interval between saves of the resume position in
+     * milliseconds.
+     * 
+     * @param saveIntervalMillis
+     *            The new value for the interval between saves of the resume
+     *            position.
+     */
+    public void setSaveIntervalMillis(final long saveIntervalMillis) {
+        mySaveIntervalMillis = saveIntervalMillis;
+    }
+
+    /**
+     * Sets the factory for the dispatcher thread. Takes effect the next time
+     * the watcher is started.
+     * 
+     * @param threadFactory
+     *            The new value for the factory for the dispatcher thread.
+     */
+    public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+        myThreadFactory = threadFactory;
+    }
+
     /**
      * Starts the watcher.
      */
     public synchronized void start() {
-        if (myControls == null) {
-            final String ns = myCollection.getDatabaseName() + "."
-                    + myCollection.getName();
-
-            final DocumentAssignable wantQuery = 
-                    or(
-                        where("ns").equals(ns)
-                         .and("op").in(constant("i"), constant("d"))
-                         .and("o._id").matches(myContext),
-                        where("ns").equals(ns)
-                         .and("op").equals("u")
-                         .and("o2._id").matches(myContext));
-            
-            final Find.Builder builder = new Find.Builder();
-            if (myLastTs != null) {
-                final DocumentBuilder tsQuery = BuilderFactory.start();
-                tsQuery.push(myLastTs.getName())
-                          .add(myLastTs.withName(ComparisonOperator.GT.getToken()));
-            
-                builder.setQuery(and(tsQuery, wantQuery));
+        if (myDispatcher == null) {
+            if ((myLastTs == null) && (myResumeTokenStore != null)) {
+                myLastTs = loadResumeToken();
+                mySavedTs = myLastTs;
             }
-            else {
-                builder.setQuery(wantQuery);
+
+            myDispatcher = new Dispatcher(myBufferSize);
+            myThreadFactory.newThread(myDispatcher).start();
+        }
+
+        if (myMultiplexer != null) {
+            if (!myRegistered) {
+                myRegistered = true;
+                myMultiplexer.add(this);
             }
-            
-            builder.tailable();
-            
-            MongoDatabase localDb = myMongoClient.getDatabase("local");
-            MongoCollection oplog = localDb.getCollection("oplog.rs");
-            myControls = oplog.streamingFind(new OpLogNotification(), builder.build());
+        }
+        else if (myControls == null) {
+            startStream();
         }
     }
 
     /**
-     * Stops the watcher.
+     * Stops the watcher. Changes that have not been delivered to the listener
+     * are discarded. Does not wait for the listener.
      */
     public synchronized void stop() {
-        if (myControls != null) {
-            myControls.close();
-            myControls = null;
+        if (myRegistered) {
+            myRegistered = false;
+            myMultiplexer.remove(this);
+        }
+        stopStream();
+        myRestartPending = false;
+
+        if (myDispatcher != null) {
+            myDispatcher.stop();
+            myDispatcher = null;
+
+            saveResumeToken();
+        }
+    }
+
+    /**
+     * Accepts entries again after the buffer filled. Called with the stream
+     * stopped so only the entries from the resumed stream are accepted.
+     */
+    protected void clearOverflow() {
+        final Dispatcher dispatcher = myDispatcher;
+        if (dispatcher != null) {
+            dispatcher.clearOverflow();
+        }
+    }
+
+    /**
+     * Merges the earlier changes to each document in the batch into the
+     * later change that replaces them. The remaining changes stay in oplog
+     * order.
+     * 
+     * @param batch
+     *            The changes, in oplog order.
+     * @return The coalesced changes, in oplog order.
+     */
+    protected List<PendingChange> coalesce(final List<PendingChange> batch) {
+        // The index in reversed of the earliest change kept for each document.
+        final Map<String, Integer> kept = new HashMap<String, Integer>();
+        final List<PendingChange> reversed = new ArrayList<PendingChange>(
+                batch.size());
+        for (int i = batch.size() - 1; i >= 0; --i) {
+            final PendingChange change = batch.get(i);
+            final Integer index = kept.get(change.getContext());
+            final PendingChange later = (index != null) ? reversed.get(index
+                    .intValue()) : null;
+            if ((later != null) && later.isReplacement()) {
+                reversed.set(index.intValue(), later.mergeEarlier(change));
+            }
+            else {
+                kept.put(change.getContext(), Integer.valueOf(reversed.size()));
+                reversed.add(change);
+            }
+        }
+
+        if (reversed.size() == batch.size()) {
+            return batch;
         }
+
+        myCoalescedCount.addAndGet(batch.size() - reversed.size());
+        Collections.reverse(reversed);
+        return reversed;
     }
 
     /**
-     * Handle {@code oplog.rs} updates.
+     * Notifies the listener of the batch of changes. Called by the dispatcher
+     * thread.
+     * 
+     * @param batch
+     *            The changes to report, in oplog order.
+     * @param documents
+     *            The documents read for the batch keyed by {@code _id}.
+     */
+    protected void dispatch(final List<PendingChange> batch,
+            final Map<String, Document> documents) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final List<WatchEvent> events = new ArrayList<WatchEvent>(
+                batch.size());
+        for (final PendingChange change : batch) {
+            final Document document;
+            if (change.getOperation() == Operation.DELETE) {
+                document = null;
+            }
+            else if (change.getPayload() != null) {
+                document = change.getPayload();
+            }
+            else {
+                document = documents.get(change.getContext());
+            }
+
+            events.add(new WatchEvent(change.getOperation(), change
+                    .getContext(), document, change.getTimestamp()));
+        }
+
+        try {
+            myBatchListener.changed(events);
+        }
+        catch (final RuntimeException error) {
+            // A failing listener does not stop the watcher.
+        }
+    }
+
+    /**
+     * Reads the changed documents for a batch with a single {@code _id $in}
+     * query. Called by the dispatcher thread.
+     * 
+     * @param batch
+     *            The changes to read the documents for.
+     * @return The documents read keyed by {@code _id}.
+     * @throws MongoDbException
+     *             On a failure to read the documents.
+     */
+    protected Map<String, Document> fetch(final List<PendingChange> batch)
+            throws MongoDbException {
+        final Set<String> ids = new HashSet<String>();
+        for (final PendingChange change : batch) {
+            if (change.isFetchNeeded()) {
+                ids.add(change.getContext());
+            }
+        }
+
+        final Map<String, Document> documents = new HashMap<String, Document>();
+        if (!ids.isEmpty()) {
+            final DocumentBuilder query = BuilderFactory.start();
+            final ArrayBuilder in = query.push("_id").pushArray(
+                    MiscellaneousOperator.IN.getToken());
+            for (final String id : ids) {
+                in.add(id);
+            }
+
+            final MongoIterator<Document> iter = myCollection.find(query);
+            try {
+                while (iter.hasNext()) {
+                    final Document document = iter.next();
+                    final Element id = document.get("_id");
+                    if (id != null) {
+                        documents.put(id.getValueAsString(), document);
+                    }
+                }
+            }
+            finally {
+                iter.close();
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Handle {@code oplog.rs} updates. Called by the single thread providing
+     * the stream of oplog entries. Does not lock the watcher.
      * 
      * @param opLogDoc
      *            The document from the {@code oplog.rs} myCollection.
      */
-    protected synchronized void notifyChange(final Document opLogDoc) {
+    protected void notifyChange(final Document opLogDoc) {
+        final Dispatcher dispatcher = myDispatcher;
+        if (dispatcher != null) {
+            dispatcher.offer(null, opLogDoc);
+        }
+    }
+
+    /**
+     * Resumes the stream after the last delivered change once the dispatcher
+     * has delivered the entries buffered before the buffer filled. Called by
+     * the dispatcher thread.
+     * 
+     * @param dispatcher
+     *            The dispatcher that dropped the entries.
+     */
+    protected synchronized void resumeAfterOverflow(final Dispatcher dispatcher) {
+        if (myDispatcher != dispatcher) {
+            return;
+        }
+
+        myOverflowCount.incrementAndGet();
+        if (myMultiplexer != null) {
+            if (myRegistered) {
+                myMultiplexer.resume(this);
+            }
+            else {
+                dispatcher.clearOverflow();
+            }
+        }
+        else {
+            final boolean streaming = (myControls != null);
+            stopStream();
+            dispatcher.clearOverflow();
+
+            // A pending restart starts the stream otherwise.
+            if (streaming) {
+                startStream();
+            }
+        }
+    }
+
+    /**
+     * Restarts the stream if a restart is pending and its backoff has
+     * elapsed. Called by the dispatcher thread.
+     */
+    protected synchronized void restartIfDue() {
+        if (myRestartPending && ((System.nanoTime() - myRestartTime) >= 0)) {
+            myRestartPending = false;
+            if ((myDispatcher != null) && (myControls == null)) {
+                myRestartCount.incrementAndGet();
+                startStream();
+            }
+        }
+    }
+
+    /**
+     * Saves the resume position if it has changed since the last save.
+     * Failures are ignored; the position is saved again on the next attempt.
+     */
+    protected void saveResumeToken() {
+        final ResumeTokenStore store = myResumeTokenStore;
+        final Element ts = myLastTs;
+        if ((store != null) && (ts != null) && !ts.equals(mySavedTs)) {
+            try {
+                store.save(myResumeTokenKey, ts);
+                mySavedTs = ts;
+            }
+            catch (final IOException error) {
+                // Try again next time.
+            }
+            catch (final MongoDbException error) {
+                // Try again next time.
+            }
+        }
+    }
+
+    /**
+     * Schedules a restart of the stream after the backoff if the callback is
+     * for the active stream. The dispatcher performs the restart.
+     * 
+     * @param callback
+     *            The callback for the stream that ended.
+     */
+    protected synchronized void scheduleRestart(
+            final OpLogNotification callback) {
+        if ((myCallback == callback) && (myControls != null)) {
+            stopStream();
+
+            myRestartPending = true;
+            myRestartTime = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(myBackoff
+                            .nextDelayMillis());
+        }
+    }
+
+    /**
+     * Converts an oplog entry into the change to deliver.
+     * 
+     * @param opLogDoc
+     *            The document from the {@code oplog.rs} collection.
+     * @return The change to deliver or <code>null</code> if the entry does
+     *         not match the watched context.
+     */
+    protected PendingChange toChange(final Document opLogDoc) {
         Element id = opLogDoc.findFirst("o2", "_id");
         if (id == null) {
             id = opLogDoc.findFirst("o", "_id");
         }
 
-        Operation op = Operation.fromToken(opLogDoc.get("op")
+        // The multiplexer has already matched the context.
+        if ((myMultiplexer == null) && myClientSideFiltering
+                && ((id == null) || !myMatcher.matches(id.getValueAsString()))) {
+            return null;
+        }
+
+        final Operation op = Operation.fromToken(opLogDoc.get("op")
                 .getValueAsString());
 
-        if (op == Operation.DELETE) {
-            myListener.changed(op, id.getValueAsString(), null);
+        Document payload = null;
+        if ((myDeliveryMode == DeliveryMode.OPLOG_PAYLOAD)
+                && (op != Operation.DELETE)) {
+            final DocumentElement o = opLogDoc.get(DocumentElement.class, "o");
+            payload = (o != null) ? o.getDocument() : BuilderFactory.start()
+                    .build();
+        }
+
+        return new PendingChange(op, id.getValueAsString(), payload,
+                opLogDoc.findFirst("ts"));
+    }
+
+    /**
+     * Loads the resume position from the store.
+     * 
+     * @return The saved resume position or <code>null</code> if there is no
+     *         saved position or it could not be read.
+     */
+    private Element loadResumeToken() {
+        try {
+            final Element ts = myResumeTokenStore.load(myResumeTokenKey);
+            return (ts != null) ? ts.withName("ts") : null;
+        }
+        catch (final IOException error) {
+            return null;
+        }
+        catch (final MongoDbException error) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts the watcher's own stream of oplog entries.
+     */
+    private void startStream() {
+        final String ns = myCollection.getDatabaseName() + "."
+                + myCollection.getName();
+
+        final DocumentAssignable wantQuery;
+        if (myClientSideFiltering) {
+            wantQuery = where("ns").equals(ns)
+                    .and("op").in(constant("i"), constant("u"), constant("d"));
+        }
+        else {
+            wantQuery = 
+                or(
+                    where("ns").equals(ns)
+                     .and("op").in(constant("i"), constant("d"))
+                     .and("o._id").matches(myContext),
+                    where("ns").equals(ns)
+                     .and("op").equals("u")
+                     .and("o2._id").matches(myContext));
+        }
+        
+        final Find.Builder builder = new Find.Builder();
+        final Element lastTs = myLastTs;
+        if (lastTs != null) {
+            final DocumentBuilder tsQuery = BuilderFactory.start();
+            tsQuery.push(lastTs.getName())
+                      .add(lastTs.withName(ComparisonOperator.GT.getToken()));
+        
+            builder.setQuery(and(tsQuery, wantQuery));
         }
         else {
-            myCollection.findOneAsync(
-                    new WatchedDocumentCallback(op, id.getValueAsString()),
-                    BuilderFactory.start().add(id));
+            builder.setQuery(wantQuery);
+        }
+        
+        builder.tailable();
+        
+        MongoDatabase localDb = myMongoClient.getDatabase("local");
+        MongoCollection oplog = localDb.getCollection("oplog.rs");
+        myCallback = new OpLogNotification();
+        myControls = oplog.streamingFind(myCallback, builder.build());
+    }
+
+    /**
+     * Stops the watcher's own stream of oplog entries.
+     */
+    private void stopStream() {
+        if (myControls != null) {
+            myControls.close();
+            myControls = null;
+            myCallback = null;
+        }
+    }
+
+    /**
+     * Dispatcher provides the thread delivering the changes to the listener.
+     * The stream of oplog entries is the single producer for the ring buffer
+     * and the dispatcher is the single consumer. Entries from a stream that
+     * has been replaced are dropped, and the offers are serialized so a
+     * stream still finishing its last entry while its replacement starts
+     * does not become a second producer. The producer never waits: once the
+     * ring is full the entries are dropped until the stream is resumed.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class Dispatcher implements Runnable {
+
+        /** The timestamp of the last entry in the batch being delivered. */
+        private Element myBatchTs;
+
+        /** The time of the last entry accepted for delivery. */
+        private long myHighWater;
+
+        /** True if entries have been dropped because the ring was full. */
+        private volatile boolean myOverflowed;
+
+        /** Held while offering an entry to the ring buffer. */
+        private final Object myProducerLock;
+
+        /** When the resume position was last saved. */
+        private long myLastSave;
+
+        /** The buffered oplog entries. */
+        private final SpscRingBuffer<Document> myRing;
+
+        /** True until the dispatcher is stopped. */
+        private volatile boolean myRunning;
+
+        /** The dispatcher's thread once running. */
+        private volatile Thread myThread;
+
+        /** True while the dispatcher is waiting for an entry. */
+        private volatile boolean myWaiting;
+
+        /**
+         * Creates a new Dispatcher.
+         * 
+         * @param bufferSize
+         *            The number of oplog entries to buffer.
+         */
+        public Dispatcher(final int bufferSize) {
+            myRing = new SpscRingBuffer<Document>(bufferSize);
+            myProducerLock = new Object();
+            myOverflowed = false;
+            myHighWater = time(myLastTs);
+            myBatchTs = null;
+            myLastSave = System.currentTimeMillis();
+            myRunning = true;
+            myThread = null;
+            myWaiting = false;
         }
 
-        // Remember we saw this event.
-        // TODO - move this into the WatchDocumentCallback.
-        myLastTs = opLogDoc.findFirst("ts");
+        /**
+         * Accepts entries again once the stream has been stopped for the
+         * resume after the ring filled.
+         */
+        public void clearOverflow() {
+            synchronized (myProducerLock) {
+                myOverflowed = false;
+            }
+        }
+
+        /**
+         * Adds an oplog entry to the buffer. If the buffer is full the entry,
+         * and every entry after it until the stream is resumed, is dropped.
+         * 
+         * @param source
+         *            The callback for the watcher's own stream that read the
+         *            entry or <code>null</code> for an entry from the
+         *            multiplexer.
+         * @param opLogDoc
+         *            The oplog entry to add.
+         */
+        public void offer(final OpLogNotification source,
+                final Document opLogDoc) {
+            // Uncontended except while one stream hands over to the next.
+            synchronized (myProducerLock) {
+                // Drop the entries from a stream that has been replaced.
+                if (((source != null) && (myCallback != source))
+                        || myOverflowed) {
+                    return;
+                }
+                if (!myRing.offer(opLogDoc)) {
+                    myOverflowed = true;
+                    return;
+                }
+            }
+
+            final Thread thread = myThread;
+            if (myWaiting && (thread != null)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Drains and delivers the buffered changes until stopped.
+         */
+        @Override
+        public void run() {
+            myThread = Thread.currentThread();
+            while (myRunning) {
+                if (myRestartPending) {
+                    restartIfDue();
+                }
+
+                final List<PendingChange> batch = drain();
+                if (batch.isEmpty()) {
+                    advance();
+
+                    if (myOverflowed && myRunning) {
+                        resumeAfterOverflow(this);
+                        continue;
+                    }
+
+                    myWaiting = true;
+                    if (myRing.isEmpty() && myRunning) {
+                        LockSupport.parkNanos(this, EMPTY_WAIT_NANOS);
+                    }
+                    myWaiting = false;
+                }
+                else {
+                    deliver(batch);
+                }
+            }
+        }
+
+        /**
+         * Stops the dispatcher. Does not wait for the dispatcher's thread.
+         */
+        public void stop() {
+            myRunning = false;
+
+            final Thread thread = myThread;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Advances the resume position past the entries drained so far.
+         */
+        private void advance() {
+            // A stopped dispatcher no longer owns the resume position.
+            if ((myBatchTs != null) && myRunning) {
+                myLastTs = myBatchTs;
+                myBatchTs = null;
+
+                final long now = System.currentTimeMillis();
+                if ((myLastSave + mySaveIntervalMillis) <= now) {
+                    myLastSave = now;
+                    saveResumeToken();
+                }
+            }
+        }
+
+        /**
+         * Delivers a batch of changes, reading the changed documents if
+         * needed. A failed read keeps the batch and is retried after the
+         * backoff until it succeeds or the dispatcher is stopped; the
+         * dispatcher never drops the batch or exits because of a failed
+         * read.
+         * 
+         * @param batch
+         *            The changes to deliver.
+         */
+        private void deliver(final List<PendingChange> batch) {
+            while (myRunning) {
+                final Map<String, Document> documents;
+                try {
+                    documents = fetch(batch);
+                }
+                catch (final RuntimeException error) {
+                    // Includes MongoDbException. Retry the same batch.
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS
+                            .toNanos(myFetchBackoff.nextDelayMillis()));
+                    continue;
+                }
+
+                myFetchBackoff.reset();
+                dispatch(batch, documents);
+                advance();
+                return;
+            }
+        }
+
+        /**
+         * Removes the buffered changes. The batch ends before the change that
+         * would take the number of documents to read over the maximum fetch
+         * size.
+         * 
+         * @return The buffered changes, in oplog order.
+         */
+        private List<PendingChange> drain() {
+            final int maxFetchSize = myMaxFetchSize;
+            final Set<String> ids = new HashSet<String>();
+            final List<PendingChange> batch = new ArrayList<PendingChange>();
+
+            Document opLogDoc = myRing.peek();
+            while (opLogDoc != null) {
+                final Element ts = opLogDoc.findFirst("ts");
+                final long time = time(ts);
+                if ((ts != null) && (time <= myHighWater)) {
+                    // Already delivered before the stream restarted.
+                    myReplayedCount.incrementAndGet();
+                }
+                else {
+                    final PendingChange change = toChange(opLogDoc);
+                    if ((change != null) && change.isFetchNeeded()
+                            && !ids.contains(change.getContext())) {
+                        if (ids.size() >= maxFetchSize) {
+                            break;
+                        }
+                        ids.add(change.getContext());
+                    }
+                    if (change != null) {
+                        batch.add(change);
+                    }
+                    if (ts != null) {
+                        myHighWater = time;
+                        myBatchTs = ts;
+
+                        // The stream has moved past the resume point.
+                        myBackoff.reset();
+                    }
+                }
+
+                myRing.poll();
+                opLogDoc = myRing.peek();
+            }
+
+            if (myCoalescing) {
+                return coalesce(batch);
+            }
+            return batch;
+        }
+
+        /**
+         * Returns the time of an oplog timestamp.
+         * 
+         * @param ts
+         *            The oplog timestamp.
+         * @return The time of the timestamp or {@link Long#MIN_VALUE} if
+         *         there is no timestamp.
+         */
+        private long time(final Element ts) {
+            if (ts instanceof MongoTimestampElement) {
+                return ((MongoTimestampElement) ts).getTime();
+            }
+            return Long.MIN_VALUE;
+        }
     }
 
     /**
@@ -180,56 +1304,145 @@ public class Watcher {
     protected final class OpLogNotification implements StreamCallback<Document> {
         @Override
         public void callback(final Document result) {
-            notifyChange(result);
+            final Dispatcher dispatcher = myDispatcher;
+            if (dispatcher != null) {
+                dispatcher.offer(this, result);
+            }
         }
 
         @Override
         public void done() {
-            restart();
+            scheduleRestart(this);
         }
 
         @Override
         public void exception(final Throwable thrown) {
-            restart();
+            scheduleRestart(this);
         }
     }
 
     /**
-     * WatchedDocumentCallback provides the callback used to report the document
-     * that has changed.
+     * PendingChange provides a change waiting to be delivered to the listener.
      * 
      * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
      */
-    protected final class WatchedDocumentCallback implements Callback<Document> {
+    protected static final class PendingChange {
 
-        /** The context of the update. */
-        private final String myChangedContext;
+        /** The context ({@code _id}) of the changed document. */
+        private final String myContext;
 
-        /** The operation of the update. */
+        /** The operation of the change. */
         private final Operation myOperation;
 
+        /** The oplog payload to deliver. Null if the document is read. */
+        private final Document myPayload;
+
+        /** The oplog timestamp of the change. */
+        private final Element myTimestamp;
+
         /**
-         * Creates a new WatchedDocumentCallback.
+         * Creates a new PendingChange.
          * 
          * @param op
-         *            The operation seen.
-         * @param changedContext
-         *            The myContext of the update.
+         *            The operation of the change.
+         * @param context
+         *            The context ({@code _id}) of the changed document.
+         * @param payload
+         *            The oplog payload to deliver or <code>null</code> if the
+         *            document should be read.
+         * @param ts
+         *            The oplog timestamp of the change.
          */
-        public WatchedDocumentCallback(final Operation op,
-                final String changedContext) {
+        public PendingChange(final Operation op, final String context,
+                final Document payload, final Element ts) {
             myOperation = op;
-            myChangedContext = changedContext;
+            myContext = context;
+            myPayload = payload;
+            myTimestamp = ts;
         }
 
-        @Override
-        public void callback(final Document result) {
-            myListener.changed(myOperation, myChangedContext, result);
+        /**
+         * Returns the context ({@code _id}) of the changed document.
+         * 
+         * @return The context ({@code _id}) of the changed document.
+         */
+        public String getContext() {
+            return myContext;
         }
 
-        @Override
-        public void exception(final Throwable thrown) {
-            restart();
+        /**
+         * Returns the operation of the change.
+         * 
+         * @return The operation of the change.
+         */
+        public Operation getOperation() {
+            return myOperation;
+        }
+
+        /**
+         * Returns the oplog payload to deliver.
+         * 
+         * @return The oplog payload to deliver or <code>null</code> if the
+         *         document is read.
+         */
+        public Document getPayload() {
+            return myPayload;
+        }
+
+        /**
+         * Returns the oplog timestamp of the change.
+         * 
+         * @return The oplog timestamp of the change.
+         */
+        public Element getTimestamp() {
+            return myTimestamp;
+        }
+
+        /**
+         * Returns true if the changed document needs to be read.
+         * 
+         * @return True if the changed document needs to be read.
+         */
+        public boolean isFetchNeeded() {
+            return (myOperation != Operation.DELETE) && (myPayload == null);
+        }
+
+        /**
+         * Returns true if this change can replace the earlier changes to the
+         * same document. A delete, a read of the document and a payload
+         * holding the whole document replace anything before them. An update
+         * payload holding only the modifiers does not.
+         * 
+         * @return True if this change can replace the earlier changes.
+         */
+        public boolean isReplacement() {
+            if ((myOperation == Operation.DELETE) || (myPayload == null)) {
+                return true;
+            }
+            for (final Element element : myPayload) {
+                if (element.getName().startsWith("$")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the change to deliver in place of an earlier change to the
+         * same document and this change. An insert followed by updates stays
+         * an insert.
+         * 
+         * @param earlier
+         *            The earlier change this change replaces.
+         * @return The merged change.
+         */
+        public PendingChange mergeEarlier(final PendingChange earlier) {
+            if ((myOperation == Operation.UPDATE)
+                    && (earlier.getOperation() == Operation.INSERT)) {
+                return new PendingChange(Operation.INSERT, myContext,
+                        myPayload, myTimestamp);
+            }
+            return this;
         }
     }
 }
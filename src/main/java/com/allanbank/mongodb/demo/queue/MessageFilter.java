@@ -0,0 +1,37 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import com.allanbank.mongodb.bson.Document;
+
+/**
+ * MessageFilter provides the ability to select which messages read from the
+ * queue are handled by a {@link QueueConsumer}.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface MessageFilter {
+
+    /**
+     * Returns true if the consumer should handle the message. This method is
+     * called from the thread reading the queue and should not block.
+     * 
+     * @param message
+     *            The message read from the queue.
+     * @return True if the consumer should handle the message.
+     */
+    public boolean accept(Document message);
+}
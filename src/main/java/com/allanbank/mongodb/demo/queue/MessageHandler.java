@@ -0,0 +1,36 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import com.allanbank.mongodb.bson.Document;
+
+/**
+ * MessageHandler provides the callback for processing a message read from the
+ * queue.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface MessageHandler {
+
+    /**
+     * Process a message from the queue. This method is called from one of the
+     * {@link QueueConsumer}'s worker threads.
+     * 
+     * @param message
+     *            The message read from the queue.
+     */
+    public void handle(Document message);
+}
@@ -0,0 +1,326 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.allanbank.mongodb.Callback;
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.FutureCallback;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.DocumentAssignable;
+import com.allanbank.mongodb.bson.element.DocumentElement;
+
+/**
+ * MongoQueue provides the producer side of a queue backed by a capped
+ * collection. Messages are coalesced into multi-document inserts. A batch is
+ * sent when it reaches the maximum number of messages, the maximum number of
+ * bytes or when the first message in the batch has waited for the linger
+ * time, whichever comes first.
+ * <p>
+ * Batches are submitted in the order the messages were sent so the order of
+ * the messages from a single thread is preserved in the capped collection.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class MongoQueue {
+
+    /** The default linger time for a batch in milliseconds. */
+    public static final long DEFAULT_LINGER_MILLIS = 5;
+
+    /** The default maximum number of bytes in a batch. */
+    public static final long DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+
+    /** The default maximum number of messages in a batch. */
+    public static final int DEFAULT_MAX_BATCH_COUNT = 1000;
+
+    /** The capped collection backing the queue. */
+    private final MongoCollection myCollection;
+
+    /** The durability for the inserts. */
+    private Durability myDurability;
+
+    /** Used to send batches that have waited for the linger time. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The time to wait for a batch to fill in milliseconds. */
+    private long myLingerMillis;
+
+    /** The scheduled task to send the current batch. */
+    private ScheduledFuture<?> myLingerTask;
+
+    /** The maximum number of bytes in a batch. */
+    private long myMaxBatchBytes;
+
+    /** The maximum number of messages in a batch. */
+    private int myMaxBatchCount;
+
+    /** The messages waiting to be sent. */
+    private List<PendingMessage> myPending;
+
+    /** The number of bytes waiting to be sent. */
+    private long myPendingBytes;
+
+    /**
+     * Creates a new MongoQueue.
+     * 
+     * @param executor
+     *            Used to send batches that have waited for the linger time.
+     * @param collection
+     *            The capped collection backing the queue.
+     */
+    public MongoQueue(final ScheduledExecutorService executor,
+            final MongoCollection collection) {
+        myExecutor = executor;
+        myCollection = collection;
+
+        myDurability = Durability.ACK;
+        myLingerMillis = DEFAULT_LINGER_MILLIS;
+        myMaxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        myMaxBatchCount = DEFAULT_MAX_BATCH_COUNT;
+
+        myPending = new ArrayList<PendingMessage>();
+        myPendingBytes = 0;
+        myLingerTask = null;
+    }
+
+    /**
+     * Sends all of the messages waiting in the current batch.
+     */
+    public synchronized void flush() {
+        if (myLingerTask != null) {
+            myLingerTask.cancel(false);
+            myLingerTask = null;
+        }
+
+        if (!myPending.isEmpty()) {
+            final List<PendingMessage> batch = myPending;
+            myPending = new ArrayList<PendingMessage>(Math.min(
+                    myMaxBatchCount, batch.size()));
+            myPendingBytes = 0;
+
+            final Document[] documents = new Document[batch.size()];
+            for (int i = 0; i < documents.length; ++i) {
+                documents[i] = batch.get(i).getDocument();
+            }
+
+            myCollection.insertAsync(new BatchCallback(batch), false,
+                    myDurability, documents);
+        }
+    }
+
+    /**
+     * Returns the durability for the inserts.
+     * 
+     * @return The durability for the inserts.
+     */
+    public synchronized Durability getDurability() {
+        return myDurability;
+    }
+
+    /**
+     * Returns the time to wait for a batch to fill in milliseconds.
+     * 
+     * @return The time to wait for a batch to fill in milliseconds.
+     */
+    public synchronized long getLingerMillis() {
+        return myLingerMillis;
+    }
+
+    /**
+     * Returns the maximum number of bytes in a batch.
+     * 
+     * @return The maximum number of bytes in a batch.
+     */
+    public synchronized long getMaxBatchBytes() {
+        return myMaxBatchBytes;
+    }
+
+    /**
+     * Returns the maximum number of messages in a batch.
+     * 
+     * @return The maximum number of messages in a batch.
+     */
+    public synchronized int getMaxBatchCount() {
+        return myMaxBatchCount;
+    }
+
+    /**
+     * Adds the message to the current batch. The message is converted to a
+     * {@link Document} before this method returns so the caller may reuse a
+     * builder for the next message.
+     * 
+     * @param message
+     *            The message to send.
+     * @return The {@link Future} that will be completed once the batch
+     *         containing the message has been inserted.
+     */
+    public synchronized Future<Integer> send(final DocumentAssignable message) {
+        final Document document = message.asDocument();
+        final long size = new DocumentElement("", document).size();
+
+        // Would this message push the batch over the byte limit?
+        if (!myPending.isEmpty() && (myMaxBatchBytes < (myPendingBytes + size))) {
+            flush();
+        }
+
+        final PendingMessage pending = new PendingMessage(document);
+        myPending.add(pending);
+        myPendingBytes += size;
+
+        if ((myMaxBatchCount <= myPending.size())
+                || (myMaxBatchBytes <= myPendingBytes)
+                || (myLingerMillis <= 0)) {
+            flush();
+        }
+        else if (myLingerTask == null) {
+            myLingerTask = myExecutor.schedule(new LingerRunnable(),
+                    myLingerMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Sets the durability for the inserts.
+     * 
+     * @param durability
+     *            The new value for the durability for the inserts.
+     */
+    public synchronized void setDurability(final Durability durability) {
+        myDurability = durability;
+    }
+
+    /**
+     * Sets the time to wait for a batch to fill in milliseconds. A value of
+     * zero sends each message as soon as it is received.
+     * 
+     * @param lingerMillis
+     *            The new value for the time to wait for a batch to fill.
+     */
+    public synchronized void setLingerMillis(final long lingerMillis) {
+        myLingerMillis = lingerMillis;
+    }
+
+    /**
+     * Sets the maximum number of bytes in a batch.
+     * 
+     * @param maxBatchBytes
+     *            The new value for the maximum number of bytes in a batch.
+     */
+    public synchronized void setMaxBatchBytes(final long maxBatchBytes) {
+        myMaxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * Sets the maximum number of messages in a batch.
+     * 
+     * @param maxBatchCount
+     *            The new value for the maximum number of messages in a batch.
+     */
+    public synchronized void setMaxBatchCount(final int maxBatchCount) {
+        myMaxBatchCount = maxBatchCount;
+    }
+
+    /**
+     * BatchCallback provides the callback for a batch insert that completes
+     * the future for each message in the batch.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class BatchCallback implements Callback<Integer> {
+
+        /** The messages in the batch. */
+        private final List<PendingMessage> myBatch;
+
+        /**
+         * Creates a new BatchCallback.
+         * 
+         * @param batch
+         *            The messages in the batch.
+         */
+        public BatchCallback(final List<PendingMessage> batch) {
+            myBatch = batch;
+        }
+
+        @Override
+        public void callback(final Integer result) {
+            final Integer one = Integer.valueOf(1);
+            for (final PendingMessage message : myBatch) {
+                message.callback(one);
+            }
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            for (final PendingMessage message : myBatch) {
+                message.exception(thrown);
+            }
+        }
+    }
+
+    /**
+     * LingerRunnable provides a {@link Runnable} to send a batch that has
+     * waited for the linger time.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class LingerRunnable implements Runnable {
+        @Override
+        public void run() {
+            flush();
+        }
+    }
+
+    /**
+     * PendingMessage provides the future for a single message waiting to be
+     * inserted.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class PendingMessage extends
+            FutureCallback<Integer> {
+
+        /** The message to insert. */
+        private final Document myDocument;
+
+        /**
+         * Creates a new PendingMessage.
+         * 
+         * @param document
+         *            The message to insert.
+         */
+        public PendingMessage(final Document document) {
+            myDocument = document;
+        }
+
+        /**
+         * Returns the message to insert.
+         * 
+         * @return The message to insert.
+         */
+        public Document getDocument() {
+            return myDocument;
+        }
+    }
+}
@@ -0,0 +1,805 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDbException;
+import com.allanbank.mongodb.MongoIterator;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.ArrayBuilder;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.builder.ComparisonOperator;
+import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.demo.coordination.group.GroupListener;
+import com.allanbank.mongodb.demo.coordination.group.GroupManager;
+import com.allanbank.mongodb.demo.coordination.group.GroupMember;
+import com.allanbank.mongodb.demo.coordination.group.GroupSnapshot;
+import com.allanbank.mongodb.error.DuplicateKeyException;
+
+/**
+ * PartitionLeaseManager provides competing consumers over a single queue.
+ * Each message is hashed into one of a fixed number of partitions using the
+ * value of its partition key field (by default the {@code producer}
+ * identifier). The consumers join a group and each leases the partitions
+ * assigned to it from a lease collection. A {@link QueueConsumer} using this
+ * manager as its {@link MessageFilter} only handles the messages in the
+ * partitions it holds.
+ * <p>
+ * Partitions are assigned by ordering the members of the group by
+ * {@code _id}; the member at index {@code i} of {@code n} members is assigned
+ * each partition {@code p} where {@code p % n == i}. The assignment is
+ * recomputed from the {@link GroupManager}'s membership snapshot whenever
+ * it reports a member joining or leaving. A partition is only taken once the
+ * previous owner has released it or its lease has expired.
+ * </p>
+ * <p>
+ * Each consumer reads the whole queue, so the new owner of a partition has
+ * usually already read past messages the previous owner never handled. To
+ * hand a partition over without skipping them, wrap the consumer's handler
+ * with {@link #trackHandoffs(MongoCollection, MessageHandler)} and give the
+ * manager the consumer with {@link #setConsumer(QueueConsumer)}. The wrapped
+ * handler records the {@code _id} of the last message handled in each
+ * partition, and that position is written to the partition's lease each time
+ * it is renewed or released. Messages handled after the last renewal by an
+ * owner that fails are handled again.
+ * </p>
+ * <p>
+ * The new owner replays the partition's messages after that position up to
+ * where its own stream was when it acquired the lease. The replay reads the
+ * queue backwards from the tail only as far as the oldest previous owner's
+ * position, with one scan for all of the partitions acquired together, and
+ * runs as its own task on the executor rather than with the renewals. The
+ * partition's messages read from the stream in the meantime are held back.
+ * The replayed and then the held messages are handed to the consumer's lanes
+ * with {@link QueueConsumer#replay(Document)}, so the ordering key of the
+ * consumer should be the partition key for each partition's messages to be
+ * handled in order. The executor should have more than one thread so a long
+ * replay does not delay the renewals.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class PartitionLeaseManager implements MessageFilter {
+
+    /** The default length of a lease in milliseconds. */
+    public static final long DEFAULT_LEASE_MILLIS = 30000;
+
+    /** The default field used to partition messages. */
+    public static final String DEFAULT_PARTITION_KEY = "producer";
+
+    /** The field in a lease holding the last message handled. */
+    public static final String POSITION_FIELD = "position";
+
+    /** The logger for failed rebalances and replays. */
+    protected static final Logger LOG = Logger
+            .getLogger(PartitionLeaseManager.class.getName());
+
+    /** The consumer to hand the replayed messages to. */
+    private QueueConsumer myConsumer;
+
+    /**
+     * The messages held back in each partition while it is replayed, or
+     * <code>null</code> if the partition is not being replayed.
+     */
+    private final AtomicReferenceArray<List<Document>> myDeferred;
+
+    /** Used to renew the leases and rebalance the partitions. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The group of consumers competing for the partitions. */
+    private final GroupManager myGroupManager;
+
+    /** The {@code _id} of the last message handled in each partition. */
+    private final AtomicReferenceArray<Element> myHandled;
+
+    /** The {@code _id} of the last message read by the consumer. */
+    private volatile Element myLastSeen;
+
+    /** The length of a lease in milliseconds. */
+    private long myLeaseMillis;
+
+    /** The collection holding the partition leases. */
+    private final MongoCollection myLeases;
+
+    /** The listener for the members joining or leaving the group. */
+    private final GroupListener myListener;
+
+    /** This consumer's membership in the group. */
+    private GroupMember myMember;
+
+    /** The partitions currently leased by this consumer. */
+    private volatile boolean[] myOwned;
+
+    /** The field used to partition messages. */
+    private String myPartitionKey;
+
+    /** The number of partitions. */
+    private final int myPartitions;
+
+    /** The queue to replay the messages from on a handoff. */
+    private MongoCollection myQueue;
+
+    /** The name of the queue being consumed. */
+    private final String myQueueName;
+
+    /** The scheduled task for renewing the leases. */
+    private ScheduledFuture<?> myScheduledTask;
+
+    /**
+     * Creates a new PartitionLeaseManager.
+     * 
+     * @param executor
+     *            Used to renew the leases and rebalance the partitions.
+     * @param groupManager
+     *            The group of consumers competing for the partitions. The
+     *            caller is responsible for starting the group manager.
+     * @param leases
+     *            The collection holding the partition leases.
+     * @param queueName
+     *            The name of the queue being consumed.
+     * @param partitions
+     *            The number of partitions.
+     */
+    public PartitionLeaseManager(final ScheduledExecutorService executor,
+            final GroupManager groupManager, final MongoCollection leases,
+            final String queueName, final int partitions) {
+        myExecutor = executor;
+        myGroupManager = groupManager;
+        myLeases = leases;
+        myQueueName = queueName;
+        myPartitions = partitions;
+
+        myLeaseMillis = DEFAULT_LEASE_MILLIS;
+        myPartitionKey = DEFAULT_PARTITION_KEY;
+
+        myOwned = new boolean[partitions];
+        myHandled = new AtomicReferenceArray<Element>(partitions);
+        myDeferred = new AtomicReferenceArray<List<Document>>(partitions);
+        myListener = new RebalanceGroupListener();
+        myLastSeen = null;
+        myConsumer = null;
+        myQueue = null;
+        myMember = null;
+        myScheduledTask = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to accept the message if this consumer holds the lease for
+     * the message's partition. While the partition is being replayed the
+     * message is held back and handed to the consumer after the replay.
+     * </p>
+     */
+    @Override
+    public boolean accept(final Document message) {
+        // Record the message before reading the owned partitions. A partition
+        // acquired concurrently either accepts the message or replays it.
+        myLastSeen = message.get("_id");
+
+        final int partition = partition(message);
+        if (!myOwned[partition]) {
+            return false;
+        }
+
+        final List<Document> deferred = myDeferred.get(partition);
+        if (deferred != null) {
+            synchronized (deferred) {
+                if (myDeferred.get(partition) == deferred) {
+                    deferred.add(message);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length of a lease in milliseconds.
+     * 
+     * @return The length of a lease in milliseconds.
+     */
+    public synchronized long getLeaseMillis() {
+        return myLeaseMillis;
+    }
+
+    /**
+     * Returns the partitions currently leased by this consumer.
+     * 
+     * @return The partitions currently leased by this consumer.
+     */
+    public List<Integer> getOwnedPartitions() {
+        final boolean[] owned = myOwned;
+        final List<Integer> result = new ArrayList<Integer>();
+        for (int i = 0; i < owned.length; ++i) {
+            if (owned[i]) {
+                result.add(Integer.valueOf(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the field used to partition messages.
+     * 
+     * @return The field used to partition messages.
+     */
+    public synchronized String getPartitionKey() {
+        return myPartitionKey;
+    }
+
+    /**
+     * Returns the number of partitions.
+     * 
+     * @return The number of partitions.
+     */
+    public int getPartitions() {
+        return myPartitions;
+    }
+
+    /**
+     * Returns the partition for the message.
+     * 
+     * @param message
+     *            The message to determine the partition for.
+     * @return The partition for the message.
+     */
+    public int partition(final Document message) {
+        final Element key = message.get(myPartitionKey);
+        if (key == null) {
+            return 0;
+        }
+        return (key.getValueAsString().hashCode() & Integer.MAX_VALUE)
+                % myPartitions;
+    }
+
+    /**
+     * Sets the consumer to hand the replayed messages to. Partitions acquired
+     * before the consumer is set are not replayed.
+     * 
+     * @param consumer
+     *            The consumer using this manager as its filter.
+     */
+    public synchronized void setConsumer(final QueueConsumer consumer) {
+        myConsumer = consumer;
+    }
+
+    /**
+     * Sets the length of a lease in milliseconds. Takes effect the next time
+     * the manager is started.
+     * 
+     * @param leaseMillis
+     *            The new value for the length of a lease in milliseconds.
+     */
+    public synchronized void setLeaseMillis(final long leaseMillis) {
+        myLeaseMillis = leaseMillis;
+    }
+
+    /**
+     * Sets the field used to partition messages. Takes effect the next time
+     * the manager is started.
+     * 
+     * @param partitionKey
+     *            The new value for the field used to partition messages.
+     */
+    public synchronized void setPartitionKey(final String partitionKey) {
+        myPartitionKey = partitionKey;
+    }
+
+    /**
+     * Returns a handler for the consumer that records the last message
+     * handled in each partition and sets the queue to replay a partition's
+     * messages from when this consumer acquires it. Takes effect the next
+     * time a partition is acquired.
+     * 
+     * @param queue
+     *            The queue to replay the messages from.
+     * @param handler
+     *            The handler for the messages.
+     * @return The handler to give the {@link QueueConsumer}.
+     */
+    public synchronized MessageHandler trackHandoffs(
+            final MongoCollection queue, final MessageHandler handler) {
+        myQueue = queue;
+        return new HandoffMessageHandler(handler);
+    }
+
+    /**
+     * Joins the group of consumers and starts leasing partitions.
+     */
+    public synchronized void start() {
+        if (myMember == null) {
+            myGroupManager.addListener(myListener);
+
+            myMember = myGroupManager.addMember();
+
+            final long renew = Math.max(1, myLeaseMillis / 3);
+            myScheduledTask = myExecutor.scheduleWithFixedDelay(
+                    new RebalanceRunnable(), 0, renew, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Releases all of the partitions and leaves the group of consumers.
+     */
+    public synchronized void stop() {
+        if (myMember != null) {
+            myScheduledTask.cancel(false);
+            myScheduledTask = null;
+
+            myGroupManager.removeListener(myListener);
+
+            final boolean[] owned = myOwned;
+            myOwned = new boolean[myPartitions];
+            for (int i = 0; i < owned.length; ++i) {
+                myDeferred.set(i, null);
+                if (owned[i]) {
+                    release(i);
+                }
+            }
+
+            myMember.remove();
+            myMember = null;
+        }
+    }
+
+    /**
+     * Acquires or renews the lease for a partition. A renewal also records
+     * the last message handled in the partition; a new lease keeps the
+     * previous owner's position.
+     * 
+     * @param partition
+     *            The partition to lease.
+     * @return True if the lease is held by this consumer.
+     * @throws MongoDbException
+     *             On a failure other than another consumer holding the
+     *             lease.
+     */
+    protected boolean acquire(final int partition) {
+        final long now = myGroupManager.getClock().currentTimeMillis();
+        final String owner = myMember.getId();
+
+        final DocumentBuilder query = BuilderFactory.start();
+        query.add("_id", leaseId(partition));
+        final ArrayBuilder or = query.pushArray("$or");
+        or.push().add("owner", owner);
+        or.push().push("expires")
+                .add(ComparisonOperator.LT.getToken(), new Date(now));
+
+        final DocumentBuilder update = BuilderFactory.start();
+        final DocumentBuilder set = update.push("$set");
+        set.add("owner", owner).add("expires", new Date(now + myLeaseMillis));
+
+        final Element handled = myHandled.get(partition);
+        if (myOwned[partition] && (handled != null)) {
+            set.add(handled.withName(POSITION_FIELD));
+        }
+
+        try {
+            return 0 < myLeases.update(query, update, false, true,
+                    Durability.ACK);
+        }
+        catch (final DuplicateKeyException error) {
+            // Duplicate key on the upsert. Someone else holds the lease.
+            return false;
+        }
+    }
+
+    /**
+     * Returns the {@code _id} for the lease on a partition.
+     * 
+     * @param partition
+     *            The partition.
+     * @return The {@code _id} for the lease on the partition.
+     */
+    protected String leaseId(final int partition) {
+        return myQueueName + "/" + partition;
+    }
+
+    /**
+     * Recomputes the partitions assigned to this consumer, releases the
+     * partitions no longer assigned and acquires or renews the leases for the
+     * assigned partitions.
+     */
+    protected synchronized void rebalance() {
+        if (myMember == null) {
+            return;
+        }
+
+        final GroupSnapshot snapshot = myGroupManager.getSnapshot();
+        final String id = myMember.getId();
+
+        final int index;
+        final int count;
+        if (snapshot.contains(id)) {
+            index = snapshot.indexOf(id);
+            count = snapshot.size();
+        }
+        else {
+            // Our own member has not been seen by the watcher yet.
+            final List<String> members = new ArrayList<String>(
+                    snapshot.getMembers());
+            members.add(id);
+            Collections.sort(members);
+            index = members.indexOf(id);
+            count = members.size();
+        }
+
+        final boolean[] previous = myOwned;
+        final boolean[] owned = new boolean[myPartitions];
+        final List<Integer> acquired = new ArrayList<Integer>();
+        for (int i = 0; i < myPartitions; ++i) {
+            if ((count != 0) && ((i % count) == index)) {
+                owned[i] = acquire(i);
+            }
+            else if (previous[i]) {
+                release(i);
+            }
+
+            if (!owned[i]) {
+                myDeferred.set(i, null);
+            }
+            else if (!previous[i] && (myConsumer != null)
+                    && (myQueue != null)) {
+                // Hold back the partition's messages until it is replayed.
+                myDeferred.set(i, new ArrayList<Document>());
+                acquired.add(Integer.valueOf(i));
+            }
+        }
+        myOwned = owned;
+
+        if (!acquired.isEmpty()) {
+            // Read the consumer's position after publishing the new partitions.
+            myExecutor.execute(new HandoffRunnable(myQueue, myConsumer,
+                    acquired, myLastSeen));
+        }
+    }
+
+    /**
+     * Replays the messages in the newly acquired partitions from the previous
+     * owners' positions up to the consumer's position and then hands the
+     * consumer the messages held back during the replay. If the replay fails
+     * the held back messages are still handed to the consumer.
+     * 
+     * @param queue
+     *            The queue to replay the messages from.
+     * @param consumer
+     *            The consumer to hand the messages to.
+     * @param partitions
+     *            The partitions acquired.
+     * @param stopAt
+     *            The {@code _id} of the last message read by the consumer
+     *            when the partitions were acquired. May be <code>null</code>
+     *            if the consumer has not read a message, in which case there
+     *            is nothing to replay.
+     */
+    protected void handoff(final MongoCollection queue,
+            final QueueConsumer consumer, final List<Integer> partitions,
+            final Element stopAt) {
+        Map<Integer, List<Document>> replays = Collections.emptyMap();
+        try {
+            if (stopAt != null) {
+                replays = collect(queue, partitions, stopAt);
+            }
+        }
+        finally {
+            for (final Integer partition : partitions) {
+                finish(consumer, partition.intValue(), replays.get(partition));
+            }
+        }
+    }
+
+    /**
+     * Reads the messages to replay for each partition. The queue is read
+     * backwards from the tail, skipping to the consumer's position, until
+     * every previous owner's position has been found or the head of the queue
+     * is reached. If a position has been overwritten every message left in
+     * the partition is replayed.
+     * 
+     * @param queue
+     *            The queue to replay the messages from.
+     * @param partitions
+     *            The partitions acquired.
+     * @param stopAt
+     *            The {@code _id} of the last message read by the consumer
+     *            when the partitions were acquired.
+     * @return The messages to replay for each partition with a previous
+     *         owner's position, in insertion order.
+     */
+    protected Map<Integer, List<Document>> collect(
+            final MongoCollection queue, final List<Integer> partitions,
+            final Element stopAt) {
+        final Map<Integer, Element> positions = new HashMap<Integer, Element>();
+        final Map<Integer, List<Document>> replays = new HashMap<Integer, List<Document>>();
+        for (final Integer partition : partitions) {
+            final Document lease = myLeases.findOne(BuilderFactory.start()
+                    .add("_id", leaseId(partition.intValue())));
+            final Element position = (lease != null) ? lease
+                    .get(POSITION_FIELD) : null;
+            if (position != null) {
+                // Otherwise no owner has handled a message in the partition.
+                final Element resumeAfter = position.withName("_id");
+                myHandled.set(partition.intValue(), resumeAfter);
+                positions.put(partition, resumeAfter);
+                replays.put(partition, new ArrayList<Document>());
+            }
+        }
+        if (positions.isEmpty()) {
+            return replays;
+        }
+
+        final Find.Builder builder = new Find.Builder(BuilderFactory.start());
+        builder.setSort(BuilderFactory.start().add("$natural", -1));
+
+        final MongoIterator<Document> iter = queue.find(builder.build());
+        try {
+            boolean skipping = true;
+            while (iter.hasNext() && !positions.isEmpty()) {
+                final Document message = iter.next();
+                final Element id = message.get("_id");
+                skipping = skipping && !stopAt.equals(id);
+                if (!skipping) {
+                    final Integer partition = Integer
+                            .valueOf(partition(message));
+                    final Element resumeAfter = positions.get(partition);
+                    if (resumeAfter == null) {
+                        // Not a partition being replayed.
+                    }
+                    else if (resumeAfter.equals(id)) {
+                        positions.remove(partition);
+                    }
+                    else {
+                        replays.get(partition).add(message);
+                    }
+                }
+            }
+        }
+        finally {
+            iter.close();
+        }
+
+        for (final List<Document> replay : replays.values()) {
+            Collections.reverse(replay);
+        }
+        return replays;
+    }
+
+    /**
+     * Hands the replayed messages and then the messages held back during the
+     * replay to the consumer and stops holding back the partition's messages.
+     * Stops early if the partition has been released.
+     * 
+     * @param consumer
+     *            The consumer to hand the messages to.
+     * @param partition
+     *            The partition acquired.
+     * @param replay
+     *            The messages to replay, in insertion order. May be
+     *            <code>null</code>.
+     */
+    protected void finish(final QueueConsumer consumer, final int partition,
+            final List<Document> replay) {
+        final List<Document> deferred = myDeferred.get(partition);
+        if (deferred == null) {
+            return;
+        }
+
+        Element replayed = null;
+        if (replay != null) {
+            for (final Document message : replay) {
+                if (myDeferred.get(partition) != deferred) {
+                    return;
+                }
+                consumer.replay(message);
+                replayed = message.get("_id");
+            }
+        }
+
+        int next = 0;
+        while (true) {
+            final List<Document> held;
+            synchronized (deferred) {
+                if (myDeferred.get(partition) != deferred) {
+                    return;
+                }
+                if (next == deferred.size()) {
+                    // Later messages are accepted from the stream.
+                    myDeferred.set(partition, null);
+                    return;
+                }
+                held = new ArrayList<Document>(deferred.subList(next,
+                        deferred.size()));
+                next = deferred.size();
+            }
+
+            for (final Document message : held) {
+                // The last message replayed may also have been held back.
+                if ((replayed == null)
+                        || !replayed.equals(message.get("_id"))) {
+                    consumer.replay(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the lease for a partition by expiring it and records the last
+     * message handled in the partition for the next owner.
+     * 
+     * @param partition
+     *            The partition to release.
+     */
+    protected void release(final int partition) {
+        final DocumentBuilder query = BuilderFactory.start();
+        query.add("_id", leaseId(partition));
+        query.add("owner", myMember.getId());
+
+        final DocumentBuilder update = BuilderFactory.start();
+        final DocumentBuilder set = update.push("$set");
+        set.add("expires", new Date(0));
+
+        final Element handled = myHandled.getAndSet(partition, null);
+        if (handled != null) {
+            set.add(handled.withName(POSITION_FIELD));
+        }
+
+        myLeases.update(query, update, false, false, Durability.ACK);
+    }
+
+    /**
+     * Schedules a rebalance of the partitions.
+     */
+    protected void scheduleRebalance() {
+        myExecutor.execute(new RebalanceRunnable());
+    }
+
+    /**
+     * HandoffMessageHandler provides a {@link MessageHandler} that records
+     * the last message handled in each partition.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class HandoffMessageHandler implements MessageHandler {
+
+        /** The handler for the messages. */
+        private final MessageHandler myDelegate;
+
+        /**
+         * Creates a new HandoffMessageHandler.
+         * 
+         * @param delegate
+         *            The handler for the messages.
+         */
+        public HandoffMessageHandler(final MessageHandler delegate) {
+            myDelegate = delegate;
+        }
+
+        @Override
+        public void handle(final Document message) {
+            myDelegate.handle(message);
+            myHandled.set(partition(message), message.get("_id"));
+        }
+    }
+
+    /**
+     * HandoffRunnable provides a {@link Runnable} to replay the messages in
+     * newly acquired partitions.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class HandoffRunnable implements Runnable {
+
+        /** The consumer to hand the messages to. */
+        private final QueueConsumer myConsumer;
+
+        /** The partitions acquired. */
+        private final List<Integer> myPartitions;
+
+        /** The queue to replay the messages from. */
+        private final MongoCollection myQueue;
+
+        /** The last message read by the consumer when acquired. */
+        private final Element myStopAt;
+
+        /**
+         * Creates a new HandoffRunnable.
+         * 
+         * @param queue
+         *            The queue to replay the messages from.
+         * @param consumer
+         *            The consumer to hand the messages to.
+         * @param partitions
+         *            The partitions acquired.
+         * @param stopAt
+         *            The {@code _id} of the last message read by the consumer
+         *            when the partitions were acquired.
+         */
+        public HandoffRunnable(final MongoCollection queue,
+                final QueueConsumer consumer, final List<Integer> partitions,
+                final Element stopAt) {
+            myQueue = queue;
+            myConsumer = consumer;
+            myPartitions = partitions;
+            myStopAt = stopAt;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handoff(myQueue, myConsumer, myPartitions, myStopAt);
+            }
+            catch (final RuntimeException error) {
+                LOG.log(Level.WARNING, "Replaying the partitions "
+                        + myPartitions + " of " + myQueueName + " failed.",
+                        error);
+            }
+        }
+    }
+
+    /**
+     * RebalanceGroupListener provides the trigger to rebalance when the
+     * members of the group change.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class RebalanceGroupListener implements GroupListener {
+        @Override
+        public void memberAdded(final String context) {
+            scheduleRebalance();
+        }
+
+        @Override
+        public void memberRemoved(final String context) {
+            scheduleRebalance();
+        }
+    }
+
+    /**
+     * RebalanceRunnable provides a {@link Runnable} to renew the leases and
+     * rebalance the partitions.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class RebalanceRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                rebalance();
+            }
+            catch (final RuntimeException error) {
+                // Try again next interval.
+                LOG.log(Level.WARNING, "Rebalancing the partitions of "
+                        + myQueueName + " failed.", error);
+            }
+        }
+    }
+}
@@ -0,0 +1,999 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoCursorControl;
+import com.allanbank.mongodb.StreamCallback;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.DocumentAssignable;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.demo.coordination.watch.Backoff;
+
+/**
+ * PriorityQueueConsumer provides a consumer for a queue backed by several
+ * capped collections, one per priority lane. Each lane is read with its own
+ * restartable tailable cursor into its own buffer, and a set of worker
+ * threads take messages from the buffers using deficit round-robin
+ * scheduling.
+ * <p>
+ * Each visit to a lane that has messages gives it credit for
+ * {@code weight} messages. The workers take messages from the lane until the
+ * credit is spent or the lane is empty and then move to the next lane. An
+ * empty lane does not keep its credit. While all of the lanes have messages
+ * each lane gets a share of the workers in proportion to its weight. When the
+ * other lanes are idle, one lane can use all of the workers. An urgent
+ * message only waits for the messages already taken by the workers, not
+ * behind the backlog of the other lanes.
+ * </p>
+ * <p>
+ * The lanes are created with {@code InitializeQueue} and named with
+ * {@link #laneName(String, int)}. Producers send to a lane's collection with
+ * a {@link MongoQueue}. The cursor document for each lane is read from the
+ * {@code lookup} collection. If the lookup collection is set then each lane's
+ * cursor document is written back to it when the consumer is stopped so the
+ * next process continues where this one stopped.
+ * </p>
+ * <p>
+ * The driver's thread delivering a lane's stream never blocks. Once the
+ * lane's buffer holds more than the prefetch the stream is paused, leaving
+ * its cursor open on the server, and it is resumed from its cursor document
+ * once the workers have drained half of the buffer.
+ * </p>
+ * <p>
+ * A lane's stream that ends or fails is re-opened after a jittered,
+ * exponentially growing delay. A failed stream is re-opened from its cursor
+ * document. Once the cursor is dead the lane is re-opened with a new tailable
+ * cursor over the lane's collection, in insertion order, that skips up to the
+ * last message read from the lane. If no message has been read, or it has
+ * been overwritten, every message in the collection is delivered.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class PriorityQueueConsumer {
+
+    /** The default number of messages to request in each batch. */
+    public static final int DEFAULT_BATCH_SIZE = QueueConsumer.DEFAULT_BATCH_SIZE;
+
+    /** The default number of messages buffered ahead of the workers. */
+    public static final int DEFAULT_PREFETCH = QueueConsumer.DEFAULT_PREFETCH;
+
+    /** The default number of worker threads. */
+    public static final int DEFAULT_WORKERS = QueueConsumer.DEFAULT_WORKERS;
+
+    /** The default delay before the first re-open in milliseconds. */
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = QueueConsumer.DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+    /** The default maximum delay between re-opens in milliseconds. */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = QueueConsumer.DEFAULT_MAX_BACKOFF_MILLIS;
+
+    /**
+     * Returns the name of the capped collection for a priority lane of a
+     * queue.
+     * 
+     * @param queue
+     *            The name of the queue.
+     * @param lane
+     *            The index of the lane.
+     * @return The name of the lane's capped collection.
+     */
+    public static String laneName(final String queue, final int lane) {
+        return queue + "." + lane;
+    }
+
+    /** The number of worker threads currently running. */
+    private int myActiveWorkers;
+
+    /** The delay before the first re-open of a lane in milliseconds. */
+    private long myBackoffInitialMillis;
+
+    /** The maximum delay between re-opens of a lane in milliseconds. */
+    private long myBackoffMaxMillis;
+
+    /** The number of messages to request in each batch. */
+    private int myBatchSize;
+
+    /** The index of the lane the workers are currently taking messages from. */
+    private int myCurrent;
+
+    /** Used to re-open the lanes' streams after a delay. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The number of messages the handler failed to process. */
+    private final AtomicLong myFailed;
+
+    /** The handler for the messages. */
+    private final MessageHandler myHandler;
+
+    /** The priority lanes. */
+    private final List<PriorityLane> myLanes;
+
+    /** The collection to write the lanes' cursor documents back to. */
+    private MongoCollection myLookup;
+
+    /** The client for the consumer. */
+    private final MongoClient myMongoClient;
+
+    /**
+     * The number of messages buffered ahead of the workers for each lane
+     * before the lane's stream is paused.
+     */
+    private int myPrefetch;
+
+    /** The number of messages processed. */
+    private final AtomicLong myProcessed;
+
+    /** True while the consumer is started. */
+    private boolean myRunning;
+
+    /** The factory for the worker threads. */
+    private ThreadFactory myThreadFactory;
+
+    /** The number of worker threads. */
+    private int myWorkers;
+
+    /**
+     * Creates a new PriorityQueueConsumer.
+     * 
+     * @param executor
+     *            Used to re-open the lanes' streams after a delay.
+     * @param mongoClient
+     *            The client for the consumer.
+     * @param handler
+     *            The handler for the messages.
+     */
+    public PriorityQueueConsumer(final ScheduledExecutorService executor,
+            final MongoClient mongoClient, final MessageHandler handler) {
+        myExecutor = executor;
+        myMongoClient = mongoClient;
+        myHandler = handler;
+
+        myBatchSize = DEFAULT_BATCH_SIZE;
+        myPrefetch = DEFAULT_PREFETCH;
+        myWorkers = DEFAULT_WORKERS;
+        myThreadFactory = Executors.defaultThreadFactory();
+        myBackoffInitialMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+        myBackoffMaxMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+        myFailed = new AtomicLong(0);
+        myProcessed = new AtomicLong(0);
+
+        myLanes = new ArrayList<PriorityLane>();
+        myLookup = null;
+        myActiveWorkers = 0;
+        myCurrent = 0;
+        myRunning = false;
+    }
+
+    /**
+     * Adds a priority lane. Lanes must be added before the consumer is
+     * started.
+     * 
+     * @param cursorDocument
+     *            The restartable cursor document for the lane's capped
+     *            collection.
+     * @param weight
+     *            The number of messages taken from the lane each time it is
+     *            visited. Values less than one are treated as one.
+     * @return The index of the lane.
+     * @throws IllegalStateException
+     *             If the consumer has been started.
+     */
+    public synchronized int addLane(final DocumentAssignable cursorDocument,
+            final int weight) throws IllegalStateException {
+        if (myRunning) {
+            throw new IllegalStateException(
+                    "Lanes must be added before the consumer is started.");
+        }
+        myLanes.add(new PriorityLane(cursorDocument.asDocument(), Math.max(1,
+                weight), myPrefetch, new Backoff(myBackoffInitialMillis,
+                myBackoffMaxMillis)));
+        return myLanes.size() - 1;
+    }
+
+    /**
+     * Returns the number of messages to request in each batch.
+     * 
+     * @return The number of messages to request in each batch.
+     */
+    public synchronized int getBatchSize() {
+        return myBatchSize;
+    }
+
+    /**
+     * Returns the number of messages the handler failed to process.
+     * 
+     * @return The number of messages the handler failed to process.
+     */
+    public long getFailedCount() {
+        return myFailed.get();
+    }
+
+    /**
+     * Returns the number of priority lanes.
+     * 
+     * @return The number of priority lanes.
+     */
+    public synchronized int getLaneCount() {
+        return myLanes.size();
+    }
+
+    /**
+     * Returns the collection to write the lanes' cursor documents back to.
+     * 
+     * @return The collection to write the lanes' cursor documents back to.
+     */
+    public synchronized MongoCollection getLookup() {
+        return myLookup;
+    }
+
+    /**
+     * Returns the number of messages buffered ahead of the workers for each
+     * lane.
+     * 
+     * @return The number of messages buffered ahead of the workers for each
+     *         lane.
+     */
+    public synchronized int getPrefetch() {
+        return myPrefetch;
+    }
+
+    /**
+     * Returns the number of messages processed.
+     * 
+     * @return The number of messages processed.
+     */
+    public long getProcessedCount() {
+        return myProcessed.get();
+    }
+
+    /**
+     * Returns the number of messages read from a lane.
+     * 
+     * @param lane
+     *            The index of the lane.
+     * @return The number of messages read from the lane.
+     */
+    public synchronized long getReceivedCount(final int lane) {
+        return myLanes.get(lane).getReceivedCount();
+    }
+
+    /**
+     * Returns the number of worker threads.
+     * 
+     * @return The number of worker threads.
+     */
+    public synchronized int getWorkers() {
+        return myWorkers;
+    }
+
+    /**
+     * Sets the delays for re-opening a lane's stream after it ends or fails.
+     * Takes effect for the lanes added afterwards.
+     * 
+     * @param initialMillis
+     *            The delay before the first re-open in milliseconds.
+     * @param maxMillis
+     *            The maximum delay between re-opens in milliseconds.
+     */
+    public synchronized void setBackoff(final long initialMillis,
+            final long maxMillis) {
+        myBackoffInitialMillis = initialMillis;
+        myBackoffMaxMillis = maxMillis;
+    }
+
+    /**
+     * Sets the number of messages to request in each batch. Takes effect the
+     * next time each lane's stream is started.
+     * 
+     * @param batchSize
+     *            The new value for the number of messages to request in each
+     *            batch.
+     */
+    public synchronized void setBatchSize(final int batchSize) {
+        myBatchSize = batchSize;
+    }
+
+    /**
+     * Sets the collection to write the lanes' cursor documents back to. Each
+     * lane's cursor document is written as the {@code cursor} field of the
+     * document with the lane's collection name as its {@code _id}.
+     * 
+     * @param lookup
+     *            The new value for the collection to write the lanes' cursor
+     *            documents back to. May be <code>null</code> to not write the
+     *            cursor documents.
+     */
+    public synchronized void setLookup(final MongoCollection lookup) {
+        myLookup = lookup;
+    }
+
+    /**
+     * Sets the number of messages buffered ahead of the workers for each
+     * lane. Takes effect for the lanes added afterwards.
+     * 
+     * @param prefetch
+     *            The new value for the number of messages buffered ahead of
+     *            the workers for each lane.
+     */
+    public synchronized void setPrefetch(final int prefetch) {
+        myPrefetch = prefetch;
+    }
+
+    /**
+     * Sets the factory for the worker threads. Takes effect the next time the
+     * consumer is started.
+     * 
+     * @param threadFactory
+     *            The new value for the factory for the worker threads.
+     */
+    public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+        myThreadFactory = threadFactory;
+    }
+
+    /**
+     * Sets the number of worker threads. Takes effect the next time the
+     * consumer is started.
+     * 
+     * @param workers
+     *            The new value for the number of worker threads.
+     */
+    public synchronized void setWorkers(final int workers) {
+        myWorkers = workers;
+    }
+
+    /**
+     * Starts the consumer.
+     */
+    public void start() {
+        synchronized (this) {
+            if (myRunning) {
+                return;
+            }
+            myRunning = true;
+
+            for (final PriorityLane lane : myLanes) {
+                lane.open(myBatchSize);
+            }
+
+            // Workers still draining from the last stop keep running.
+            while (myActiveWorkers < myWorkers) {
+                myActiveWorkers += 1;
+                myThreadFactory.newThread(new WorkerRunnable()).start();
+            }
+        }
+
+        // Starting a stream may query the lane's collection. Do not hold the
+        // consumer's lock while waiting on the driver.
+        for (final PriorityLane lane : myLanes) {
+            lane.startStream();
+        }
+    }
+
+    /**
+     * Stops the consumer and writes each lane's cursor document to the lookup
+     * collection, if set. The messages already buffered are handled before
+     * the worker threads exit.
+     */
+    public void stop() {
+        final MongoCollection lookup;
+        synchronized (this) {
+            if (!myRunning) {
+                return;
+            }
+            for (final PriorityLane lane : myLanes) {
+                lane.close();
+            }
+
+            myRunning = false;
+            notifyAll();
+
+            lookup = myLookup;
+        }
+
+        for (final PriorityLane lane : myLanes) {
+            lane.saveCursor(lookup);
+        }
+    }
+
+    /**
+     * Adds a message read from a lane to the lane's buffer and wakes a
+     * worker. Called by the driver's thread so it never blocks; the lane's
+     * stream is paused once its buffer is full.
+     * 
+     * @param lane
+     *            The lane the message was read from.
+     * @param callback
+     *            The callback for the stream that read the message.
+     * @param message
+     *            The message read from the lane.
+     */
+    protected void dispatch(final PriorityLane lane,
+            final LaneStreamCallback callback, final Document message) {
+        lane.add(callback, message);
+        messageAdded();
+    }
+
+    /**
+     * Calls the handler for a message.
+     * 
+     * @param message
+     *            The message to handle.
+     */
+    protected void handle(final Document message) {
+        try {
+            myHandler.handle(message);
+            myProcessed.incrementAndGet();
+        }
+        catch (final RuntimeException error) {
+            myFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wakes a worker waiting for a message.
+     */
+    protected synchronized void messageAdded() {
+        notify();
+    }
+
+    /**
+     * Returns the next message to handle using deficit round-robin across the
+     * lanes. Waits if all of the lanes are empty.
+     * 
+     * @return The next message to handle or <code>null</code> if the consumer
+     *         has been stopped and all of the lanes are empty. The caller
+     *         must exit when <code>null</code> is returned.
+     * @throws InterruptedException
+     *             If interrupted waiting for a message.
+     */
+    protected synchronized Document next() throws InterruptedException {
+        while (true) {
+            final int count = myLanes.size();
+            for (int i = 0; i < count; ++i) {
+                final PriorityLane lane = myLanes.get(myCurrent);
+                if (lane.isEmpty()) {
+                    // An idle lane does not bank credit.
+                    lane.setDeficit(0);
+                    myCurrent = (myCurrent + 1) % count;
+                }
+                else {
+                    if (lane.getDeficit() <= 0) {
+                        lane.setDeficit(lane.getWeight());
+                    }
+                    lane.setDeficit(lane.getDeficit() - 1);
+                    if (lane.getDeficit() <= 0) {
+                        myCurrent = (myCurrent + 1) % count;
+                    }
+                    return lane.poll();
+                }
+            }
+
+            if (!myRunning) {
+                myActiveWorkers -= 1;
+                return null;
+            }
+            wait();
+        }
+    }
+
+    /**
+     * Re-opens a lane's stream if the lane is still open. The consumer's lock
+     * is not held while the stream is started.
+     * 
+     * @param lane
+     *            The lane to re-open.
+     */
+    protected void reopen(final PriorityLane lane) {
+        lane.startStream();
+    }
+
+    /**
+     * Records that a worker exited without being told to.
+     */
+    protected synchronized void workerExited() {
+        myActiveWorkers -= 1;
+    }
+
+    /**
+     * PriorityLane provides a priority lane: the stream of messages from one
+     * capped collection and the buffer of messages waiting for the workers.
+     * The scheduling state is guarded by the consumer's lock; the stream is
+     * guarded by the lane's lock. Neither lock is held while waiting on the
+     * driver.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class PriorityLane {
+
+        /** The delays for re-opening the stream. */
+        private final Backoff myBackoff;
+
+        /** The number of messages to request in each batch. */
+        private int myBatchSize;
+
+        /** The buffered messages. */
+        private final BlockingQueue<Document> myBuffer;
+
+        /** The callback for the active stream of messages. */
+        private LaneStreamCallback myCallback;
+
+        /** The number of buffered messages to pause the stream above. */
+        private final int myCapacity;
+
+        /** The controls for the active stream of messages. */
+        private MongoCursorControl myControls;
+
+        /** The cursor document to start the stream from. */
+        private Document myCursorDocument;
+
+        /** The messages the lane may still take in the current round. */
+        private int myDeficit;
+
+        /** The {@code _id} of the last message read from the lane. */
+        private volatile Element myLastRead;
+
+        /** True while the consumer is reading from the lane. */
+        private boolean myOpen;
+
+        /** True if the stream is paused until the buffer drains. */
+        private volatile boolean myPaused;
+
+        /** The lane's capped collection, from the cursor's namespace. */
+        private final MongoCollection myQueue;
+
+        /** The number of messages read from the lane. */
+        private final AtomicLong myReceived;
+
+        /** The number of messages taken each time the lane is visited. */
+        private final int myWeight;
+
+        /**
+         * Creates a new PriorityLane.
+         * 
+         * @param cursorDocument
+         *            The restartable cursor document for the lane.
+         * @param weight
+         *            The number of messages taken each time the lane is
+         *            visited.
+         * @param capacity
+         *            The number of buffered messages to pause the stream
+         *            above.
+         * @param backoff
+         *            The delays for re-opening the stream.
+         */
+        public PriorityLane(final Document cursorDocument, final int weight,
+                final int capacity, final Backoff backoff) {
+            myCursorDocument = cursorDocument;
+            myWeight = weight;
+            myBackoff = backoff;
+            myCapacity = Math.max(1, capacity);
+            myQueue = QueueConsumer.findQueue(myMongoClient, cursorDocument);
+            myBuffer = new LinkedBlockingQueue<Document>();
+            myReceived = new AtomicLong(0);
+
+            myBatchSize = DEFAULT_BATCH_SIZE;
+            myDeficit = 0;
+            myLastRead = null;
+            myCallback = null;
+            myControls = null;
+            myOpen = false;
+            myPaused = false;
+        }
+
+        /**
+         * Adds a message to the lane's buffer. Pauses the stream once the
+         * buffer holds more than the prefetch.
+         * 
+         * @param callback
+         *            The callback for the stream that read the message.
+         * @param message
+         *            The message to add.
+         */
+        public void add(final LaneStreamCallback callback,
+                final Document message) {
+            myReceived.incrementAndGet();
+            myLastRead = message.get("_id");
+            myBackoff.reset();
+
+            myBuffer.add(message);
+            if (myCapacity < myBuffer.size()) {
+                pause(callback);
+            }
+        }
+
+        /**
+         * Stops reading from the lane. The cursor is left open on the server
+         * so it can be saved.
+         */
+        public synchronized void close() {
+            myOpen = false;
+            myPaused = false;
+            stopStream();
+        }
+
+        /**
+         * Returns the messages the lane may still take in the current round.
+         * 
+         * @return The messages the lane may still take in the current round.
+         */
+        public int getDeficit() {
+            return myDeficit;
+        }
+
+        /**
+         * Returns the number of messages read from the lane.
+         * 
+         * @return The number of messages read from the lane.
+         */
+        public long getReceivedCount() {
+            return myReceived.get();
+        }
+
+        /**
+         * Returns the number of messages taken each time the lane is visited.
+         * 
+         * @return The number of messages taken each time the lane is visited.
+         */
+        public int getWeight() {
+            return myWeight;
+        }
+
+        /**
+         * Returns true if there are no buffered messages.
+         * 
+         * @return True if there are no buffered messages.
+         */
+        public boolean isEmpty() {
+            return myBuffer.isEmpty();
+        }
+
+        /**
+         * Records a failure to re-open the stream and returns the time to wait
+         * before trying again.
+         * 
+         * @return The time to wait before trying again in milliseconds.
+         */
+        public long nextDelayMillis() {
+            return myBackoff.nextDelayMillis();
+        }
+
+        /**
+         * Allows the stream to be started. The caller starts it with
+         * {@link #startStream()}.
+         * 
+         * @param batchSize
+         *            The number of messages to request in each batch.
+         */
+        public synchronized void open(final int batchSize) {
+            myOpen = true;
+            myBatchSize = batchSize;
+        }
+
+        /**
+         * Pauses the stream, leaving its cursor open on the server, until the
+         * workers drain the buffer. The messages in the stream's current batch
+         * are still added to the buffer.
+         * 
+         * @param callback
+         *            The callback for the stream to pause.
+         */
+        public synchronized void pause(final LaneStreamCallback callback) {
+            if ((myCallback == callback) && !myPaused) {
+                stopStream();
+                myPaused = true;
+            }
+        }
+
+        /**
+         * Removes the next buffered message. Resumes a paused stream once the
+         * buffer has drained to half of the prefetch.
+         * 
+         * @return The next buffered message or <code>null</code> if there are
+         *         no buffered messages.
+         */
+        public Document poll() {
+            final Document message = myBuffer.poll();
+            if (myPaused && (myBuffer.size() <= (myCapacity / 2))) {
+                resume();
+            }
+            return message;
+        }
+
+        /**
+         * Schedules the stream to be re-opened if the callback is for the
+         * active stream. The stream is re-opened from its cursor document
+         * unless the cursor is dead. Streams that have already been stopped
+         * or replaced are ignored.
+         * 
+         * @param callback
+         *            The callback for the stream that ended.
+         * @param cursorDead
+         *            True if the stream's cursor cannot be restarted and the
+         *            stream must resume after the last message read instead.
+         */
+        public synchronized void restart(final LaneStreamCallback callback,
+                final boolean cursorDead) {
+            if (myCallback == callback) {
+                stopStream();
+                if (cursorDead && (myQueue != null)) {
+                    myCursorDocument = null;
+                }
+                myExecutor.schedule(new ReopenRunnable(this),
+                        myBackoff.nextDelayMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Writes the cursor document to the lookup collection. Nothing is
+         * written if the stream was re-opened and has not been stopped since.
+         * 
+         * @param lookup
+         *            The collection to write the cursor document to. May be
+         *            <code>null</code> to not write the cursor document.
+         */
+        public void saveCursor(final MongoCollection lookup) {
+            final Document cursorDocument;
+            synchronized (this) {
+                cursorDocument = myCursorDocument;
+            }
+
+            if ((lookup != null) && (myQueue != null)
+                    && (cursorDocument != null)) {
+                final DocumentBuilder update = BuilderFactory.start();
+                update.push("$set").add("cursor", cursorDocument);
+
+                lookup.update(
+                        BuilderFactory.start().add("_id", myQueue.getName()),
+                        update, false, false, Durability.ACK);
+            }
+        }
+
+        /**
+         * Sets the messages the lane may still take in the current round.
+         * 
+         * @param deficit
+         *            The new value for the messages the lane may still take in
+         *            the current round.
+         */
+        public void setDeficit(final int deficit) {
+            myDeficit = deficit;
+        }
+
+        /**
+         * Starts the stream of messages, if the lane is open and the stream is
+         * not active or paused, from the cursor document or, if there is no
+         * cursor document, with a new tailable cursor that skips the messages
+         * up to and including the last message read. The lane's lock is not
+         * held while looking for the last message read; the driver's thread
+         * delivering the stream may need it.
+         */
+        public void startStream() {
+            synchronized (this) {
+                if (!myOpen || myPaused || (myControls != null)) {
+                    return;
+                }
+                if (myCursorDocument != null) {
+                    myCallback = new LaneStreamCallback(this, true, null);
+                    myControls = myMongoClient.restart(myCallback,
+                            myCursorDocument);
+                    myControls.setBatchSize(myBatchSize);
+                    return;
+                }
+            }
+
+            final Element resumeAfter = resumeAfter();
+
+            synchronized (this) {
+                if (myOpen && !myPaused && (myControls == null)
+                        && (myCursorDocument == null)) {
+                    final Find.Builder builder = new Find.Builder(
+                            BuilderFactory.start());
+                    builder.setBatchSize(myBatchSize);
+                    builder.setTailable(true);
+                    builder.setAwaitData(true);
+
+                    myCallback = new LaneStreamCallback(this, false,
+                            resumeAfter);
+                    myControls = myQueue.streamingFind(myCallback,
+                            builder.build());
+                }
+            }
+        }
+
+        /**
+         * Stops the stream of messages while leaving the cursor active on the
+         * server so it can be restarted.
+         */
+        public synchronized void stopStream() {
+            if (myControls != null) {
+                myControls.stop();
+                myCursorDocument = myControls.asDocument();
+                myControls = null;
+                myCallback = null;
+            }
+        }
+
+        /**
+         * Schedules a paused stream to be resumed from its cursor document.
+         */
+        protected synchronized void resume() {
+            if (myPaused) {
+                myPaused = false;
+                myExecutor.execute(new ReopenRunnable(this));
+            }
+        }
+
+        /**
+         * Returns the {@code _id} of the message to re-open the stream after:
+         * the last message read, if it is still in the lane's collection.
+         * 
+         * @return The {@code _id} to skip up to or <code>null</code> if no
+         *         message has been read or the last message read has been
+         *         overwritten and every message in the collection should be
+         *         delivered.
+         */
+        protected Element resumeAfter() {
+            final Element last = myLastRead;
+            if (last == null) {
+                return null;
+            }
+            if (myQueue.findOne(BuilderFactory.start().add(last)) == null) {
+                return null;
+            }
+            return last;
+        }
+    }
+
+    /**
+     * LaneStreamCallback provides the handling of the messages streamed from
+     * a priority lane.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class LaneStreamCallback implements
+            StreamCallback<Document> {
+
+        /** The lane being read. */
+        private final PriorityLane myLane;
+
+        /** True once the stream has read a message. */
+        private boolean myRead;
+
+        /** True if the stream was restarted from a cursor document. */
+        private final boolean myRestarted;
+
+        /** The {@code _id} of the message to skip up to, if any. */
+        private Element myResumeAfter;
+
+        /**
+         * Creates a new LaneStreamCallback.
+         * 
+         * @param lane
+         *            The lane being read.
+         * @param restarted
+         *            True if the stream was restarted from a cursor document.
+         * @param resumeAfter
+         *            The {@code _id} of the message to skip up to and
+         *            including. May be <code>null</code> to deliver every
+         *            message.
+         */
+        public LaneStreamCallback(final PriorityLane lane,
+                final boolean restarted, final Element resumeAfter) {
+            myLane = lane;
+            myRestarted = restarted;
+            myResumeAfter = resumeAfter;
+            myRead = false;
+        }
+
+        @Override
+        public void callback(final Document result) {
+            myRead = true;
+            if (myResumeAfter == null) {
+                dispatch(myLane, this, result);
+            }
+            else if (myResumeAfter.equals(result.get("_id"))) {
+                myResumeAfter = null;
+            }
+        }
+
+        @Override
+        public void done() {
+            // The server has closed the tailable cursor.
+            myLane.restart(this, true);
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            // A restarted cursor that fails before reading is likely dead.
+            myLane.restart(this, myRestarted && !myRead);
+        }
+    }
+
+    /**
+     * ReopenRunnable provides a {@link Runnable} to re-open a lane's stream
+     * once its delay has passed.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class ReopenRunnable implements Runnable {
+
+        /** The lane to re-open. */
+        private final PriorityLane myLane;
+
+        /**
+         * Creates a new ReopenRunnable.
+         * 
+         * @param lane
+         *            The lane to re-open.
+         */
+        public ReopenRunnable(final PriorityLane lane) {
+            myLane = lane;
+        }
+
+        @Override
+        public void run() {
+            try {
+                reopen(myLane);
+            }
+            catch (final RuntimeException error) {
+                // Try again after the next delay.
+                myExecutor.schedule(this, myLane.nextDelayMillis(),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * WorkerRunnable provides a worker that handles the messages chosen by
+     * the scheduler until the consumer is stopped and the lanes are empty.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class WorkerRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Document message = next();
+                while (message != null) {
+                    handle(message);
+                    message = next();
+                }
+            }
+            catch (final InterruptedException e) {
+                // Exit the worker.
+                workerExited();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.allanbank.mongodb.Callback;
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+
+/**
+ * QueueCheckpointer records a consumer's progress through the queue in the
+ * {@code lookup} collection. The progress is the {@code _id} of the last
+ * message such that it and every message before it have been handled. It is
+ * stored in the queue's {@code lookup} document as the {@code last} field.
+ * <p>
+ * Writes are coalesced: a checkpoint is written once the configured number of
+ * messages have completed or the checkpoint interval passes, whichever comes
+ * first. At most one write is outstanding at a time. A restarted consumer
+ * replays at most the messages completed since the last checkpoint was
+ * written.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class QueueCheckpointer {
+
+    /** The default interval between checkpoints in milliseconds. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    /** The default number of messages between checkpoints. */
+    public static final long DEFAULT_MESSAGE_COUNT = 1000;
+
+    /** The name of the field holding the checkpointed {@code _id}. */
+    public static final String LAST_FIELD = "last";
+
+    /** The number of checkpoints written. */
+    private final AtomicLong myCheckpointCount;
+
+    /** The durability for the checkpoint writes. */
+    private Durability myDurability;
+
+    /** Used to write checkpoints when the interval passes. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The number of checkpoint writes that failed. */
+    private final AtomicLong myFailedCount;
+
+    /** The interval between checkpoints in milliseconds. */
+    private long myIntervalMillis;
+
+    /** The last position written. */
+    private Element myLastWritten;
+
+    /** The collection holding the queue's lookup document. */
+    private final MongoCollection myLookup;
+
+    /** The number of messages between checkpoints. */
+    private volatile long myMessageCount;
+
+    /** The number of messages completed since the last checkpoint. */
+    private final AtomicLong myPendingCount;
+
+    /** The latest position reported by the consumer. */
+    private volatile Element myPosition;
+
+    /** The queue being checkpointed. */
+    private final MongoCollection myQueue;
+
+    /** The scheduled task to write checkpoints periodically. */
+    private ScheduledFuture<?> myScheduledTask;
+
+    /** True while a checkpoint write is outstanding. */
+    private boolean myWriting;
+
+    /**
+     * Creates a new QueueCheckpointer.
+     * 
+     * @param executor
+     *            Used to write checkpoints when the interval passes.
+     * @param lookup
+     *            The collection holding the queue's lookup document.
+     * @param queue
+     *            The queue being checkpointed.
+     */
+    public QueueCheckpointer(final ScheduledExecutorService executor,
+            final MongoCollection lookup, final MongoCollection queue) {
+        myExecutor = executor;
+        myLookup = lookup;
+        myQueue = queue;
+
+        myDurability = Durability.ACK;
+        myIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+        myMessageCount = DEFAULT_MESSAGE_COUNT;
+
+        myCheckpointCount = new AtomicLong(0);
+        myFailedCount = new AtomicLong(0);
+        myPendingCount = new AtomicLong(0);
+
+        myPosition = null;
+        myLastWritten = null;
+        myWriting = false;
+        myScheduledTask = null;
+    }
+
+    /**
+     * Records that a message has completed and the consumer's position.
+     * Triggers a checkpoint write once enough messages have completed.
+     * 
+     * @param position
+     *            The {@code _id} of the last message such that it and every
+     *            message before it have been handled.
+     */
+    public void completed(final Element position) {
+        myPosition = position;
+
+        // Only the message that crosses the threshold triggers the flush. If
+        // a write is outstanding its completion checks the count again.
+        if (myMessageCount == myPendingCount.incrementAndGet()) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the latest position if it has not already been written.
+     */
+    public synchronized void flush() {
+        final Element position = myPosition;
+        if (!myWriting && (position != null) && (position != myLastWritten)) {
+            myWriting = true;
+            myLastWritten = position;
+            myPendingCount.set(0);
+
+            final DocumentBuilder update = BuilderFactory.start();
+            update.push("$set").add(position.withName(LAST_FIELD))
+                    .add("checkpoint", new Date());
+
+            myLookup.updateAsync(new CheckpointCallback(), BuilderFactory
+                    .start().add("_id", myQueue.getName()), update, false,
+                    true, myDurability);
+        }
+    }
+
+    /**
+     * Returns the number of checkpoints written.
+     * 
+     * @return The number of checkpoints written.
+     */
+    public long getCheckpointCount() {
+        return myCheckpointCount.get();
+    }
+
+    /**
+     * Returns the durability for the checkpoint writes.
+     * 
+     * @return The durability for the checkpoint writes.
+     */
+    public synchronized Durability getDurability() {
+        return myDurability;
+    }
+
+    /**
+     * Returns the number of checkpoint writes that failed.
+     * 
+     * @return The number of checkpoint writes that failed.
+     */
+    public long getFailedCount() {
+        return myFailedCount.get();
+    }
+
+    /**
+     * Returns the interval between checkpoints in milliseconds.
+     * 
+     * @return The interval between checkpoints in milliseconds.
+     */
+    public synchronized long getIntervalMillis() {
+        return myIntervalMillis;
+    }
+
+    /**
+     * Returns the last position written.
+     * 
+     * @return The last position written.
+     */
+    public synchronized Element getLastCheckpoint() {
+        return myLastWritten;
+    }
+
+    /**
+     * Returns the number of messages between checkpoints.
+     * 
+     * @return The number of messages between checkpoints.
+     */
+    public long getMessageCount() {
+        return myMessageCount;
+    }
+
+    /**
+     * Returns the number of messages completed since the last checkpoint. A
+     * restarted consumer would replay at most this many messages.
+     * 
+     * @return The number of messages completed since the last checkpoint.
+     */
+    public long getPendingCount() {
+        return myPendingCount.get();
+    }
+
+    /**
+     * Returns the queue being checkpointed.
+     * 
+     * @return The queue being checkpointed.
+     */
+    public MongoCollection getQueue() {
+        return myQueue;
+    }
+
+    /**
+     * Reads the last checkpointed position for the queue.
+     * 
+     * @return The {@code _id} of the last message handled or
+     *         <code>null</code> if no checkpoint has been written.
+     */
+    public Element load() {
+        final Document lookup = myLookup.findOne(BuilderFactory.start().add(
+                "_id", myQueue.getName()));
+        if (lookup != null) {
+            final Element last = lookup.get(LAST_FIELD);
+            if (last != null) {
+                return last.withName("_id");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the durability for the checkpoint writes.
+     * 
+     * @param durability
+     *            The new value for the durability for the checkpoint writes.
+     */
+    public synchronized void setDurability(final Durability durability) {
+        myDurability = durability;
+    }
+
+    /**
+     * Sets the interval between checkpoints in milliseconds. Takes effect the
+     * next time the checkpointer is started.
+     * 
+     * @param intervalMillis
+     *            The new value for the interval between checkpoints.
+     */
+    public synchronized void setIntervalMillis(final long intervalMillis) {
+        myIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Sets the number of messages between checkpoints.
+     * 
+     * @param messageCount
+     *            The new value for the number of messages between
+     *            checkpoints.
+     */
+    public void setMessageCount(final long messageCount) {
+        myMessageCount = messageCount;
+    }
+
+    /**
+     * Starts writing checkpoints periodically.
+     */
+    public synchronized void start() {
+        if (myScheduledTask == null) {
+            myScheduledTask = myExecutor.scheduleWithFixedDelay(
+                    new PeriodicCheckpointRunnable(), myIntervalMillis,
+                    myIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops writing checkpoints periodically and writes the latest position.
+     */
+    public synchronized void stop() {
+        if (myScheduledTask != null) {
+            myScheduledTask.cancel(false);
+            myScheduledTask = null;
+        }
+        flush();
+    }
+
+    /**
+     * Records the completion of a checkpoint write and writes the latest
+     * position if it has moved since.
+     * 
+     * @param success
+     *            True if the write succeeded.
+     */
+    protected synchronized void written(final boolean success) {
+        myWriting = false;
+        if (success) {
+            myCheckpointCount.incrementAndGet();
+        }
+        else {
+            myFailedCount.incrementAndGet();
+            // Try again with the next flush.
+            myLastWritten = null;
+        }
+
+        if (myMessageCount <= myPendingCount.get()) {
+            flush();
+        }
+    }
+
+    /**
+     * CheckpointCallback provides the callback for a checkpoint write.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class CheckpointCallback implements Callback<Long> {
+        @Override
+        public void callback(final Long result) {
+            written(true);
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            written(false);
+        }
+    }
+
+    /**
+     * PeriodicCheckpointRunnable provides a {@link Runnable} to write the
+     * latest position each interval.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class PeriodicCheckpointRunnable implements Runnable {
+        @Override
+        public void run() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,1191 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.allanbank.mongodb.Callback;
+import com.allanbank.mongodb.Durability;
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoCursorControl;
+import com.allanbank.mongodb.StreamCallback;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.DocumentAssignable;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.builder.DocumentBuilder;
+import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.demo.coordination.watch.Backoff;
+
+/**
+ * QueueConsumer provides a pipelined consumer for a queue. A single stream
+ * reads the restartable tailable cursor into an inbox and a reader thread
+ * hands each message to one of a set of worker lanes. Each lane has a bounded
+ * buffer and its own thread so a slow {@link MessageHandler} only stalls the
+ * reader once the buffers are full.
+ * <p>
+ * The driver's thread delivering the stream never blocks. Once the inbox
+ * holds more than the prefetch the stream is paused, leaving its cursor open
+ * on the server, and it is resumed once the reader has drained half of the
+ * inbox. A stream that ends or fails is restarted after a jittered,
+ * exponentially growing delay that is reset once a message is read.
+ * </p>
+ * <p>
+ * A paused or failed stream is restarted from its cursor document so the
+ * queue is not read again. The queue is only re-scanned from the start, as
+ * described below, once the cursor is dead: the server ended it or a stream
+ * restarted from it failed before reading a message.
+ * </p>
+ * <p>
+ * If an ordering key is set then all of the messages with the same value for
+ * that field (e.g., the {@code producer} identifier) are handled by the same
+ * lane, in the order they were read. Otherwise the messages are spread across
+ * the lanes round-robin.
+ * </p>
+ * <p>
+ * The worker threads are created by the {@link ThreadFactory}. Runtimes with
+ * lightweight threads can provide a factory for those instead.
+ * </p>
+ * <p>
+ * If a {@link QueueCheckpointer} is set then the consumer reports its position
+ * as messages complete and, on start, resumes after the last checkpointed
+ * message instead of from the cursor document. The position is the
+ * {@code _id} of the last message such that it and every message before it
+ * have been handled, even though the lanes complete messages out of order.
+ * </p>
+ * <p>
+ * The messages from multiple producers are not in {@code _id} order within
+ * the capped collection, so the consumer never resumes with an {@code _id}
+ * range. It opens a new tailable cursor over the whole queue, which returns
+ * the messages in insertion order and waits for new messages once caught up,
+ * and skips the messages up to and including the one it is resuming after.
+ * If that message has already been overwritten every message still in the
+ * queue is delivered.
+ * </p>
+ * <p>
+ * A message is only completed, and the position only moves past it, once the
+ * handler succeeds. A message the handler fails is parked in the dead letter
+ * collection, if one is set, and then completed. If there is no dead letter
+ * collection or the message cannot be parked it is logged, counted as
+ * dropped and completed so one poisoned message cannot pin the checkpoint.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class QueueConsumer {
+
+    /** The default number of messages to request in each batch. */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /** The default number of messages buffered ahead of the workers. */
+    public static final int DEFAULT_PREFETCH = 1000;
+
+    /** The default number of worker threads. */
+    public static final int DEFAULT_WORKERS = 4;
+
+    /** The default delay before the first restart in milliseconds. */
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+
+    /** The default maximum delay between restarts in milliseconds. */
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+    /** The logger for the messages dropped. */
+    protected static final Logger LOG = Logger.getLogger(QueueConsumer.class
+            .getName());
+
+    /** The longest the reader waits for a message in milliseconds. */
+    protected static final long READER_POLL_MILLIS = 100;
+
+    /** The marker placed in a lane's buffer to stop the lane's thread. */
+    protected static final QueuedMessage STOP = new QueuedMessage(0, null,
+            BuilderFactory.start().build());
+
+    /** The delays for restarting the stream. */
+    private volatile Backoff myBackoff;
+
+    /** The number of messages to request in each batch. */
+    private int myBatchSize;
+
+    /** The callback for the active stream of messages. */
+    private QueueStreamCallback myCallback;
+
+    /** The checkpointer for the consumer's position. */
+    private QueueCheckpointer myCheckpointer;
+
+    /** The controls for the active stream of messages. */
+    private MongoCursorControl myControls;
+
+    /** The cursor document to start the stream from. */
+    private Document myCursorDocument;
+
+    /** The collection to park the messages the handler failed in. */
+    private volatile MongoCollection myDeadLetters;
+
+    /** The number of failed messages that could not be parked. */
+    private final AtomicLong myDropped;
+
+    /** The number of messages the handler failed to process. */
+    private final AtomicLong myFailed;
+
+    /** The filter for the messages to handle. */
+    private volatile MessageFilter myFilter;
+
+    /** The handler for the messages. */
+    private final MessageHandler myHandler;
+
+    /** The messages read from the stream waiting for the reader. */
+    private final BlockingQueue<Document> myInbox;
+
+    /** The lanes for handing messages to the workers. */
+    private Lane[] myLanes;
+
+    /** The {@code _id} of the last message handed to a lane. */
+    private volatile Element myLastDispatched;
+
+    /** The {@code _id} of the last message read from the stream. */
+    private volatile Element myLastRead;
+
+    /** The client for the consumer. */
+    private final MongoClient myMongoClient;
+
+    /** The next lane for messages without an ordering key. */
+    private int myNextLane;
+
+    /** The field used to keep messages in order across the workers. */
+    private String myOrderingKey;
+
+    /** The messages handed to a lane but not yet handled. */
+    private final ConcurrentNavigableMap<Long, QueuedMessage> myOutstanding;
+
+    /** True if the stream is paused until the inbox drains. */
+    private boolean myPaused;
+
+    /** The number of messages buffered ahead of the workers. */
+    private int myPrefetch;
+
+    /** The number of messages parked in the dead letter collection. */
+    private final AtomicLong myParked;
+
+    /** The number of messages processed. */
+    private final AtomicLong myProcessed;
+
+    /** The queue collection, from the cursor document's namespace. */
+    private final MongoCollection myQueue;
+
+    /** The reader handing the messages from the inbox to the lanes. */
+    private Reader myReader;
+
+    /** The number of messages read from the queue. */
+    private final AtomicLong myReceived;
+
+    /** True if the stream is waiting to be restarted. */
+    private boolean myRestartPending;
+
+    /** The {@link System#nanoTime()} to restart the stream at. */
+    private long myRestartTime;
+
+    /** The sequence number of the last message read from the queue. */
+    private long mySequence;
+
+    /** The tracker for the producers' sequence numbers. */
+    private volatile SequenceTracker mySequenceTracker;
+
+    /** The factory for the worker threads. */
+    private ThreadFactory myThreadFactory;
+
+    /** The number of worker threads. */
+    private int myWorkers;
+
+    /**
+     * Creates a new QueueConsumer.
+     * 
+     * @param mongoClient
+     *            The client for the consumer.
+     * @param cursorDocument
+     *            The restartable cursor document for the queue.
+     * @param handler
+     *            The handler for the messages.
+     */
+    public QueueConsumer(final MongoClient mongoClient,
+            final DocumentAssignable cursorDocument,
+            final MessageHandler handler) {
+        myMongoClient = mongoClient;
+        myCursorDocument = cursorDocument.asDocument();
+        myHandler = handler;
+        myQueue = findQueue(mongoClient, myCursorDocument);
+
+        myBatchSize = DEFAULT_BATCH_SIZE;
+        myPrefetch = DEFAULT_PREFETCH;
+        myWorkers = DEFAULT_WORKERS;
+        myOrderingKey = null;
+        myThreadFactory = Executors.defaultThreadFactory();
+        myBackoff = new Backoff(DEFAULT_INITIAL_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS);
+
+        myDropped = new AtomicLong(0);
+        myFailed = new AtomicLong(0);
+        myParked = new AtomicLong(0);
+        myProcessed = new AtomicLong(0);
+        myReceived = new AtomicLong(0);
+
+        myOutstanding = new ConcurrentSkipListMap<Long, QueuedMessage>();
+        myInbox = new LinkedBlockingQueue<Document>();
+        myLastDispatched = null;
+        myLastRead = null;
+        mySequence = 0;
+
+        myCheckpointer = null;
+        myDeadLetters = null;
+        myFilter = null;
+        mySequenceTracker = null;
+        myCallback = null;
+        myControls = null;
+        myLanes = null;
+        myNextLane = 0;
+        myReader = null;
+        myPaused = false;
+        myRestartPending = false;
+        myRestartTime = 0;
+    }
+
+    /**
+     * Returns the number of messages to request in each batch.
+     * 
+     * @return The number of messages to request in each batch.
+     */
+    public synchronized int getBatchSize() {
+        return myBatchSize;
+    }
+
+    /**
+     * Returns the checkpointer for the consumer's position.
+     * 
+     * @return The checkpointer for the consumer's position.
+     */
+    public synchronized QueueCheckpointer getCheckpointer() {
+        return myCheckpointer;
+    }
+
+    /**
+     * Returns the collection to park the messages the handler failed in.
+     * 
+     * @return The collection to park the messages the handler failed in.
+     */
+    public MongoCollection getDeadLetters() {
+        return myDeadLetters;
+    }
+
+    /**
+     * Returns the number of failed messages that could not be parked.
+     * 
+     * @return The number of failed messages that could not be parked.
+     */
+    public long getDroppedCount() {
+        return myDropped.get();
+    }
+
+    /**
+     * Returns the number of messages the handler failed to process.
+     * 
+     * @return The number of messages the handler failed to process.
+     */
+    public long getFailedCount() {
+        return myFailed.get();
+    }
+
+    /**
+     * Returns the filter for the messages to handle.
+     * 
+     * @return The filter for the messages to handle.
+     */
+    public synchronized MessageFilter getFilter() {
+        return myFilter;
+    }
+
+    /**
+     * Returns the field used to keep messages in order across the workers.
+     * 
+     * @return The field used to keep messages in order across the workers.
+     */
+    public synchronized String getOrderingKey() {
+        return myOrderingKey;
+    }
+
+    /**
+     * Returns the {@code _id} of the last message such that it and every
+     * message before it have been handled.
+     * 
+     * @return The position of the consumer or <code>null</code> if no
+     *         message has been read.
+     */
+    public Element getPosition() {
+        // Read the last dispatched before looking for outstanding messages.
+        final Element last = myLastDispatched;
+        final Map.Entry<Long, QueuedMessage> first = myOutstanding
+                .firstEntry();
+        if (first != null) {
+            return first.getValue().getPrevious();
+        }
+        return last;
+    }
+
+    /**
+     * Returns the {@code _id} of the last message read from the queue and
+     * handed to a lane or skipped by the filter. Unlike the
+     * {@link #getPosition() position} this does not wait for the messages to
+     * be handled.
+     * 
+     * @return The {@code _id} of the last message read or <code>null</code>
+     *         if no message has been read.
+     */
+    public Element getReadPosition() {
+        return myLastDispatched;
+    }
+
+    /**
+     * Returns the number of messages parked in the dead letter collection.
+     * 
+     * @return The number of messages parked in the dead letter collection.
+     */
+    public long getParkedCount() {
+        return myParked.get();
+    }
+
+    /**
+     * Returns the number of messages buffered ahead of the workers.
+     * 
+     * @return The number of messages buffered ahead of the workers.
+     */
+    public synchronized int getPrefetch() {
+        return myPrefetch;
+    }
+
+    /**
+     * Returns the number of messages processed.
+     * 
+     * @return The number of messages processed.
+     */
+    public long getProcessedCount() {
+        return myProcessed.get();
+    }
+
+    /**
+     * Returns the number of messages read from the queue.
+     * 
+     * @return The number of messages read from the queue.
+     */
+    public long getReceivedCount() {
+        return myReceived.get();
+    }
+
+    /**
+     * Returns the tracker for the producers' sequence numbers.
+     * 
+     * @return The tracker for the producers' sequence numbers.
+     */
+    public SequenceTracker getSequenceTracker() {
+        return mySequenceTracker;
+    }
+
+    /**
+     * Returns the number of worker threads.
+     * 
+     * @return The number of worker threads.
+     */
+    public synchronized int getWorkers() {
+        return myWorkers;
+    }
+
+    /**
+     * Hands a message read outside of the stream, e.g. one replayed by a
+     * {@link PartitionLeaseManager}, to the lane for its ordering key so it is
+     * handled in order with the messages read from the stream. The message
+     * does not move the consumer's position and is dropped if the consumer
+     * has been stopped. This method blocks if that lane's buffer is full.
+     * 
+     * @param message
+     *            The message to handle.
+     */
+    public void replay(final Document message) {
+        final Lane lane = selectLane(message);
+        if (lane != null) {
+            lane.add(new QueuedMessage(0, null, message));
+        }
+    }
+
+    /**
+     * Restarts the stream of messages from the queue. The workers are not
+     * restarted.
+     */
+    public synchronized void restart() {
+        stopStream();
+        startStream();
+    }
+
+    /**
+     * Sets the delays for restarting the stream after it ends or fails.
+     * 
+     * @param initialMillis
+     *            The delay before the first restart in milliseconds.
+     * @param maxMillis
+     *            The maximum delay between restarts in milliseconds.
+     */
+    public synchronized void setBackoff(final long initialMillis,
+            final long maxMillis) {
+        myBackoff = new Backoff(initialMillis, maxMillis);
+    }
+
+    /**
+     * Sets the number of messages to request in each batch.
+     * 
+     * @param batchSize
+     *            The new value for the number of messages to request in each
+     *            batch.
+     */
+    public synchronized void setBatchSize(final int batchSize) {
+        myBatchSize = batchSize;
+        if (myControls != null) {
+            myControls.setBatchSize(batchSize);
+        }
+    }
+
+    /**
+     * Sets the checkpointer for the consumer's position. Takes effect the
+     * next time the consumer is started.
+     * 
+     * @param checkpointer
+     *            The new value for the checkpointer for the consumer's
+     *            position.
+     */
+    public synchronized void setCheckpointer(
+            final QueueCheckpointer checkpointer) {
+        myCheckpointer = checkpointer;
+    }
+
+    /**
+     * Sets the collection to park the messages the handler failed in. Each
+     * parked message is inserted as the {@code message} field of a document
+     * along with the {@code error} and the {@code failed} time.
+     * 
+     * @param deadLetters
+     *            The new value for the collection to park the messages the
+     *            handler failed in. May be <code>null</code> to drop the
+     *            failed messages.
+     */
+    public void setDeadLetters(final MongoCollection deadLetters) {
+        myDeadLetters = deadLetters;
+    }
+
+    /**
+     * Sets the filter for the messages to handle. Messages the filter rejects
+     * are skipped but still advance the consumer's position.
+     * 
+     * @param filter
+     *            The new value for the filter for the messages to handle. May
+     *            be <code>null</code> to handle every message.
+     */
+    public synchronized void setFilter(final MessageFilter filter) {
+        myFilter = filter;
+    }
+
+    /**
+     * Sets the field used to keep messages in order across the workers. Takes
+     * effect the next time the consumer is started.
+     * 
+     * @param orderingKey
+     *            The new value for the field used to keep messages in order.
+     *            May be <code>null</code> to not preserve any order.
+     */
+    public synchronized void setOrderingKey(final String orderingKey) {
+        myOrderingKey = orderingKey;
+    }
+
+    /**
+     * Sets the number of messages buffered ahead of the workers. Takes effect
+     * the next time the consumer is started.
+     * 
+     * @param prefetch
+     *            The new value for the number of messages buffered ahead of
+     *            the workers.
+     */
+    public synchronized void setPrefetch(final int prefetch) {
+        myPrefetch = prefetch;
+    }
+
+    /**
+     * Sets the tracker for the producers' sequence numbers. Every message read
+     * is tracked, including those rejected by the filter, on the thread
+     * reading the queue.
+     * 
+     * @param sequenceTracker
+     *            The new value for the tracker for the producers' sequence
+     *            numbers. May be <code>null</code> to not track the messages.
+     */
+    public void setSequenceTracker(final SequenceTracker sequenceTracker) {
+        mySequenceTracker = sequenceTracker;
+    }
+
+    /**
+     * Sets the factory for the worker threads. Takes effect the next time the
+     * consumer is started.
+     * 
+     * @param threadFactory
+     *            The new value for the factory for the worker threads.
+     */
+    public synchronized void setThreadFactory(final ThreadFactory threadFactory) {
+        myThreadFactory = threadFactory;
+    }
+
+    /**
+     * Sets the number of worker threads. Takes effect the next time the
+     * consumer is started.
+     * 
+     * @param workers
+     *            The new value for the number of worker threads.
+     */
+    public synchronized void setWorkers(final int workers) {
+        myWorkers = workers;
+    }
+
+    /**
+     * Starts the consumer.
+     */
+    public synchronized void start() {
+        if (myLanes == null) {
+            if (myCheckpointer != null) {
+                final Element last = myCheckpointer.load();
+                if (last != null) {
+                    // Resume after the checkpoint, not the cursor document.
+                    myLastDispatched = last;
+                    myLastRead = last;
+                    myCursorDocument = null;
+                }
+                myCheckpointer.start();
+            }
+
+            final int capacity = Math.max(1, myPrefetch / myWorkers);
+
+            myLanes = new Lane[myWorkers];
+            for (int i = 0; i < myLanes.length; ++i) {
+                myLanes[i] = new Lane(capacity);
+                myThreadFactory.newThread(myLanes[i]).start();
+            }
+
+            myInbox.clear();
+            myReader = new Reader();
+            myThreadFactory.newThread(myReader).start();
+        }
+        startStream();
+    }
+
+    /**
+     * Stops the consumer. The messages already buffered are handled before
+     * the worker threads exit.
+     */
+    public synchronized void stop() {
+        stopStream();
+        myPaused = false;
+        myRestartPending = false;
+        if (myReader != null) {
+            myReader.stop();
+            myReader = null;
+
+            // The messages still in the inbox are dropped. Resume after the
+            // last message handed to a lane.
+            myInbox.clear();
+            myLastRead = myLastDispatched;
+            if (myLastRead != null) {
+                myCursorDocument = null;
+            }
+        }
+        if (myLanes != null) {
+            for (final Lane lane : myLanes) {
+                lane.add(STOP);
+            }
+            myLanes = null;
+        }
+        if (myCheckpointer != null) {
+            myCheckpointer.stop();
+        }
+    }
+
+    /**
+     * Logs and completes a failed message that could not be parked.
+     * 
+     * @param message
+     *            The message the handler failed.
+     * @param error
+     *            The handler's error or the error parking the message.
+     */
+    protected void drop(final QueuedMessage message, final Throwable error) {
+        myDropped.incrementAndGet();
+        LOG.log(Level.WARNING, "Dropping the failed message "
+                + message.getDocument().get("_id") + ".", error);
+        complete(message);
+    }
+
+    /**
+     * Hands the message to the appropriate lane. Called by the reader thread.
+     * This method blocks if that lane's buffer is full.
+     * 
+     * @param message
+     *            The message read from the queue.
+     */
+    protected void dispatch(final Document message) {
+        myReceived.incrementAndGet();
+        myBackoff.reset();
+
+        final SequenceTracker tracker = mySequenceTracker;
+        if (tracker != null) {
+            tracker.track(message);
+        }
+
+        final MessageFilter filter = myFilter;
+        if ((filter != null) && !filter.accept(message)) {
+            myLastDispatched = message.get("_id");
+            return;
+        }
+
+        final Lane lane = selectLane(message);
+        if (lane != null) {
+            final QueuedMessage queued = new QueuedMessage(++mySequence,
+                    myLastDispatched, message);
+
+            myOutstanding.put(Long.valueOf(queued.getSequence()), queued);
+            myLastDispatched = message.get("_id");
+
+            lane.add(queued);
+        }
+    }
+
+    /**
+     * Removes a message from the outstanding messages and reports the new
+     * position to the checkpointer.
+     * 
+     * @param message
+     *            The message that has been handled or parked.
+     */
+    protected void complete(final QueuedMessage message) {
+        myOutstanding.remove(Long.valueOf(message.getSequence()));
+
+        final QueueCheckpointer checkpointer = myCheckpointer;
+        final Element position = getPosition();
+        if ((checkpointer != null) && (position != null)) {
+            checkpointer.completed(position);
+        }
+    }
+
+    /**
+     * Calls the handler for a message and completes it if the handler
+     * succeeds. A failed message is parked.
+     * 
+     * @param message
+     *            The message to handle.
+     */
+    protected void handle(final QueuedMessage message) {
+        try {
+            myHandler.handle(message.getDocument());
+            myProcessed.incrementAndGet();
+            complete(message);
+        }
+        catch (final RuntimeException error) {
+            myFailed.incrementAndGet();
+            park(message, error);
+        }
+    }
+
+    /**
+     * Parks a message the handler failed in the dead letter collection and
+     * completes it once the insert succeeds. If there is no dead letter
+     * collection or the insert fails the message is dropped.
+     * 
+     * @param message
+     *            The message the handler failed.
+     * @param error
+     *            The handler's error.
+     */
+    protected void park(final QueuedMessage message, final Throwable error) {
+        final MongoCollection deadLetters = myDeadLetters;
+        if (deadLetters != null) {
+            final DocumentBuilder parked = BuilderFactory.start();
+            parked.add("message", message.getDocument());
+            parked.add("error", String.valueOf(error));
+            parked.add("failed", new Date());
+
+            deadLetters.insertAsync(new ParkCallback(message), false,
+                    Durability.ACK, parked);
+        }
+        else {
+            drop(message, error);
+        }
+    }
+
+    /**
+     * Adds a message read from the stream to the inbox. Pauses the stream
+     * once the inbox holds more than the prefetch. Called by the driver's
+     * thread so it never blocks.
+     * 
+     * @param callback
+     *            The callback for the stream that read the message.
+     * @param message
+     *            The message read from the queue.
+     */
+    protected void received(final QueueStreamCallback callback,
+            final Document message) {
+        myLastRead = message.get("_id");
+        myInbox.add(message);
+        if (myPrefetch < myInbox.size()) {
+            pause(callback);
+        }
+    }
+
+    /**
+     * Pauses the stream, leaving its cursor open on the server, until the
+     * reader drains the inbox. The messages in the stream's current batch are
+     * still added to the inbox.
+     * 
+     * @param callback
+     *            The callback for the stream to pause.
+     */
+    protected synchronized void pause(final QueueStreamCallback callback) {
+        if ((myCallback == callback) && !myPaused) {
+            stopStream();
+            myPaused = true;
+        }
+    }
+
+    /**
+     * Schedules a restart of the stream if the callback is for the active
+     * stream. The reader restarts the stream once the backoff delay has
+     * passed. Streams that have already been stopped or replaced are ignored.
+     * 
+     * @param callback
+     *            The callback for the stream that ended.
+     * @param cursorDead
+     *            True if the stream's cursor cannot be restarted and the
+     *            stream must resume after the last message read instead.
+     */
+    protected synchronized void restart(final QueueStreamCallback callback,
+            final boolean cursorDead) {
+        if (myCallback == callback) {
+            stopStream();
+            if (cursorDead && (myLastRead != null) && (getQueue() != null)) {
+                myCursorDocument = null;
+            }
+            myRestartPending = true;
+            myRestartTime = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(myBackoff
+                            .nextDelayMillis());
+        }
+    }
+
+    /**
+     * Resumes a paused stream once the inbox has drained to half of the
+     * prefetch and restarts an ended stream once its delay has passed. Called
+     * by the reader thread.
+     */
+    protected synchronized void resumeIfDue() {
+        if (myLanes == null) {
+            return;
+        }
+        if (myPaused && (myInbox.size() <= (myPrefetch / 2))) {
+            myPaused = false;
+            startStream();
+        }
+        if (myRestartPending && ((System.nanoTime() - myRestartTime) >= 0)) {
+            myRestartPending = false;
+            startStream();
+        }
+    }
+
+    /**
+     * Returns the queue collection from the cursor document's namespace.
+     * 
+     * @param mongoClient
+     *            The client for the consumer.
+     * @param cursorDocument
+     *            The restartable cursor document for the queue.
+     * @return The queue collection or <code>null</code> if the cursor
+     *         document does not have a namespace.
+     */
+    protected static MongoCollection findQueue(final MongoClient mongoClient,
+            final Document cursorDocument) {
+        final Element ns = cursorDocument.get("ns");
+        if (ns != null) {
+            final String name = ns.getValueAsString();
+            final int dot = name.indexOf('.');
+            if (0 < dot) {
+                return mongoClient.getDatabase(name.substring(0, dot))
+                        .getCollection(name.substring(dot + 1));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the queue collection to resume the stream in.
+     * 
+     * @return The queue collection or <code>null</code> if it is not known.
+     */
+    protected MongoCollection getQueue() {
+        final QueueCheckpointer checkpointer = myCheckpointer;
+        if (checkpointer != null) {
+            return checkpointer.getQueue();
+        }
+        return myQueue;
+    }
+
+    /**
+     * Selects the lane for the message.
+     * 
+     * @param message
+     *            The message to select the lane for.
+     * @return The lane for the message or <code>null</code> if the consumer
+     *         has been stopped.
+     */
+    protected synchronized Lane selectLane(final Document message) {
+        final Lane[] lanes = myLanes;
+        if (lanes == null) {
+            return null;
+        }
+
+        int index;
+        final Element key = (myOrderingKey != null) ? message
+                .get(myOrderingKey) : null;
+        if (key != null) {
+            index = (key.getValueAsString().hashCode() & Integer.MAX_VALUE)
+                    % lanes.length;
+        }
+        else {
+            index = myNextLane;
+            myNextLane = (myNextLane + 1) % lanes.length;
+        }
+        return lanes[index];
+    }
+
+    /**
+     * Starts the stream of messages from the cursor document or, if there is
+     * no cursor document, with a new tailable cursor that skips the messages
+     * up to and including the last message read.
+     */
+    protected synchronized void startStream() {
+        if (myControls == null) {
+            if (myCursorDocument != null) {
+                myCallback = new QueueStreamCallback(true, null);
+                myControls = myMongoClient.restart(myCallback,
+                        myCursorDocument);
+                myControls.setBatchSize(myBatchSize);
+            }
+            else {
+                final MongoCollection queue = getQueue();
+
+                // If the last message read has been overwritten then deliver
+                // every message still in the queue.
+                Element resumeAfter = myLastRead;
+                if ((resumeAfter != null)
+                        && (queue.findOne(BuilderFactory.start().add(
+                                resumeAfter)) == null)) {
+                    resumeAfter = null;
+                }
+
+                final Find.Builder builder = new Find.Builder(
+                        BuilderFactory.start());
+                builder.setBatchSize(myBatchSize);
+                builder.setTailable(true);
+                builder.setAwaitData(true);
+
+                myCallback = new QueueStreamCallback(false, resumeAfter);
+                myControls = queue.streamingFind(myCallback, builder.build());
+            }
+        }
+    }
+
+    /**
+     * Stops the stream of messages while leaving the cursor active on the
+     * server so it can be restarted.
+     */
+    protected synchronized void stopStream() {
+        if (myControls != null) {
+            myControls.stop();
+            myCursorDocument = myControls.asDocument();
+            myControls = null;
+            myCallback = null;
+        }
+    }
+
+    /**
+     * Lane provides a bounded buffer of messages and the worker that handles
+     * them in order.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class Lane implements Runnable {
+
+        /** The buffered messages. */
+        private final BlockingQueue<QueuedMessage> myBuffer;
+
+        /**
+         * Creates a new Lane.
+         * 
+         * @param capacity
+         *            The maximum number of messages to buffer.
+         */
+        public Lane(final int capacity) {
+            myBuffer = new ArrayBlockingQueue<QueuedMessage>(capacity);
+        }
+
+        /**
+         * Adds a message to the lane, waiting for space in the buffer.
+         * 
+         * @param message
+         *            The message to add.
+         */
+        public void add(final QueuedMessage message) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    myBuffer.put(message);
+                    break;
+                }
+                catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                QueuedMessage message = myBuffer.take();
+                while (message != STOP) {
+                    handle(message);
+                    message = myBuffer.take();
+                }
+            }
+            catch (final InterruptedException e) {
+                // Exit the lane.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reader provides the thread handing the messages from the inbox to the
+     * lanes and resuming or restarting the stream.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class Reader implements Runnable {
+
+        /** Set to false to stop the reader. */
+        private volatile boolean myRunning = true;
+
+        @Override
+        public void run() {
+            try {
+                while (myRunning) {
+                    final Document message = myInbox.poll(READER_POLL_MILLIS,
+                            TimeUnit.MILLISECONDS);
+                    if (message != null) {
+                        dispatch(message);
+                    }
+                    resumeIfDue();
+                }
+            }
+            catch (final InterruptedException e) {
+                // Exit the reader.
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Stops the reader. Messages still in the inbox are dropped; they have
+         * not been handed to a lane so the consumer's position is before them.
+         */
+        public void stop() {
+            myRunning = false;
+        }
+    }
+
+    /**
+     * QueuedMessage provides a message handed to a lane along with its
+     * position in the stream.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected static final class QueuedMessage {
+
+        /** The message. */
+        private final Document myDocument;
+
+        /** The {@code _id} of the message read before this one. */
+        private final Element myPrevious;
+
+        /** The sequence number of the message in the stream. */
+        private final long mySequence;
+
+        /**
+         * Creates a new QueuedMessage.
+         * 
+         * @param sequence
+         *            The sequence number of the message in the stream.
+         * @param previous
+         *            The {@code _id} of the message read before this one.
+         * @param document
+         *            The message.
+         */
+        public QueuedMessage(final long sequence, final Element previous,
+                final Document document) {
+            mySequence = sequence;
+            myPrevious = previous;
+            myDocument = document;
+        }
+
+        /**
+         * Returns the message.
+         * 
+         * @return The message.
+         */
+        public Document getDocument() {
+            return myDocument;
+        }
+
+        /**
+         * Returns the {@code _id} of the message read before this one.
+         * 
+         * @return The {@code _id} of the message read before this one.
+         */
+        public Element getPrevious() {
+            return myPrevious;
+        }
+
+        /**
+         * Returns the sequence number of the message in the stream.
+         * 
+         * @return The sequence number of the message in the stream.
+         */
+        public long getSequence() {
+            return mySequence;
+        }
+    }
+
+    /**
+     * ParkCallback provides the callback for parking a failed message.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class ParkCallback implements Callback<Integer> {
+
+        /** The message being parked. */
+        private final QueuedMessage myMessage;
+
+        /**
+         * Creates a new ParkCallback.
+         * 
+         * @param message
+         *            The message being parked.
+         */
+        public ParkCallback(final QueuedMessage message) {
+            myMessage = message;
+        }
+
+        @Override
+        public void callback(final Integer result) {
+            myParked.incrementAndGet();
+            complete(myMessage);
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            drop(myMessage, thrown);
+        }
+    }
+
+    /**
+     * QueueStreamCallback provides the handling of the messages streamed from
+     * the queue.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class QueueStreamCallback implements
+            StreamCallback<Document> {
+
+        /** True once the stream has read a message. */
+        private boolean myRead;
+
+        /** True if the stream was restarted from a cursor document. */
+        private final boolean myRestarted;
+
+        /** The {@code _id} of the message to skip up to, if any. */
+        private Element myResumeAfter;
+
+        /**
+         * Creates a new QueueStreamCallback.
+         * 
+         * @param restarted
+         *            True if the stream was restarted from a cursor document.
+         * @param resumeAfter
+         *            The {@code _id} of the message to skip up to and
+         *            including. May be <code>null</code> to deliver every
+         *            message.
+         */
+        public QueueStreamCallback(final boolean restarted,
+                final Element resumeAfter) {
+            myRestarted = restarted;
+            myResumeAfter = resumeAfter;
+            myRead = false;
+        }
+
+        @Override
+        public void callback(final Document result) {
+            myRead = true;
+            if (myResumeAfter == null) {
+                received(this, result);
+            }
+            else if (myResumeAfter.equals(result.get("_id"))) {
+                myResumeAfter = null;
+            }
+        }
+
+        @Override
+        public void done() {
+            // The server has closed the tailable cursor.
+            restart(this, true);
+        }
+
+        @Override
+        public void exception(final Throwable thrown) {
+            // A restarted cursor that fails before reading is likely dead.
+            restart(this, myRestarted && !myRead);
+        }
+    }
+}
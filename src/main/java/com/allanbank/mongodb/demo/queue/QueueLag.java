@@ -0,0 +1,165 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+/**
+ * QueueLag provides a measurement of how far a consumer is behind the tail of
+ * the queue's capped collection.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class QueueLag {
+
+    /** The estimated number of bytes between the consumer and the tail. */
+    private final long myBytes;
+
+    /** The maximum size of the capped collection in bytes. */
+    private final long myCapacityBytes;
+
+    /** The number of documents between the consumer and the tail. */
+    private final long myDocuments;
+
+    /** The time between the consumer's message and the tail's message. */
+    private final long myMillis;
+
+    /** True if the consumer's position has been overwritten. */
+    private final boolean myOverrun;
+
+    /**
+     * True if the consumer's position has been overwritten but the consumer
+     * is still reading.
+     */
+    private final boolean myStalled;
+
+    /**
+     * Creates a new QueueLag.
+     * 
+     * @param documents
+     *            The number of documents between the consumer and the tail.
+     * @param bytes
+     *            The estimated number of bytes between the consumer and the
+     *            tail.
+     * @param millis
+     *            The time between the consumer's message and the tail's
+     *            message in milliseconds.
+     * @param capacityBytes
+     *            The maximum size of the capped collection in bytes.
+     * @param overrun
+     *            True if the consumer's position has been overwritten.
+     * @param stalled
+     *            True if the consumer's position has been overwritten but the
+     *            consumer is still reading.
+     */
+    public QueueLag(final long documents, final long bytes, final long millis,
+            final long capacityBytes, final boolean overrun,
+            final boolean stalled) {
+        myDocuments = documents;
+        myBytes = bytes;
+        myMillis = millis;
+        myCapacityBytes = capacityBytes;
+        myOverrun = overrun;
+        myStalled = stalled;
+    }
+
+    /**
+     * Returns the estimated number of bytes between the consumer and the
+     * tail.
+     * 
+     * @return The estimated number of bytes between the consumer and the
+     *         tail.
+     */
+    public long getBytes() {
+        return myBytes;
+    }
+
+    /**
+     * Returns the maximum size of the capped collection in bytes.
+     * 
+     * @return The maximum size of the capped collection in bytes.
+     */
+    public long getCapacityBytes() {
+        return myCapacityBytes;
+    }
+
+    /**
+     * Returns the number of documents between the consumer and the tail.
+     * Beyond the monitor's scan limit this is estimated.
+     * 
+     * @return The number of documents between the consumer and the tail.
+     */
+    public long getDocuments() {
+        return myDocuments;
+    }
+
+    /**
+     * Returns the fraction of the capped collection between the consumer and
+     * the tail. The consumer is overrun when this reaches 1.
+     * 
+     * @return The fraction of the capped collection between the consumer and
+     *         the tail.
+     */
+    public double getFraction() {
+        if (myCapacityBytes <= 0) {
+            return 0;
+        }
+        return ((double) myBytes) / myCapacityBytes;
+    }
+
+    /**
+     * Returns the time between the consumer's message and the tail's message
+     * in milliseconds. This has the resolution of the {@code ObjectId}
+     * timestamps, one second.
+     * 
+     * @return The time between the consumer's message and the tail's message.
+     */
+    public long getMillis() {
+        return myMillis;
+    }
+
+    /**
+     * Returns true if the consumer's position has been overwritten.
+     * 
+     * @return True if the consumer's position has been overwritten.
+     */
+    public boolean isOverrun() {
+        return myOverrun;
+    }
+
+    /**
+     * Returns true if the consumer's position has been overwritten but the
+     * consumer is still reading: a message has been outstanding for too long.
+     * 
+     * @return True if the consumer's position has been overwritten but the
+     *         consumer is still reading.
+     */
+    public boolean isStalled() {
+        return myStalled;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Overridden to return a readable form of the lag.
+     * </p>
+     */
+    @Override
+    public String toString() {
+        return "QueueLag[documents=" + myDocuments + ", bytes=" + myBytes
+                + ", millis=" + myMillis + ", capacityBytes="
+                + myCapacityBytes + ", overrun=" + myOverrun + ", stalled="
+                + myStalled + "]";
+    }
+}
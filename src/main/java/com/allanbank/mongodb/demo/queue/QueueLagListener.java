@@ -0,0 +1,64 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+/**
+ * QueueLagListener provides notification of a consumer's lag behind the tail
+ * of the queue.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface QueueLagListener {
+
+    /**
+     * Notification of the consumer's current lag. Called after each
+     * measurement.
+     * 
+     * @param lag
+     *            The consumer's lag.
+     */
+    public void lag(QueueLag lag);
+
+    /**
+     * Notification that the consumer's position has been overwritten in the
+     * capped collection. Messages have been lost and the consumer's cursor is
+     * or will be invalidated.
+     * 
+     * @param lag
+     *            The consumer's lag when the overrun was detected.
+     */
+    public void overrun(QueueLag lag);
+
+    /**
+     * Notification that the consumer has fallen far enough behind that it is
+     * at risk of being overrun.
+     * 
+     * @param lag
+     *            The consumer's lag.
+     */
+    public void overrunWarning(QueueLag lag);
+
+    /**
+     * Notification that the consumer's checkpointed position has been
+     * overwritten in the capped collection while the consumer is still
+     * reading. No messages have been lost by the stream, but a message has
+     * been outstanding for so long that a restart would resume as overrun.
+     * 
+     * @param lag
+     *            The consumer's lag when the stall was detected.
+     */
+    public void stalled(QueueLag lag);
+}
@@ -0,0 +1,476 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoDatabase;
+import com.allanbank.mongodb.MongoIterator;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.NumericElement;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.element.ObjectIdElement;
+import com.allanbank.mongodb.builder.Find;
+
+/**
+ * QueueLagMonitor periodically measures how far a {@link QueueConsumer} is
+ * behind the tail of the queue's capped collection: in documents, in
+ * estimated bytes (using the collection's average object size) and in time
+ * (using the {@code ObjectId} timestamps of the messages).
+ * <p>
+ * The messages are counted back from the tail in insertion order, up to the
+ * scan limit. Beyond that the count is estimated from the collection's count
+ * and the {@code ObjectId} timestamps of the position and the collection's
+ * oldest and newest messages, so a measurement costs the same no matter how
+ * far behind the consumer is.
+ * </p>
+ * <p>
+ * Once the bytes behind reach the warning fraction of the capped
+ * collection's maximum size the listener is warned. If the consumer's
+ * position is no longer in the collection the consumer has been overrun, its
+ * tailable cursor is or will be invalidated and messages have been lost.
+ * If the position is the consumer's checkpoint, held back by an outstanding
+ * message, while the last message read is still in the collection the
+ * consumer has stalled instead and is reported separately.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class QueueLagMonitor {
+
+    /** The default interval between measurements in milliseconds. */
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    /** The default maximum number of messages counted from the tail. */
+    public static final int DEFAULT_MAX_SCAN = 10000;
+
+    /** The default fraction of the collection to warn of an overrun at. */
+    public static final double DEFAULT_WARNING_FRACTION = 0.75;
+
+    /** The consumer being monitored. */
+    private final QueueConsumer myConsumer;
+
+    /** The database containing the queue. */
+    private final MongoDatabase myDatabase;
+
+    /** Used to periodically measure the lag. */
+    private final ScheduledExecutorService myExecutor;
+
+    /** The interval between measurements in milliseconds. */
+    private long myIntervalMillis;
+
+    /** The last lag measured. */
+    private volatile QueueLag myLastLag;
+
+    /** The listener for the lag measurements. */
+    private final QueueLagListener myListener;
+
+    /** The maximum number of messages counted from the tail. */
+    private int myMaxScan;
+
+    /** The number of overruns detected. */
+    private final AtomicLong myOverrunCount;
+
+    /** The position last reported as overrun. */
+    private Element myOverrunPosition;
+
+    /** The queue being monitored. */
+    private final MongoCollection myQueue;
+
+    /** The scheduled task for measuring the lag. */
+    private ScheduledFuture<?> myScheduledTask;
+
+    /** The number of stalls detected. */
+    private final AtomicLong myStalledCount;
+
+    /** The position last reported as stalled. */
+    private Element myStalledPosition;
+
+    /** The fraction of the collection to warn of an overrun at. */
+    private double myWarningFraction;
+
+    /**
+     * Creates a new QueueLagMonitor.
+     * 
+     * @param executor
+     *            Used to periodically measure the lag.
+     * @param mongoClient
+     *            The client for the queue.
+     * @param queue
+     *            The queue being monitored.
+     * @param consumer
+     *            The consumer being monitored.
+     * @param listener
+     *            The listener for the lag measurements. May be
+     *            <code>null</code>.
+     */
+    public QueueLagMonitor(final ScheduledExecutorService executor,
+            final MongoClient mongoClient, final MongoCollection queue,
+            final QueueConsumer consumer, final QueueLagListener listener) {
+        myExecutor = executor;
+        myDatabase = mongoClient.getDatabase(queue.getDatabaseName());
+        myQueue = queue;
+        myConsumer = consumer;
+        myListener = listener;
+
+        myIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+        myMaxScan = DEFAULT_MAX_SCAN;
+        myWarningFraction = DEFAULT_WARNING_FRACTION;
+
+        myOverrunCount = new AtomicLong(0);
+        myStalledCount = new AtomicLong(0);
+        myLastLag = null;
+        myOverrunPosition = null;
+        myStalledPosition = null;
+        myScheduledTask = null;
+    }
+
+    /**
+     * Returns the interval between measurements in milliseconds.
+     * 
+     * @return The interval between measurements in milliseconds.
+     */
+    public synchronized long getIntervalMillis() {
+        return myIntervalMillis;
+    }
+
+    /**
+     * Returns the last lag measured.
+     * 
+     * @return The last lag measured or <code>null</code> if the lag has not
+     *         been measured.
+     */
+    public QueueLag getLastLag() {
+        return myLastLag;
+    }
+
+    /**
+     * Returns the maximum number of messages counted from the tail.
+     * 
+     * @return The maximum number of messages counted from the tail.
+     */
+    public synchronized int getMaxScan() {
+        return myMaxScan;
+    }
+
+    /**
+     * Returns the number of overruns detected.
+     * 
+     * @return The number of overruns detected.
+     */
+    public long getOverrunCount() {
+        return myOverrunCount.get();
+    }
+
+    /**
+     * Returns the number of stalls detected.
+     * 
+     * @return The number of stalls detected.
+     */
+    public long getStalledCount() {
+        return myStalledCount.get();
+    }
+
+    /**
+     * Returns the fraction of the collection to warn of an overrun at.
+     * 
+     * @return The fraction of the collection to warn of an overrun at.
+     */
+    public synchronized double getWarningFraction() {
+        return myWarningFraction;
+    }
+
+    /**
+     * Measures the consumer's current lag and notifies the listener.
+     * 
+     * @return The consumer's lag or <code>null</code> if the consumer has not
+     *         read any messages.
+     */
+    public synchronized QueueLag measure() {
+        final Element position = myConsumer.getPosition();
+        if (position == null) {
+            return null;
+        }
+
+        final Document stats = myDatabase.runCommand(BuilderFactory.start()
+                .add("collStats", myQueue.getName()));
+        final long capacity = longValue(stats, "maxSize");
+        final long averageSize = longValue(stats, "avgObjSize");
+        final long count = longValue(stats, "count");
+
+        // Count back from the tail in insertion order, up to the scan limit.
+        // The messages from several producers are not in _id order.
+        long documents = 0;
+        boolean found = false;
+
+        final Find.Builder builder = new Find.Builder(BuilderFactory.start());
+        builder.setSort(BuilderFactory.start().add("$natural", -1));
+        builder.setReturnFields(BuilderFactory.start().add("_id", 1));
+        builder.setLimit(myMaxScan);
+        builder.setBatchSize(myMaxScan);
+
+        final MongoIterator<Document> iter = myQueue.find(builder.build());
+        try {
+            while (iter.hasNext()) {
+                if (position.equals(iter.next().get("_id"))) {
+                    found = true;
+                    break;
+                }
+                documents += 1;
+            }
+        }
+        finally {
+            iter.close();
+        }
+
+        final Element tail = endId(-1);
+        boolean overrun = false;
+        boolean stalled = false;
+        if (!found) {
+            if ((documents < myMaxScan) || !contains(position)) {
+                // Lost messages only if the stream itself has been overrun.
+                final Element read = myConsumer.getReadPosition();
+                stalled = (read != null) && !read.equals(position)
+                        && contains(read);
+                overrun = !stalled;
+                documents = Math.max(documents, count);
+            }
+            else {
+                documents = Math.max(documents,
+                        estimateBehind(position, endId(1), tail, count));
+            }
+        }
+
+        final QueueLag lag = new QueueLag(documents, documents * averageSize,
+                millisBehind(position, tail), capacity, overrun, stalled);
+        myLastLag = lag;
+
+        // Only report each overrun or stalled position once.
+        final boolean newOverrun = overrun
+                && !position.equals(myOverrunPosition);
+        if (newOverrun) {
+            myOverrunPosition = position;
+            myOverrunCount.incrementAndGet();
+        }
+        final boolean newStall = stalled
+                && !position.equals(myStalledPosition);
+        if (newStall) {
+            myStalledPosition = position;
+            myStalledCount.incrementAndGet();
+        }
+
+        if (myListener != null) {
+            myListener.lag(lag);
+            if (newOverrun) {
+                myListener.overrun(lag);
+            }
+            else if (newStall) {
+                myListener.stalled(lag);
+            }
+            else if (!overrun && !stalled
+                    && (myWarningFraction <= lag.getFraction())) {
+                myListener.overrunWarning(lag);
+            }
+        }
+
+        return lag;
+    }
+
+    /**
+     * Sets the interval between measurements in milliseconds. Takes effect
+     * the next time the monitor is started.
+     * 
+     * @param intervalMillis
+     *            The new value for the interval between measurements.
+     */
+    public synchronized void setIntervalMillis(final long intervalMillis) {
+        myIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Sets the maximum number of messages counted from the tail. Beyond it
+     * the lag is estimated.
+     * 
+     * @param maxScan
+     *            The new value for the maximum number of messages counted
+     *            from the tail.
+     */
+    public synchronized void setMaxScan(final int maxScan) {
+        myMaxScan = Math.max(1, maxScan);
+    }
+
+    /**
+     * Sets the fraction of the collection to warn of an overrun at.
+     * 
+     * @param warningFraction
+     *            The new value for the fraction of the collection to warn of
+     *            an overrun at.
+     */
+    public synchronized void setWarningFraction(final double warningFraction) {
+        myWarningFraction = warningFraction;
+    }
+
+    /**
+     * Starts measuring the lag periodically.
+     */
+    public synchronized void start() {
+        if (myScheduledTask == null) {
+            myScheduledTask = myExecutor.scheduleWithFixedDelay(
+                    new MeasureRunnable(), myIntervalMillis, myIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops measuring the lag.
+     */
+    public synchronized void stop() {
+        if (myScheduledTask != null) {
+            myScheduledTask.cancel(false);
+            myScheduledTask = null;
+        }
+    }
+
+    /**
+     * Returns true if the message is still in the queue.
+     * 
+     * @param id
+     *            The {@code _id} of the message.
+     * @return True if the message is still in the queue.
+     */
+    private boolean contains(final Element id) {
+        return myQueue.findOne(BuilderFactory.start().add(id)) != null;
+    }
+
+    /**
+     * Returns the {@code _id} of the oldest or newest message in the queue.
+     * 
+     * @param direction
+     *            1 for the oldest message, -1 for the newest.
+     * @return The {@code _id} of the message or <code>null</code> if the
+     *         queue is empty.
+     */
+    private Element endId(final int direction) {
+        final Find.Builder builder = new Find.Builder(BuilderFactory.start());
+        builder.setSort(BuilderFactory.start().add("$natural", direction));
+        builder.setReturnFields(BuilderFactory.start().add("_id", 1));
+
+        final Document document = myQueue.findOne(builder.build());
+        return (document != null) ? document.get("_id") : null;
+    }
+
+    /**
+     * Estimates the number of messages between the consumer's position and
+     * the tail from the {@code ObjectId} timestamps, assuming the messages in
+     * the collection were written at a steady rate.
+     * 
+     * @param position
+     *            The consumer's position.
+     * @param head
+     *            The {@code _id} of the oldest message in the queue.
+     * @param tail
+     *            The {@code _id} of the newest message in the queue.
+     * @param count
+     *            The number of messages in the queue.
+     * @return The estimated number of messages behind or zero if the
+     *         {@code _id}s are not {@code ObjectId}s.
+     */
+    private long estimateBehind(final Element position, final Element head,
+            final Element tail, final long count) {
+        if ((position instanceof ObjectIdElement)
+                && (head instanceof ObjectIdElement)
+                && (tail instanceof ObjectIdElement)) {
+            final long tailSeconds = seconds(tail);
+            final long span = tailSeconds - seconds(head);
+            if (0 < span) {
+                final double behind = tailSeconds - seconds(position);
+                return Math.min(count, (long) ((count * behind) / span));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the value of a numeric field or zero if it is missing.
+     * 
+     * @param document
+     *            The document containing the field.
+     * @param name
+     *            The name of the field.
+     * @return The value of the field.
+     */
+    private long longValue(final Document document, final String name) {
+        final NumericElement element = document.get(NumericElement.class,
+                name);
+        return (element != null) ? element.getLongValue() : 0;
+    }
+
+    /**
+     * Returns the time between the consumer's position and the tail of the
+     * queue using the {@code ObjectId} timestamps.
+     * 
+     * @param position
+     *            The consumer's position.
+     * @param tail
+     *            The {@code _id} of the newest message in the queue.
+     * @return The time between the consumer's position and the tail of the
+     *         queue in milliseconds or zero if either is not an
+     *         {@code ObjectId}.
+     */
+    private long millisBehind(final Element position, final Element tail) {
+        if ((position instanceof ObjectIdElement)
+                && (tail instanceof ObjectIdElement)) {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(seconds(tail)
+                    - seconds(position)));
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the timestamp of an {@code ObjectId} in seconds.
+     * 
+     * @param id
+     *            The {@code ObjectId} element.
+     * @return The timestamp of the {@code ObjectId} in seconds.
+     */
+    private long seconds(final Element id) {
+        return ((ObjectIdElement) id).getId().getTimestamp();
+    }
+
+    /**
+     * MeasureRunnable provides a {@link Runnable} to periodically measure the
+     * lag.
+     * 
+     * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+     */
+    protected final class MeasureRunnable implements Runnable {
+        @Override
+        public void run() {
+            try {
+                measure();
+            }
+            catch (final RuntimeException error) {
+                // Try again next interval.
+            }
+        }
+    }
+}
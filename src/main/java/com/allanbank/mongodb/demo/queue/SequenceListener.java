@@ -0,0 +1,72 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+/**
+ * SequenceListener provides notification of irregularities in the sequence
+ * of messages from a producer. The producer is identified by the two halves
+ * of its 128-bit key (e.g., the most and least significant bits of the
+ * producer's {@link java.util.UUID}).
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public interface SequenceListener {
+
+    /**
+     * Notification that a message was seen twice in a row.
+     * 
+     * @param producerHigh
+     *            The high 64 bits of the producer's key.
+     * @param producerLow
+     *            The low 64 bits of the producer's key.
+     * @param sequence
+     *            The repeated sequence number.
+     */
+    public void duplicate(long producerHigh, long producerLow, long sequence);
+
+    /**
+     * Notification that one or more messages were skipped. For a capped
+     * collection this usually means the messages were overwritten before
+     * they were read.
+     * 
+     * @param producerHigh
+     *            The high 64 bits of the producer's key.
+     * @param producerLow
+     *            The low 64 bits of the producer's key.
+     * @param expected
+     *            The sequence number expected.
+     * @param received
+     *            The sequence number received.
+     */
+    public void gap(long producerHigh, long producerLow, long expected,
+            long received);
+
+    /**
+     * Notification that a message arrived after a later message from the same
+     * producer.
+     * 
+     * @param producerHigh
+     *            The high 64 bits of the producer's key.
+     * @param producerLow
+     *            The low 64 bits of the producer's key.
+     * @param last
+     *            The highest sequence number seen.
+     * @param received
+     *            The sequence number received.
+     */
+    public void reordered(long producerHigh, long producerLow, long last,
+            long received);
+}
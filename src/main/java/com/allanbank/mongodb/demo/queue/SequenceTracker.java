@@ -0,0 +1,375 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue;
+
+import java.util.UUID;
+
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.Element;
+import com.allanbank.mongodb.bson.NumericElement;
+import com.allanbank.mongodb.bson.element.UuidElement;
+
+/**
+ * SequenceTracker tracks the sequence numbers of the messages from each
+ * producer and reports gaps, duplicates and reordered messages. The last
+ * sequence number for each producer is held in an open addressing table of
+ * primitive {@code long}s so tracking a message does not allocate once a
+ * producer has been seen.
+ * <p>
+ * The first message from a producer only establishes its position. After that
+ * a message with the next sequence number is normal, a larger sequence number
+ * is a gap, the same sequence number is a duplicate and a smaller sequence
+ * number is a reordered (or stale duplicate) message.
+ * </p>
+ * <p>
+ * This class is not thread safe. It is intended to be used from the single
+ * thread reading the queue. The counters may be read from any thread.
+ * </p>
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class SequenceTracker {
+
+    /** The default field holding the producer's identifier. */
+    public static final String DEFAULT_PRODUCER_FIELD = "producer";
+
+    /** The default field holding the message's sequence number. */
+    public static final String DEFAULT_SEQUENCE_FIELD = "count";
+
+    /** The initial capacity of the producer table. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The number of duplicate messages seen. */
+    private volatile long myDuplicateCount;
+
+    /** The number of messages missing from the gaps seen. */
+    private volatile long myGapCount;
+
+    /** The high bits of the producer keys. */
+    private long[] myHighs;
+
+    /** The last sequence number for each producer. */
+    private long[] myLasts;
+
+    /** The listener for irregularities, may be <code>null</code>. */
+    private final SequenceListener myListener;
+
+    /** The low bits of the producer keys. */
+    private long[] myLows;
+
+    /** The field holding the producer's identifier. */
+    private String myProducerField;
+
+    /** The number of producers seen. */
+    private volatile int myProducers;
+
+    /** The number of reordered messages seen. */
+    private volatile long myReorderedCount;
+
+    /** The field holding the message's sequence number. */
+    private String mySequenceField;
+
+    /** The number of messages tracked. */
+    private volatile long myTrackedCount;
+
+    /** True for each slot in the table that is in use. */
+    private boolean[] myUsed;
+
+    /**
+     * Creates a new SequenceTracker.
+     * 
+     * @param listener
+     *            The listener for irregularities. May be <code>null</code> to
+     *            only maintain the counters.
+     */
+    public SequenceTracker(final SequenceListener listener) {
+        myListener = listener;
+
+        myProducerField = DEFAULT_PRODUCER_FIELD;
+        mySequenceField = DEFAULT_SEQUENCE_FIELD;
+
+        myHighs = new long[INITIAL_CAPACITY];
+        myLows = new long[INITIAL_CAPACITY];
+        myLasts = new long[INITIAL_CAPACITY];
+        myUsed = new boolean[INITIAL_CAPACITY];
+        myProducers = 0;
+    }
+
+    /**
+     * Returns the number of duplicate messages seen.
+     * 
+     * @return The number of duplicate messages seen.
+     */
+    public long getDuplicateCount() {
+        return myDuplicateCount;
+    }
+
+    /**
+     * Returns the number of messages missing from the gaps seen.
+     * 
+     * @return The number of messages missing from the gaps seen.
+     */
+    public long getGapCount() {
+        return myGapCount;
+    }
+
+    /**
+     * Returns the field holding the producer's identifier.
+     * 
+     * @return The field holding the producer's identifier.
+     */
+    public String getProducerField() {
+        return myProducerField;
+    }
+
+    /**
+     * Returns the number of producers seen.
+     * 
+     * @return The number of producers seen.
+     */
+    public int getProducerCount() {
+        return myProducers;
+    }
+
+    /**
+     * Returns the number of reordered messages seen.
+     * 
+     * @return The number of reordered messages seen.
+     */
+    public long getReorderedCount() {
+        return myReorderedCount;
+    }
+
+    /**
+     * Returns the field holding the message's sequence number.
+     * 
+     * @return The field holding the message's sequence number.
+     */
+    public String getSequenceField() {
+        return mySequenceField;
+    }
+
+    /**
+     * Returns the number of messages tracked.
+     * 
+     * @return The number of messages tracked.
+     */
+    public long getTrackedCount() {
+        return myTrackedCount;
+    }
+
+    /**
+     * Sets the field holding the producer's identifier.
+     * 
+     * @param producerField
+     *            The new value for the field holding the producer's
+     *            identifier.
+     */
+    public void setProducerField(final String producerField) {
+        myProducerField = producerField;
+    }
+
+    /**
+     * Sets the field holding the message's sequence number.
+     * 
+     * @param sequenceField
+     *            The new value for the field holding the message's sequence
+     *            number.
+     */
+    public void setSequenceField(final String sequenceField) {
+        mySequenceField = sequenceField;
+    }
+
+    /**
+     * Tracks a message. Messages without a numeric sequence field are
+     * ignored. A {@link UUID} producer identifier is split into its two
+     * halves, a numeric identifier is used directly and any other identifier
+     * is hashed.
+     * 
+     * @param message
+     *            The message to track.
+     */
+    public void track(final Document message) {
+        final NumericElement sequence = message.get(NumericElement.class,
+                mySequenceField);
+        if (sequence == null) {
+            return;
+        }
+
+        final Element producer = message.get(myProducerField);
+        if (producer instanceof UuidElement) {
+            final UUID uuid = ((UuidElement) producer).getUuid();
+            track(uuid.getMostSignificantBits(),
+                    uuid.getLeastSignificantBits(), sequence.getLongValue());
+        }
+        else if (producer instanceof NumericElement) {
+            track(0, ((NumericElement) producer).getLongValue(),
+                    sequence.getLongValue());
+        }
+        else if (producer != null) {
+            final String value = producer.getValueAsString();
+            track(value.length(), hash(value), sequence.getLongValue());
+        }
+        else {
+            track(0, 0, sequence.getLongValue());
+        }
+    }
+
+    /**
+     * Tracks a message.
+     * 
+     * @param producerHigh
+     *            The high 64 bits of the producer's key.
+     * @param producerLow
+     *            The low 64 bits of the producer's key.
+     * @param sequence
+     *            The message's sequence number.
+     */
+    public void track(final long producerHigh, final long producerLow,
+            final long sequence) {
+        myTrackedCount += 1;
+
+        final int slot = find(producerHigh, producerLow);
+        if (!myUsed[slot]) {
+            insert(slot, producerHigh, producerLow, sequence);
+            return;
+        }
+
+        final long last = myLasts[slot];
+        if (sequence == (last + 1)) {
+            myLasts[slot] = sequence;
+        }
+        else if (sequence > last) {
+            myLasts[slot] = sequence;
+            myGapCount += (sequence - last - 1);
+            if (myListener != null) {
+                myListener.gap(producerHigh, producerLow, last + 1, sequence);
+            }
+        }
+        else if (sequence == last) {
+            myDuplicateCount += 1;
+            if (myListener != null) {
+                myListener.duplicate(producerHigh, producerLow, sequence);
+            }
+        }
+        else {
+            myReorderedCount += 1;
+            if (myListener != null) {
+                myListener.reordered(producerHigh, producerLow, last,
+                        sequence);
+            }
+        }
+    }
+
+    /**
+     * Returns the slot for the producer's key. If the producer has not been
+     * seen the slot is the unused slot where it should be inserted.
+     * 
+     * @param high
+     *            The high 64 bits of the producer's key.
+     * @param low
+     *            The low 64 bits of the producer's key.
+     * @return The slot for the producer's key.
+     */
+    private int find(final long high, final long low) {
+        final int mask = myUsed.length - 1;
+
+        int slot = mix(high, low) & mask;
+        while (myUsed[slot]
+                && ((myHighs[slot] != high) || (myLows[slot] != low))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Hashes a string into 64 bits using FNV-1a.
+     * 
+     * @param value
+     *            The value to hash.
+     * @return The hash of the value.
+     */
+    private long hash(final String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); ++i) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a producer to the table, growing the table if it is more than half
+     * full.
+     * 
+     * @param slot
+     *            The unused slot for the producer.
+     * @param high
+     *            The high 64 bits of the producer's key.
+     * @param low
+     *            The low 64 bits of the producer's key.
+     * @param sequence
+     *            The producer's first sequence number.
+     */
+    private void insert(final int slot, final long high, final long low,
+            final long sequence) {
+        myUsed[slot] = true;
+        myHighs[slot] = high;
+        myLows[slot] = low;
+        myLasts[slot] = sequence;
+        myProducers += 1;
+
+        if ((myProducers * 2) > myUsed.length) {
+            final long[] highs = myHighs;
+            final long[] lows = myLows;
+            final long[] lasts = myLasts;
+            final boolean[] used = myUsed;
+
+            final int capacity = used.length * 2;
+            myHighs = new long[capacity];
+            myLows = new long[capacity];
+            myLasts = new long[capacity];
+            myUsed = new boolean[capacity];
+
+            for (int i = 0; i < used.length; ++i) {
+                if (used[i]) {
+                    final int newSlot = find(highs[i], lows[i]);
+                    myUsed[newSlot] = true;
+                    myHighs[newSlot] = highs[i];
+                    myLows[newSlot] = lows[i];
+                    myLasts[newSlot] = lasts[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Mixes the bits of the producer's key into a table index.
+     * 
+     * @param high
+     *            The high 64 bits of the producer's key.
+     * @param low
+     *            The low 64 bits of the producer's key.
+     * @return The mixed bits.
+     */
+    private int mix(final long high, final long low) {
+        long h = (high * 0x9E3779B97F4A7C15L) ^ low;
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+}
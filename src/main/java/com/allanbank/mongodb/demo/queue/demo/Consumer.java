@@ -20,11 +20,14 @@ import java.util.concurrent.TimeUnit;
 import com.allanbank.mongodb.MongoClient;
 import com.allanbank.mongodb.MongoCollection;
 import com.allanbank.mongodb.MongoFactory;
-import com.allanbank.mongodb.MongoIterator;
 import com.allanbank.mongodb.bson.Document;
 import com.allanbank.mongodb.bson.NumericElement;
 import com.allanbank.mongodb.bson.builder.BuilderFactory;
 import com.allanbank.mongodb.bson.element.DocumentElement;
+import com.allanbank.mongodb.demo.queue.MessageHandler;
+import com.allanbank.mongodb.demo.queue.QueueConsumer;
+import com.allanbank.mongodb.demo.queue.SequenceListener;
+import com.allanbank.mongodb.demo.queue.SequenceTracker;
 
 /**
  * A simple consumer of the queue.
@@ -57,28 +60,51 @@ public class Consumer {
         DocumentElement cursorElement = queueLookupDoc.get(
                 DocumentElement.class, "cursor");
 
-        MongoIterator<Document> iter = client.restart(cursorElement
-                .getDocument());
-        iter.setBatchSize(3);
+        QueueConsumer consumer = new QueueConsumer(client,
+                cursorElement.getDocument(), new MessageHandler() {
+                    @Override
+                    public void handle(Document doc) {
+                        NumericElement count = doc.get(NumericElement.class,
+                                "count");
+                        if (count == null) {
+                            System.out.println(doc);
+                        }
 
-        long lastCount = 0;
-        while (iter.hasNext()) {
-            Document doc = iter.next();
-            NumericElement count = doc.get(NumericElement.class, "count");
-            if (count == null) {
-                System.out.println(iter.next());
-            }
-            else {
-                if ((lastCount + 1) != count.getLongValue()) {
-                    System.out.println(lastCount);
-                    System.out.print(count.getLongValue());
-                    System.out.print("...");
-                }
-                lastCount = count.getLongValue();
-            }
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(200);
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        // Keep each producer's messages in order on a single worker.
+        consumer.setOrderingKey("producer");
+        consumer.setSequenceTracker(new SequenceTracker(
+                new SequenceListener() {
+                    @Override
+                    public void gap(long producerHigh, long producerLow,
+                            long expected, long received) {
+                        System.out.println((expected - 1) + " " + received
+                                + "...");
+                    }
 
-            TimeUnit.MILLISECONDS.sleep(200);
+                    @Override
+                    public void duplicate(long producerHigh,
+                            long producerLow, long sequence) {
+                        System.out.println(sequence + " duplicate");
+                    }
 
+                    @Override
+                    public void reordered(long producerHigh,
+                            long producerLow, long last, long received) {
+                        System.out.println(received + " after " + last);
+                    }
+                }));
+        consumer.start();
+
+        while (true) {
+            Thread.sleep(10000000L);
         }
     }
 }
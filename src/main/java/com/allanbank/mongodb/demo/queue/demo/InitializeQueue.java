@@ -25,6 +25,7 @@ import com.allanbank.mongodb.MongoIterator;
 import com.allanbank.mongodb.bson.Document;
 import com.allanbank.mongodb.bson.builder.BuilderFactory;
 import com.allanbank.mongodb.builder.Find;
+import com.allanbank.mongodb.demo.queue.PriorityQueueConsumer;
 
 /**
  * Initializes the queue.
@@ -36,17 +37,25 @@ public class InitializeQueue {
     /**
      * Initializes the queue by creating a new capped collection and creating a
      * new cursor on it. Prints the cursor document to standard out.
+     * <p>
+     * If a number of lanes is given the queue is created in priority mode: a
+     * capped collection of the given size is created for each lane, named
+     * with {@link PriorityQueueConsumer#laneName(String, int)}, each with its
+     * own cursor document in the {@code lookup} collection.
+     * </p>
      * 
      * @param args
      *            Command line arguments. Expect the MongoDB URL, database and
-     *            collection/queue name.
+     *            collection/queue name, optional size of the queue (or of each
+     *            lane) in bytes and optional number of priority lanes.
      * @throws IOException
      *             On a failure to close the connection to MongoDB.
      */
     public static void main(String[] args) throws IOException {
         if (args.length < 3) {
             System.out.println("Usage: java " + InitializeQueue.class.getName()
-                    + " <mongodb-url> <database> <queue/collection>");
+                    + " <mongodb-url> <database> <queue/collection> "
+                    + "[<size-bytes> [<lanes>]]");
             System.exit(1);
         }
 
@@ -54,12 +63,47 @@ public class InitializeQueue {
 
         String dbName = args[1];
         String collectionName = args[2];
+        long size = 100000000L;
+        if (args.length > 3) {
+            size = Long.parseLong(args[3]);
+        }
+        int lanes = 0;
+        if (args.length > 4) {
+            lanes = Integer.parseInt(args[4]);
+        }
 
         MongoDatabase db = client.getDatabase(dbName);
+        if (lanes > 0) {
+            for (int i = 0; i < lanes; ++i) {
+                initialize(db, PriorityQueueConsumer.laneName(collectionName,
+                        i), size);
+            }
+        }
+        else {
+            initialize(db, collectionName, size);
+        }
+
+        client.close();
+    }
+
+    /**
+     * Creates a capped collection and a new cursor on it and records the
+     * cursor document in the {@code lookup} collection. Prints the cursor
+     * document to standard out.
+     * 
+     * @param db
+     *            The database for the queue.
+     * @param collectionName
+     *            The name of the capped collection.
+     * @param size
+     *            The size of the capped collection in bytes.
+     */
+    private static void initialize(MongoDatabase db, String collectionName,
+            long size) {
         MongoCollection collection = db.getCollection(collectionName);
 
         collection.drop();
-        db.createCappedCollection(collectionName, 100000000L);
+        db.createCappedCollection(collectionName, size);
 
         // For a tailable cursor to initialize we need at least a single
         // document in the collection.
@@ -86,7 +130,5 @@ public class InitializeQueue {
         System.out.println(collection
                 .findOne(BuilderFactory.start().add("_id", collectionName))
                 .get("cursor").getValueAsObject());
-
-        client.close();
     }
 }
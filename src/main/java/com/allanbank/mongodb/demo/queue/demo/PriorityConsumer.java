@@ -0,0 +1,91 @@
+/*
+ *         Copyright 2013 Allanbank Consulting, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.allanbank.mongodb.demo.queue.demo;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.allanbank.mongodb.MongoClient;
+import com.allanbank.mongodb.MongoCollection;
+import com.allanbank.mongodb.MongoFactory;
+import com.allanbank.mongodb.bson.Document;
+import com.allanbank.mongodb.bson.builder.BuilderFactory;
+import com.allanbank.mongodb.bson.element.DocumentElement;
+import com.allanbank.mongodb.demo.queue.MessageHandler;
+import com.allanbank.mongodb.demo.queue.PriorityQueueConsumer;
+
+/**
+ * A simple consumer of a queue created with priority lanes.
+ * 
+ * @copyright 2013, Allanbank Consulting, Inc., All Rights Reserved
+ */
+public class PriorityConsumer {
+
+    /**
+     * Runs a single consumer on the queue's priority lanes.
+     * 
+     * @param args
+     *            Command line arguments. Expect the MongoDB URL, database and
+     *            queue name followed by the weight of each lane.
+     * @throws InterruptedException
+     *             If interrupted.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 4) {
+            System.out.println("Usage: java " + PriorityConsumer.class.getName()
+                    + " <mongodb-url> <database> <queue> <weight>...");
+            System.exit(1);
+        }
+
+        MongoClient client = MongoFactory.createClient(args[0]);
+        MongoCollection index = client.getDatabase(args[1]).getCollection(
+                "lookup");
+
+        ScheduledExecutorService executor = Executors
+                .newSingleThreadScheduledExecutor();
+        final PriorityQueueConsumer consumer = new PriorityQueueConsumer(
+                executor, client, new MessageHandler() {
+                    @Override
+                    public void handle(Document doc) {
+                        System.out.println(doc);
+                    }
+                });
+        consumer.setLookup(index);
+        for (int i = 3; i < args.length; ++i) {
+            String lane = PriorityQueueConsumer.laneName(args[2], i - 3);
+            Document laneLookupDoc = index.findOne(BuilderFactory.start().add(
+                    "_id", lane));
+            DocumentElement cursorElement = laneLookupDoc.get(
+                    DocumentElement.class, "cursor");
+
+            consumer.addLane(cursorElement.getDocument(),
+                    Integer.parseInt(args[i]));
+        }
+        consumer.start();
+
+        // Save the lanes' cursors so the next run continues from here.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                consumer.stop();
+            }
+        });
+
+        while (true) {
+            Thread.sleep(10000000L);
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package com.allanbank.mongodb.demo.queue.demo;
 
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import com.allanbank.mongodb.MongoClient;
@@ -25,6 +27,7 @@ import com.allanbank.mongodb.MongoFactory;
 import com.allanbank.mongodb.bson.builder.BuilderFactory;
 import com.allanbank.mongodb.bson.builder.DocumentBuilder;
 import com.allanbank.mongodb.bson.element.ObjectId;
+import com.allanbank.mongodb.demo.queue.MongoQueue;
 
 /**
  * Produce documents to insert into the queue.
@@ -57,6 +60,10 @@ public class Producer {
         MongoDatabase db = client.getDatabase(dbName);
         MongoCollection collection = db.getCollection(collectionName);
 
+        ScheduledExecutorService executor = Executors
+                .newSingleThreadScheduledExecutor();
+        MongoQueue queue = new MongoQueue(executor, collection);
+
         int count = 0;
         UUID producerIdentifier = UUID.randomUUID();
         DocumentBuilder builder = BuilderFactory.start();
@@ -66,7 +73,7 @@ public class Producer {
             builder.add("producer", producerIdentifier);
             builder.add("count", count++);
 
-            collection.insert(builder);
+            queue.send(builder);
 
             TimeUnit.MILLISECONDS.sleep(100);
 